@@ -1,22 +1,27 @@
-package DETAI1;
-
-
-public class AdminMessageHandler {
-    private static ChatAdminGUI gui = null;
-
-    public static void setGUI(ChatAdminGUI g) {
-        gui = g;
-    }
-
-    public static void receiveFromClient(String nick, String msg) {
-        if (gui != null) gui.onClientMessage(nick, msg);
-    }
-
-    public static void clientJoined(String nick) {
-        if (gui != null) gui.addClientToList(nick);
-    }
-
-    public static void clientLeft(String nick) {
-        if (gui != null) gui.removeClientFromList(nick);
-    }
-}
\ No newline at end of file
+package DETAI1;
+
+/**
+ * Server -> admin notifications, published on the EventBus so the calling network
+ * thread never waits for the GUI (which gets them in batches, see ChatAdminGUI.onEvents).
+ */
+public class AdminMessageHandler {
+    private static ChatAdminGUI gui = null;
+
+    public static void setGUI(ChatAdminGUI g) {
+        if (gui != null) EventBus.unsubscribe(gui);
+        gui = g;
+        if (g != null) EventBus.subscribe(g);
+    }
+
+    public static void receiveFromClient(String nick, String msg) {
+        EventBus.publish(EventBus.Type.MESSAGE, nick, "admin", msg);
+    }
+
+    public static void clientJoined(String nick) {
+        EventBus.publish(EventBus.Type.JOINED, nick, null, null);
+    }
+
+    public static void clientLeft(String nick) {
+        EventBus.publish(EventBus.Type.LEFT, nick, null, null);
+    }
+}
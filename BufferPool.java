@@ -0,0 +1,81 @@
+package DETAI1;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared pool of direct ByteBuffers in a few size classes, for the send path (see SendBatch).
+ * - acquire(n) hands out a cleared buffer of the smallest class holding n bytes, release() puts
+ *   it back; in steady state sending allocates nothing and the socket write needs no copy into
+ *   the JDK's temporary direct buffer
+ * - per class at most MAX_PER_CLASS free buffers are kept (bounds the native memory held when
+ *   idle); hits / misses / discards are counted for Metrics
+ * - one small lock per class: taken once per batch of frames, not once per message
+ */
+final class BufferPool {
+    static final int[] SIZES = {16 * 1024, 64 * 1024, 256 * 1024};
+    static final int MAX_SIZE = SIZES[SIZES.length - 1];
+    private static final int MAX_PER_CLASS = Integer.getInteger("chat.bufferPool.maxPerClass", 256);
+
+    static final LongAdder hits = new LongAdder();
+    static final LongAdder misses = new LongAdder();
+    static final LongAdder discards = new LongAdder(); // released into a full class
+
+    private static final ByteBuffer[][] free = new ByteBuffer[SIZES.length][MAX_PER_CLASS];
+    private static final int[] freeCount = new int[SIZES.length];
+    private static final Object[] locks = new Object[SIZES.length];
+
+    static {
+        for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+    }
+
+    private BufferPool() {}
+
+    // a cleared direct buffer of at least minCapacity bytes, null if that is more than MAX_SIZE
+    static ByteBuffer acquire(int minCapacity) {
+        int c = sizeClass(minCapacity);
+        if (c < 0) return null;
+        synchronized (locks[c]) {
+            if (freeCount[c] > 0) {
+                int n = --freeCount[c];
+                ByteBuffer b = free[c][n];
+                free[c][n] = null;
+                hits.increment();
+                return b;
+            }
+        }
+        misses.increment();
+        return ByteBuffer.allocateDirect(SIZES[c]);
+    }
+
+    // b must come from acquire() and not be used afterwards
+    static void release(ByteBuffer b) {
+        int c = sizeClass(b.capacity());
+        b.clear();
+        synchronized (locks[c]) {
+            if (freeCount[c] < MAX_PER_CLASS) {
+                free[c][freeCount[c]++] = b;
+                return;
+            }
+        }
+        discards.increment(); // left to the GC, which frees the native memory
+    }
+
+    // buffers currently pooled, all classes
+    static int freeBuffers() {
+        int n = 0;
+        for (int c = 0; c < SIZES.length; c++) {
+            synchronized (locks[c]) {
+                n += freeCount[c];
+            }
+        }
+        return n;
+    }
+
+    private static int sizeClass(int capacity) {
+        for (int c = 0; c < SIZES.length; c++) {
+            if (capacity <= SIZES[c]) return c;
+        }
+        return -1;
+    }
+}
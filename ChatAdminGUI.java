@@ -1,269 +1,397 @@
-package DETAI1;
-
-import javax.swing.*;
-import javax.swing.filechooser.FileNameExtensionFilter;
-import java.awt.*;
-import java.awt.event.*;
-import java.io.File;
-import java.text.SimpleDateFormat;
-import java.util.*;
-import java.util.List;
-
-/**
- * Admin GUI + starts server.
- * Left: client list with search.
- * Right: tabbed private chats + log area.
- * Bottom: input, send, notify toggle, pre-announce list, file send, kick.
- */
-public class ChatAdminGUI extends JFrame {
-    private final DefaultListModel<String> masterModel = new DefaultListModel<>();
-    private final DefaultListModel<String> filteredModel = new DefaultListModel<>();
-    private final JList<String> clientList = new JList<>(filteredModel);
-    private final JTextField searchField = new JTextField(12);
-
-    private final JTabbedPane tabbed = new JTabbedPane();
-    private final JTextArea logArea = new JTextArea();
-    private final JTextField inputField = new JTextField(30);
-    private final JButton sendBtn = new JButton("Send");
-    private final JToggleButton notifyBtn = new JToggleButton("NotifyAll");
-    private final JButton preAnnBtn = new JButton("Pre-announce");
-    private final JButton sendFileBtn = new JButton("Send File");
-    private final JButton kickBtn = new JButton("Kick");
-    private final JButton startBtn = new JButton("Start Server");
-    private final JTextField portField = new JTextField("9000",5);
-
-    private final Map<String, JTextArea> chatMap = new HashMap<>();
-    private final List<String> preAnnList = new ArrayList<>();
-    private final SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
-
-    public ChatAdminGUI() {
-        super("Admin Chat Manager");
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        setSize(1000, 650);
-        setLocationRelativeTo(null);
-        initLayout();
-        AdminMessageHandler.setGUI(this);
-
-        // events
-        clientList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-        clientList.addMouseListener(new MouseAdapter() {
-            public void mouseClicked(MouseEvent e) {
-                String nick = clientList.getSelectedValue();
-                if (nick != null) openTab(nick);
-            }
-        });
-
-        sendBtn.addActionListener(e -> sendFromAdmin());
-        inputField.addActionListener(e -> sendFromAdmin());
-
-        preAnnBtn.addActionListener(e -> addPreAnnounce());
-        sendFileBtn.addActionListener(e -> sendFile());
-        kickBtn.addActionListener(e -> kickSelected());
-        notifyBtn.setToolTipText("If selected, messages go to all clients");
-
-        searchField.addKeyListener(new KeyAdapter() {
-            public void keyReleased(KeyEvent e) { filterList(); }
-        });
-
-        startBtn.addActionListener(e -> startServerAction());
-    }
-
-    private void initLayout() {
-        JPanel leftPanel = new JPanel(new BorderLayout());
-        leftPanel.setPreferredSize(new Dimension(400, getHeight()));
-        JPanel leftTop = new JPanel();
-        leftTop.add(new JLabel("Search:"));
-        leftTop.add(searchField);
-        leftTop.add(new JLabel("Port:"));
-        leftTop.add(portField);
-        leftTop.add(startBtn);
-        leftPanel.add(leftTop, BorderLayout.NORTH);
-        JScrollPane listScroll = new JScrollPane(clientList);
-        leftPanel.add(listScroll, BorderLayout.CENTER);
-
-        JPanel rightTop = new JPanel(new BorderLayout());
-        tabbed.setPreferredSize(new Dimension(750, 350));
-        JScrollPane logScroll = new JScrollPane(logArea);
-        logArea.setEditable(false);
-        JSplitPane rightSplit = new JSplitPane(JSplitPane.VERTICAL_SPLIT, tabbed, logScroll);
-        rightSplit.setResizeWeight(0.65);
-        rightTop.add(rightSplit, BorderLayout.CENTER);
-
-        JPanel bottom = new JPanel();
-        bottom.add(inputField);
-        bottom.add(sendBtn);
-        bottom.add(notifyBtn);
-        bottom.add(preAnnBtn);
-        bottom.add(sendFileBtn);
-        bottom.add(kickBtn);
-
-        getContentPane().add(leftPanel, BorderLayout.WEST);
-        getContentPane().add(rightTop, BorderLayout.CENTER);
-        getContentPane().add(bottom, BorderLayout.SOUTH);
-    }
-
-    private void startServerAction() {
-        int port;
-        try {
-            port = Integer.parseInt(portField.getText().trim());
-        } catch (NumberFormatException ex) {
-            JOptionPane.showMessageDialog(this, "Invalid port");
-            return;
-        }
-        boolean ok = Server.startServer(port);
-        if (!ok) {
-            JOptionPane.showMessageDialog(this, "Cannot start server on port " + port + ". Maybe in use.");
-        } else {
-            appendLog("Server started on port " + port);
-            startBtn.setEnabled(false);
-            portField.setEnabled(false);
-        }
-    }
-
-    private void filterList() {
-        String q = searchField.getText().trim().toLowerCase();
-        filteredModel.clear();
-        for (int i = 0; i < masterModel.size(); i++) {
-            String nick = masterModel.get(i);
-            if (nick.toLowerCase().contains(q)) filteredModel.addElement(nick);
-        }
-    }
-
-    // admin actions
-    private void sendFromAdmin() {
-        String txt = inputField.getText().trim();
-        if (txt.isEmpty()) return;
-
-        String timestamped = "[" + sdf.format(new Date()) + "] " + txt;
-        if (notifyBtn.isSelected()) {
-            Server.broadcast("admin", timestamped);
-            appendLog("[Admin->All] " + timestamped);
-            // also show in admin logs
-        } else {
-            String nick = clientList.getSelectedValue();
-            if (nick == null) {
-                JOptionPane.showMessageDialog(this, "Select a client or enable NotifyAll");
-                return;
-            }
-            Server.sendToClient(nick, "admin", timestamped);
-            appendToTab(nick, "[Admin->You] " + timestamped);
-            appendLog("[Admin->" + nick + "] " + timestamped);
-        }
-        inputField.setText("");
-    }
-
-    private void addPreAnnounce() {
-        String txt = JOptionPane.showInputDialog(this, "Enter pre-announcement text:");
-        if (txt != null && !txt.trim().isEmpty()) {
-            preAnnList.add(txt.trim());
-            appendLog("[PreAnn saved] " + txt.trim());
-            // show option to send all pre announces
-            int r = JOptionPane.showConfirmDialog(this, "Send all saved pre-announcements now?", "Send PreAnn", JOptionPane.YES_NO_OPTION);
-            if (r == JOptionPane.YES_OPTION) {
-                for (String p : preAnnList) {
-                    Server.broadcast("admin", "[" + sdf.format(new Date()) + "] " + p);
-                    appendLog("[Admin PreAnn->All] " + p);
-                }
-                preAnnList.clear();
-            }
-        }
-    }
-
-    private void sendFile() {
-        JFileChooser chooser = new JFileChooser();
-        int res = chooser.showOpenDialog(this);
-        if (res != JFileChooser.APPROVE_OPTION) return;
-        File f = chooser.getSelectedFile();
-        if (!f.exists()) return;
-        if (notifyBtn.isSelected()) {
-            Server.broadcastFile("admin", f);
-            appendLog("[Admin File->All] " + f.getName());
-        } else {
-            String nick = clientList.getSelectedValue();
-            if (nick == null) { JOptionPane.showMessageDialog(this, "Select a client"); return; }
-            Server.sendFileToClient(nick, "admin", f);
-            appendToTab(nick, "[Admin sent file] " + f.getName());
-            appendLog("[Admin File->" + nick + "] " + f.getName());
-        }
-    }
-
-    private void kickSelected() {
-        String nick = clientList.getSelectedValue();
-        if (nick == null) { JOptionPane.showMessageDialog(this, "Select a client to kick"); return; }
-        String reason = JOptionPane.showInputDialog(this, "Reason for kick (optional):");
-        if (reason == null) reason = "no reason";
-        Server.kickClient(nick, reason);
-        appendLog("[Admin] kicked " + nick + " Reason: " + reason);
-    }
-
-    // GUI helpers
-    public void addClientToList(String nick) {
-        SwingUtilities.invokeLater(() -> {
-            if (!masterModel.contains(nick)) {
-                masterModel.addElement(nick);
-                filterList();
-            }
-            appendLog("[System] " + nick + " connected");
-        });
-    }
-
-    public void removeClientFromList(String nick) {
-        SwingUtilities.invokeLater(() -> {
-            masterModel.removeElement(nick);
-            filterList();
-            // close tab if exists
-            int idx = indexOfTab(nick);
-            if (idx >= 0) tabbed.remove(idx);
-            chatMap.remove(nick);
-            appendLog("[System] " + nick + " disconnected");
-        });
-    }
-
-    // when client sends message
-    public void onClientMessage(String nick, String msg) {
-        SwingUtilities.invokeLater(() -> {
-            if (!masterModel.contains(nick)) {
-                masterModel.addElement(nick);
-                filterList();
-            }
-            openTab(nick);
-            appendToTab(nick, "[" + nick + "] " + msg);
-            appendLog("[" + nick + "->Admin] " + msg);
-        });
-    }
-
-    private void openTab(String nick) {
-        int idx = indexOfTab(nick);
-        if (idx >= 0) { tabbed.setSelectedIndex(idx); return; }
-        JTextArea ta = new JTextArea();
-        ta.setEditable(false);
-        JScrollPane sc = new JScrollPane(ta);
-        tabbed.addTab(nick, sc);
-        chatMap.put(nick, ta);
-        tabbed.setSelectedComponent(sc);
-    }
-
-    private int indexOfTab(String nick) {
-        for (int i = 0; i < tabbed.getTabCount(); i++) {
-            if (tabbed.getTitleAt(i).equals(nick)) return i;
-        }
-        return -1;
-    }
-
-    private void appendToTab(String nick, String text) {
-        JTextArea ta = chatMap.get(nick);
-        if (ta == null) { openTab(nick); ta = chatMap.get(nick); }
-        ta.append("[" + sdf.format(new Date()) + "] " + text + "\n");
-    }
-
-    private void appendLog(String s) {
-        logArea.append("[" + sdf.format(new Date()) + "] " + s + "\n");
-    }
-
-    public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> {
-            ChatAdminGUI gui = new ChatAdminGUI();
-            gui.setVisible(true);
-        });
-    }
-}
+package DETAI1;
+
+import javax.swing.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Admin GUI + starts server.
+ * Left: client list with search.
+ * Right: tabbed private chats + log area.
+ * Bottom: input, send, notify toggle, pre-announce list, file send, kick.
+ * Server events arrive in batches from the EventBus, each applied in one EDT update.
+ * Client -> client messages are only sampled into the log (TRAFFIC_SAMPLE per batch).
+ */
+public class ChatAdminGUI extends JFrame implements EventBus.Subscriber {
+    // client -> client messages shown per event batch; the rest is only counted
+    private static final int TRAFFIC_SAMPLE = Integer.getInteger("chat.admin.trafficSample", 10);
+
+    private final ClientDirectory directory = new ClientDirectory(); // all connected nicks, indexed
+    private final NickListModel filteredModel = new NickListModel();
+    private final JList<String> clientList = new JList<>(filteredModel);
+    private final JTextField searchField = new JTextField(12);
+
+    private final JTabbedPane tabbed = new JTabbedPane();
+    private final ChatView logView = new ChatView();
+    private final JTextField inputField = new JTextField(30);
+    private final JButton sendBtn = new JButton("Send");
+    private final JToggleButton notifyBtn = new JToggleButton("NotifyAll");
+    private final JButton preAnnBtn = new JButton("Pre-announce");
+    private final JButton sendFileBtn = new JButton("Send File");
+    private final JButton kickBtn = new JButton("Kick");
+    private final JButton queuesBtn = new JButton("Queues");
+    private final JButton metricsBtn = new JButton("Metrics");
+    private JDialog metricsDialog;
+    private final JButton startBtn = new JButton("Start Server");
+    private final JTextField portField = new JTextField("9000",5);
+    private final JComboBox<Server.IoMode> ioModeBox = new JComboBox<>(Server.IoMode.values());
+
+    private final Map<String, ChatView> chatMap = new HashMap<>();
+    private final List<String> preAnnList = new ArrayList<>();
+    private final SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
+    // history reads for paging, off the EDT
+    private final ExecutorService historyPager = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "history-pager");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ChatAdminGUI() {
+        super("Admin Chat Manager");
+        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        setSize(1000, 650);
+        setLocationRelativeTo(null);
+        initLayout();
+        AdminMessageHandler.setGUI(this);
+
+        // events
+        clientList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        clientList.setPrototypeCellValue("WWWWWWWWWWWWWWWWWWWW"); // fixed row size: no measuring every nick
+        clientList.addMouseListener(new MouseAdapter() {
+            public void mouseClicked(MouseEvent e) {
+                String nick = clientList.getSelectedValue();
+                if (nick != null) openTab(nick);
+            }
+        });
+
+        sendBtn.addActionListener(e -> sendFromAdmin());
+        inputField.addActionListener(e -> sendFromAdmin());
+
+        preAnnBtn.addActionListener(e -> addPreAnnounce());
+        sendFileBtn.addActionListener(e -> sendFile());
+        kickBtn.addActionListener(e -> kickSelected());
+        queuesBtn.addActionListener(e -> showQueues());
+        queuesBtn.setToolTipText("Per-client send queue depth, bytes and drops");
+        metricsBtn.addActionListener(e -> showMetrics());
+        metricsBtn.setToolTipText("Live throughput, connections, queue depths and delivery latency");
+        notifyBtn.setToolTipText("If selected, messages go to all clients");
+
+        searchField.addKeyListener(new KeyAdapter() {
+            public void keyReleased(KeyEvent e) { filterList(); }
+        });
+
+        startBtn.addActionListener(e -> startServerAction());
+    }
+
+    private void initLayout() {
+        JPanel leftPanel = new JPanel(new BorderLayout());
+        leftPanel.setPreferredSize(new Dimension(400, getHeight()));
+        JPanel leftTop = new JPanel();
+        leftTop.add(new JLabel("Search:"));
+        leftTop.add(searchField);
+        leftTop.add(new JLabel("Port:"));
+        leftTop.add(portField);
+        ioModeBox.setSelectedItem(Server.defaultIoMode());
+        ioModeBox.setToolTipText("THREADS: thread per client, VIRTUAL: virtual thread per client (Java 21+), NIO: selector loops");
+        leftTop.add(ioModeBox);
+        leftTop.add(startBtn);
+        leftPanel.add(leftTop, BorderLayout.NORTH);
+        JScrollPane listScroll = new JScrollPane(clientList);
+        leftPanel.add(listScroll, BorderLayout.CENTER);
+
+        JPanel rightTop = new JPanel(new BorderLayout());
+        tabbed.setPreferredSize(new Dimension(750, 350));
+        // older log lines come from the server's history (messages only)
+        logView.setPager((time, count, done) -> pageHistory(null, time, count, done));
+        JSplitPane rightSplit = new JSplitPane(JSplitPane.VERTICAL_SPLIT, tabbed, logView);
+        rightSplit.setResizeWeight(0.65);
+        rightTop.add(rightSplit, BorderLayout.CENTER);
+
+        JPanel bottom = new JPanel();
+        bottom.add(inputField);
+        bottom.add(sendBtn);
+        bottom.add(notifyBtn);
+        bottom.add(preAnnBtn);
+        bottom.add(sendFileBtn);
+        bottom.add(kickBtn);
+        bottom.add(queuesBtn);
+        bottom.add(metricsBtn);
+
+        getContentPane().add(leftPanel, BorderLayout.WEST);
+        getContentPane().add(rightTop, BorderLayout.CENTER);
+        getContentPane().add(bottom, BorderLayout.SOUTH);
+    }
+
+    private void startServerAction() {
+        int port;
+        try {
+            port = Integer.parseInt(portField.getText().trim());
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(this, "Invalid port");
+            return;
+        }
+        Server.IoMode mode = (Server.IoMode) ioModeBox.getSelectedItem();
+        boolean ok = Server.startServer(port, mode);
+        if (!ok) {
+            JOptionPane.showMessageDialog(this, "Cannot start server on port " + port + ". Maybe in use.");
+        } else {
+            appendLog("Server started on port " + port + " (" + mode + ")");
+            startBtn.setEnabled(false);
+            portField.setEnabled(false);
+            ioModeBox.setEnabled(false);
+        }
+    }
+
+    private void filterList() {
+        filteredModel.setNicks(directory.search(searchField.getText()));
+    }
+
+    // search results, swapped in whole (one change event instead of one per nick)
+    private static final class NickListModel extends AbstractListModel<String> {
+        private static final long serialVersionUID = 1L;
+        private List<String> nicks = Collections.emptyList();
+
+        void setNicks(List<String> nicks) {
+            int old = this.nicks.size();
+            this.nicks = nicks;
+            if (old > 0) fireIntervalRemoved(this, 0, old - 1);
+            if (!nicks.isEmpty()) fireIntervalAdded(this, 0, nicks.size() - 1);
+        }
+
+        @Override
+        public int getSize() {
+            return nicks.size();
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            return nicks.get(index);
+        }
+    }
+
+    // admin actions
+    private void sendFromAdmin() {
+        String txt = inputField.getText().trim();
+        if (txt.isEmpty()) return;
+
+        String timestamped = "[" + sdf.format(new Date()) + "] " + txt;
+        if (notifyBtn.isSelected()) {
+            Server.broadcast("admin", timestamped);
+            appendLog("[Admin->All] " + timestamped);
+            // also show in admin logs
+        } else {
+            String nick = clientList.getSelectedValue();
+            if (nick == null) {
+                JOptionPane.showMessageDialog(this, "Select a client or enable NotifyAll");
+                return;
+            }
+            Server.sendToClient(nick, "admin", timestamped);
+            appendToTab(nick, "[Admin->You] " + timestamped);
+            appendLog("[Admin->" + nick + "] " + timestamped);
+        }
+        inputField.setText("");
+    }
+
+    private void addPreAnnounce() {
+        String txt = JOptionPane.showInputDialog(this, "Enter pre-announcement text:");
+        if (txt != null && !txt.trim().isEmpty()) {
+            preAnnList.add(txt.trim());
+            appendLog("[PreAnn saved] " + txt.trim());
+            // show option to send all pre announces
+            int r = JOptionPane.showConfirmDialog(this, "Send all saved pre-announcements now?", "Send PreAnn", JOptionPane.YES_NO_OPTION);
+            if (r == JOptionPane.YES_OPTION) {
+                for (String p : preAnnList) {
+                    Server.broadcast("admin", "[" + sdf.format(new Date()) + "] " + p);
+                    appendLog("[Admin PreAnn->All] " + p);
+                }
+                preAnnList.clear();
+            }
+        }
+    }
+
+    private void sendFile() {
+        JFileChooser chooser = new JFileChooser();
+        int res = chooser.showOpenDialog(this);
+        if (res != JFileChooser.APPROVE_OPTION) return;
+        File f = chooser.getSelectedFile();
+        if (!f.exists()) return;
+        if (notifyBtn.isSelected()) {
+            Server.broadcastFile("admin", f);
+            appendLog("[Admin File->All] " + f.getName());
+        } else {
+            String nick = clientList.getSelectedValue();
+            if (nick == null) { JOptionPane.showMessageDialog(this, "Select a client"); return; }
+            Server.sendFileToClient(nick, "admin", f);
+            appendToTab(nick, "[Admin sent file] " + f.getName());
+            appendLog("[Admin File->" + nick + "] " + f.getName());
+        }
+    }
+
+    private void kickSelected() {
+        String nick = clientList.getSelectedValue();
+        if (nick == null) { JOptionPane.showMessageDialog(this, "Select a client to kick"); return; }
+        String reason = JOptionPane.showInputDialog(this, "Reason for kick (optional):");
+        if (reason == null) reason = "no reason";
+        Server.kickClient(nick, reason);
+        appendLog("[Admin] kicked " + nick + " Reason: " + reason);
+    }
+
+    // send queue depth per client, largest backlog first; lets the admin change a client's slow-consumer policy
+    private void showQueues() {
+        List<Map.Entry<String, SendQueue.Stats>> rows = new ArrayList<>(Server.getQueueStats().entrySet());
+        rows.sort((a, b) -> Long.compare(b.getValue().bytes, a.getValue().bytes));
+        String[] cols = {"Nick", "Depth", "Bytes", "Dropped", "Policy"};
+        Object[][] data = new Object[rows.size()][];
+        for (int i = 0; i < rows.size(); i++) {
+            SendQueue.Stats st = rows.get(i).getValue();
+            data[i] = new Object[]{rows.get(i).getKey(), st.depth, st.bytes, st.dropped, st.policy};
+        }
+        JTable table = new JTable(data, cols);
+        table.setDefaultEditor(Object.class, null);
+        JComboBox<SendQueue.Policy> policyBox = new JComboBox<>(SendQueue.Policy.values());
+        JPanel panel = new JPanel(new BorderLayout());
+        JScrollPane sc = new JScrollPane(table);
+        sc.setPreferredSize(new Dimension(500, 300));
+        panel.add(sc, BorderLayout.CENTER);
+        JPanel south = new JPanel();
+        south.add(new JLabel("Policy for selected:"));
+        south.add(policyBox);
+        panel.add(south, BorderLayout.SOUTH);
+        int r = JOptionPane.showConfirmDialog(this, panel, "Send queues", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        int row = table.getSelectedRow();
+        if (r == JOptionPane.OK_OPTION && row >= 0) {
+            String nick = (String) data[row][0];
+            SendQueue.Policy p = (SendQueue.Policy) policyBox.getSelectedItem();
+            Server.setSendPolicy(nick, p);
+            appendLog("[Admin] send policy for " + nick + " set to " + p);
+        }
+    }
+
+    // live dashboard, refreshed every second while open (Metrics samples once a second)
+    private void showMetrics() {
+        if (metricsDialog != null) {
+            metricsDialog.toFront();
+            return;
+        }
+        JTextArea text = new JTextArea(Metrics.summary(), 8, 70);
+        text.setEditable(false);
+        text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        javax.swing.Timer refresh = new javax.swing.Timer(1000, e -> text.setText(Metrics.summary()));
+        metricsDialog = new JDialog(this, "Server metrics", false);
+        metricsDialog.add(new JScrollPane(text));
+        metricsDialog.pack();
+        metricsDialog.setLocationRelativeTo(this);
+        metricsDialog.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                refresh.stop();
+                metricsDialog = null;
+            }
+        });
+        metricsDialog.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+        metricsDialog.setVisible(true);
+        refresh.start();
+    }
+
+    // EventBus thread: the whole batch becomes one EDT task, with a sample of the client traffic
+    public void onEvents(List<EventBus.Event> batch) {
+        List<EventBus.Event> shown = new ArrayList<>();
+        int traffic = 0;
+        for (EventBus.Event e : batch) {
+            boolean clientTraffic = e.type == EventBus.Type.MESSAGE && !"admin".equals(e.to) && !"admin".equals(e.from);
+            if (clientTraffic && ++traffic > TRAFFIC_SAMPLE) continue;
+            shown.add(e);
+        }
+        int notShown = Math.max(0, traffic - TRAFFIC_SAMPLE);
+        SwingUtilities.invokeLater(() -> applyEvents(shown, notShown));
+    }
+
+    // joins / leaves / client messages; the list is re-filtered once per batch
+    private void applyEvents(List<EventBus.Event> batch, int notShown) {
+        boolean listChanged = false;
+        String lastSender = null;
+        for (EventBus.Event e : batch) {
+            String time = sdf.format(new Date(e.time));
+            switch (e.type) {
+                case JOINED:
+                    if (directory.add(e.from)) listChanged = true;
+                    logView.append(e.time, "[" + time + "] [System] " + e.from + " connected");
+                    break;
+                case LEFT:
+                    if (directory.remove(e.from)) listChanged = true;
+                    // close tab if exists
+                    ChatView tab = chatMap.remove(e.from);
+                    if (tab != null) tabbed.remove(tab);
+                    if (e.from.equals(lastSender)) lastSender = null;
+                    logView.append(e.time, "[" + time + "] [System] " + e.from + " disconnected");
+                    break;
+                case MESSAGE:
+                    if ("admin".equals(e.from)) break; // sent by the admin: already shown
+                    if (!"admin".equals(e.to)) {
+                        String to = HistoryStore.BROADCAST.equals(e.to) ? "All" : e.to;
+                        logView.append(e.time, "[" + time + "] [" + e.from + "->" + to + "] " + e.text);
+                        break;
+                    }
+                    if (directory.add(e.from)) listChanged = true;
+                    tabView(e.from).append(e.time, "[" + time + "] [" + e.from + "] " + e.text);
+                    lastSender = e.from;
+                    logView.append(e.time, "[" + time + "] [" + e.from + "->Admin] " + e.text);
+                    break;
+            }
+        }
+        if (notShown > 0) logView.append("[" + sdf.format(new Date()) + "] [System] " + notShown + " more client message(s) not shown");
+        if (listChanged) filterList();
+        if (lastSender != null) openTab(lastSender);
+    }
+
+    private void openTab(String nick) {
+        tabbed.setSelectedComponent(tabView(nick));
+    }
+
+    // view of nick's tab, created if needed; pages in older messages with nick from history
+    private ChatView tabView(String nick) {
+        ChatView view = chatMap.get(nick);
+        if (view != null) return view;
+        view = new ChatView();
+        view.setPager((time, count, done) -> pageHistory(nick, time, count, done));
+        tabbed.addTab(nick, view);
+        chatMap.put(nick, view);
+        return view;
+    }
+
+    // ChatView.Pager over the server history: nick's private messages, or everything (nick null)
+    private void pageHistory(String nick, long time, int count, Consumer<List<ChatView.Line>> done) {
+        historyPager.execute(() -> {
+            SimpleDateFormat fmt = new SimpleDateFormat("dd/MM HH:mm:ss");
+            List<ChatView.Line> lines = new ArrayList<>();
+            for (HistoryStore.Record r : Server.getHistory(nick, false, time, count)) {
+                String who = nick != null ? r.from : r.from + "->" + (HistoryStore.BROADCAST.equals(r.to) ? "All" : r.to);
+                lines.add(new ChatView.Line(r.time, "[" + fmt.format(new Date(r.time)) + "] [" + who + "] " + r.text));
+            }
+            done.accept(lines);
+        });
+    }
+
+    private void appendToTab(String nick, String text) {
+        tabView(nick).append("[" + sdf.format(new Date()) + "] " + text);
+    }
+
+    private void appendLog(String s) {
+        logView.append("[" + sdf.format(new Date()) + "] " + s);
+    }
+
+    public static void main(String[] args) {
+        SwingUtilities.invokeLater(() -> {
+            ChatAdminGUI gui = new ChatAdminGUI();
+            gui.setVisible(true);
+        });
+    }
+}
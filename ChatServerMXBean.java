@@ -0,0 +1,70 @@
+package DETAI1;
+
+/**
+ * Server metrics over JMX (jconsole / VisualVM: DETAI1:type=ChatServer), see Metrics.
+ * Rates are per second over the last sampling interval, latencies over the last Metrics.WINDOW_SECONDS.
+ */
+public interface ChatServerMXBean {
+    double getMessagesInPerSec();
+
+    double getMessagesOutPerSec();
+
+    double getBytesInPerSec();
+
+    double getBytesOutPerSec();
+
+    double getAcceptsPerSec();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getAccepted();
+
+    // socket writes of batched frames; messages out / writes = frames coalesced per write
+    long getWrites();
+
+    double getWritesPerSec();
+
+    int getConnections();
+
+    // resumable sessions, attached or within their grace period (see Sessions)
+    int getSessions();
+
+    long getQueueDepthTotal();
+
+    int getQueueDepthMax();
+
+    long getLatencyP50Micros();
+
+    long getLatencyP99Micros();
+
+    long getLatencyP999Micros();
+
+    long getLatencyMaxMicros();
+
+    // uncompressed / compressed size of all frame payloads compressed so far (1 if none)
+    double getCompressionRatio();
+
+    double getCompressionCpuMsPerSec();
+
+    // send buffers taken from / allocated for BufferPool
+    long getBufferPoolHits();
+
+    long getBufferPoolMisses();
+
+    // files sent from FileCache without reading them again / bytes not sent because the client had them
+    long getFileCacheHits();
+
+    long getFileCacheSkippedBytes();
+
+    // MESSAGE events the event bus dropped because its subscribers (history, admin GUI) fell behind
+    long getEventsDropped();
+
+    // log records dropped (sampled or ring full) because the log writer fell behind
+    long getLogRecordsDropped();
+}
@@ -0,0 +1,191 @@
+package DETAI1;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseEvent;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Scrolling message view replacing the ever-growing JTextAreas.
+ * - lines live in a ring buffer: an append is O(1) and at most MAX_LINES stay while the
+ *   view follows the newest line (oldest dropped first)
+ * - a JList with a fixed row height only lays out and paints the visible rows
+ * - scrolled to the top, older lines are requested from the Pager (history) and put
+ *   above; they are dropped again once the view is back at the bottom
+ */
+class ChatView extends JScrollPane {
+    private static final long serialVersionUID = 1L;
+    static final int MAX_LINES = Integer.getInteger("chat.view.maxLines", 5000);
+    private static final int PAGE_LINES = 200;
+
+    // one row; time is what paging continues from
+    static final class Line {
+        final long time;
+        final String text;
+
+        Line(long time, String text) {
+            this.time = time;
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    // source of older lines: done gets (on any thread) up to count lines before time, oldest first
+    interface Pager {
+        void older(long time, int count, Consumer<List<Line>> done);
+    }
+
+    private final RingModel model = new RingModel(MAX_LINES * 2);
+    private final JList<Line> list;
+    private final int rowHeight;
+    private Pager pager;
+    private boolean loading, exhausted;
+
+    ChatView() {
+        list = new JList<Line>(model) {
+            @Override
+            public boolean getScrollableTracksViewportWidth() {
+                return true; // rows are as wide as the view, never measured
+            }
+
+            @Override
+            public String getToolTipText(MouseEvent e) {
+                int i = locationToIndex(e.getPoint());
+                return i >= 0 ? model.getElementAt(i).text : null; // full text of clipped rows
+            }
+        };
+        Font font = UIManager.getFont("TextArea.font");
+        if (font != null) list.setFont(font);
+        rowHeight = list.getFontMetrics(list.getFont()).getHeight() + 1;
+        list.setFixedCellHeight(rowHeight);
+        list.setFixedCellWidth(1);
+        list.setToolTipText("");
+        setViewportView(list);
+        getVerticalScrollBar().setUnitIncrement(rowHeight);
+        getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (e.getValueIsAdjusting()) return;
+            if (atBottom()) trimToCap();
+            else if (e.getValue() == 0) loadOlder();
+        });
+    }
+
+    void setPager(Pager pager) {
+        this.pager = pager;
+        exhausted = false;
+    }
+
+    // EDT only
+    void append(String text) {
+        append(System.currentTimeMillis(), text);
+    }
+
+    // EDT only
+    void append(long time, String text) {
+        boolean follow = atBottom();
+        model.addLast(new Line(time, text));
+        if (follow) {
+            trimToCap();
+            list.ensureIndexIsVisible(model.getSize() - 1);
+        }
+    }
+
+    // callable from any thread
+    void appendLater(String text) {
+        appendLater(System.currentTimeMillis(), text);
+    }
+
+    void appendLater(long time, String text) {
+        SwingUtilities.invokeLater(() -> append(time, text));
+    }
+
+    void clear() {
+        model.removeFirst(model.getSize());
+        exhausted = false;
+    }
+
+    private boolean atBottom() {
+        JScrollBar bar = getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - rowHeight;
+    }
+
+    private void trimToCap() {
+        if (model.getSize() > MAX_LINES) {
+            model.removeFirst(model.getSize() - MAX_LINES);
+            exhausted = false;
+        }
+    }
+
+    private void loadOlder() {
+        if (pager == null || loading || exhausted || model.getSize() == 0) return;
+        loading = true;
+        pager.older(model.getElementAt(0).time, PAGE_LINES, lines -> SwingUtilities.invokeLater(() -> {
+            loading = false;
+            if (lines.isEmpty()) {
+                exhausted = true;
+                return;
+            }
+            int added = model.addFirst(lines);
+            if (added == 0) return;
+            // keep the rows the user was looking at in place
+            JScrollBar bar = getVerticalScrollBar();
+            int value = bar.getValue();
+            getViewport().validate();
+            bar.setValue(value + added * rowHeight);
+        }));
+    }
+
+    // fixed-capacity ring of lines; adding to a full ring drops from the other end
+    private static final class RingModel extends AbstractListModel<Line> {
+        private static final long serialVersionUID = 1L;
+        private final Line[] ring;
+        private int head, size;
+
+        RingModel(int capacity) {
+            ring = new Line[capacity];
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public Line getElementAt(int index) {
+            return ring[(head + index) % ring.length];
+        }
+
+        void addLast(Line line) {
+            if (size == ring.length) removeFirst(1);
+            ring[(head + size) % ring.length] = line;
+            size++;
+            fireIntervalAdded(this, size - 1, size - 1);
+        }
+
+        // lines oldest first; keeps only what fits, returns how many were added
+        int addFirst(List<Line> lines) {
+            int n = Math.min(lines.size(), ring.length - size);
+            if (n == 0) return 0;
+            for (int i = lines.size() - 1; i >= lines.size() - n; i--) {
+                head = (head - 1 + ring.length) % ring.length;
+                ring[head] = lines.get(i);
+            }
+            size += n;
+            fireIntervalAdded(this, 0, n - 1);
+            return n;
+        }
+
+        void removeFirst(int n) {
+            n = Math.min(n, size);
+            if (n == 0) return;
+            for (int i = 0; i < n; i++) ring[(head + i) % ring.length] = null;
+            head = (head + n) % ring.length;
+            size -= n;
+            fireIntervalRemoved(this, 0, n - 1);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package DETAI1;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resumable chunked file transfers, for clients that announce caps=chunk.
+ * Server -> client (text lines / LINE frames):
+ * - CHUNKED|id|sender|filename|size|chunkSize  announces a transfer
+ * - CHUNK|id|offset|length|crc32c              followed by length raw bytes
+ * - CHUNK_END|id                               after the last chunk
+ * - CHUNK_GONE|id                              answer to RESUME for an unknown / expired id
+ * Client -> server:
+ * - RESUME|id|offset   (re)send from offset: after a reconnect, or a chunk failing its checksum
+ * - CHUNK_DONE|id      file complete
+ * Chunk headers and checksums are computed once per file and shared by all recipients; the
+ * checksums are kept by FileCache for the next time the same file is sent.
+ */
+final class ChunkedTransfers {
+    static final String CAPABILITY = "chunk";
+    static final int CHUNK_SIZE = Integer.getInteger("chat.chunkSize", 1024 * 1024);
+    // how long an unfinished transfer can still be resumed
+    private static final long TTL_MS = 60 * 60 * 1000L;
+
+    private static final Map<String, Transfer> transfers = new ConcurrentHashMap<>();
+    private static final SecureRandom random = new SecureRandom();
+    // checksumming reads the whole file: keep it off the caller (admin GUI) thread
+    private static final ExecutorService prep = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "chunk-prep");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private ChunkedTransfers() {}
+
+    private static final class Transfer {
+        final String id;
+        final Frame announce, end;
+        final SendQueue.FileBody[] chunks;
+        final int chunkSize;
+        final AtomicInteger pending = new AtomicInteger(); // recipients that haven't sent CHUNK_DONE
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Transfer(String id, Frame announce, Frame end, SendQueue.FileBody[] chunks, int chunkSize) {
+            this.id = id;
+            this.announce = announce;
+            this.end = end;
+            this.chunks = chunks;
+            this.chunkSize = chunkSize;
+        }
+    }
+
+    // checksum f in the background, then queue the whole transfer on every target
+    static void send(Collection<Connection> targets, String sender, File f) {
+        List<Connection> copy = new ArrayList<>(targets);
+        prep.execute(() -> {
+            try {
+                Transfer t = prepare(sender, f);
+                transfers.put(t.id, t);
+                t.pending.set(copy.size());
+                for (Connection c : copy) enqueueFrom(c, t, 0, true);
+            } catch (IOException ex) {
+                Log.error("file_error", null, null, "cannot prepare chunks of " + f + ": " + ex.getMessage());
+            }
+        });
+    }
+
+    // handles RESUME / CHUNK_DONE; returns false if msg is not a transfer message
+    static boolean handle(Connection c, String msg) {
+        if (msg.startsWith("RESUME|")) {
+            String[] p = msg.split("\\|");
+            if (p.length < 3) return true;
+            Transfer t = transfers.get(p[1]);
+            if (t == null) {
+                c.enqueue(Frame.text("CHUNK_GONE|" + p[1]));
+                return true;
+            }
+            long offset;
+            try {
+                offset = Long.parseLong(p[2]);
+            } catch (NumberFormatException ex) {
+                return true;
+            }
+            t.lastUsed = System.currentTimeMillis();
+            enqueueFrom(c, t, (int) Math.max(0, offset / t.chunkSize), false);
+            return true;
+        }
+        if (msg.startsWith("CHUNK_DONE|")) {
+            Transfer t = transfers.get(msg.substring("CHUNK_DONE|".length()));
+            if (t != null && t.pending.decrementAndGet() <= 0) transfers.remove(t.id);
+            return true;
+        }
+        return false;
+    }
+
+    // drop transfers nobody resumed within TTL_MS
+    static void expire() {
+        long now = System.currentTimeMillis();
+        transfers.values().removeIf(t -> now - t.lastUsed > TTL_MS);
+    }
+
+    private static void enqueueFrom(Connection c, Transfer t, int firstChunk, boolean announce) {
+        if (announce) c.enqueue(t.announce);
+        for (int i = firstChunk; i < t.chunks.length; i++) c.enqueueFile(t.chunks[i]);
+        c.enqueue(t.end);
+    }
+
+    // checksums come from FileCache: a file sent before is not read again
+    private static Transfer prepare(String sender, File f) throws IOException {
+        byte[] idBytes = new byte[12];
+        random.nextBytes(idBytes);
+        String id = Base64.getUrlEncoder().withoutPadding().encodeToString(idBytes);
+        FileCache.Content content = FileCache.describe(f, false);
+        int chunkSize = content.chunkSize;
+        long size = content.size;
+        SendQueue.FileBody[] chunks = new SendQueue.FileBody[content.crcs.length];
+        for (int i = 0; i < chunks.length; i++) {
+            long offset = (long) i * chunkSize;
+            long length = Math.min(chunkSize, size - offset);
+            Frame header = Frame.text("CHUNK|" + id + "|" + offset + "|" + length + "|" + content.crcs[i]);
+            chunks[i] = new SendQueue.FileBody(header, f, offset, length);
+        }
+        Frame announce = Frame.announce("CHUNKED|" + id + "|" + sender + "|" + f.getName() + "|" + size + "|" + chunkSize, sender, f);
+        return new Transfer(id, announce, Frame.text("CHUNK_END|" + id), chunks, chunkSize);
+    }
+}
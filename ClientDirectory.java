@@ -0,0 +1,126 @@
+package DETAI1;
+
+import java.util.*;
+
+/**
+ * Connected nicks with substring search for the admin client list.
+ * - trigram index over lower-cased nicks, updated per join / leave
+ * - a query of 3+ chars only checks the nicks under its rarest trigram; shorter ones
+ *   scan a flat array of per-nick character masks and check only possible matches
+ * - results in join order, like the list always showed; postings and the array keep
+ *   that order, so nothing is sorted per keystroke
+ * Not thread-safe: the admin GUI uses it on the EDT only.
+ */
+final class ClientDirectory {
+    private static final class Entry {
+        final String nick, lower;
+        final long mask;
+        int slot; // index in order / masks
+
+        Entry(String nick) {
+            this.nick = nick;
+            this.lower = nick.toLowerCase();
+            this.mask = mask(lower);
+        }
+    }
+
+    private final Map<String, Entry> byNick = new HashMap<>();
+    private final Map<String, Set<Entry>> trigrams = new HashMap<>();
+    // join order; removed nicks leave a null until the next compaction
+    private Entry[] order = new Entry[64];
+    private long[] masks = new long[64];
+    private int used, removed;
+
+    // false if nick was already there
+    boolean add(String nick) {
+        if (byNick.containsKey(nick)) return false;
+        Entry e = new Entry(nick);
+        byNick.put(nick, e);
+        if (used == order.length) {
+            if (removed > used / 2) compact();
+            else {
+                order = Arrays.copyOf(order, used * 2);
+                masks = Arrays.copyOf(masks, used * 2);
+            }
+        }
+        e.slot = used;
+        order[used] = e;
+        masks[used++] = e.mask;
+        for (String g : grams(e.lower)) trigrams.computeIfAbsent(g, k -> new LinkedHashSet<>()).add(e);
+        return true;
+    }
+
+    // false if nick was not there
+    boolean remove(String nick) {
+        Entry e = byNick.remove(nick);
+        if (e == null) return false;
+        order[e.slot] = null;
+        masks[e.slot] = -1; // matches every mask test, then skipped as null
+        if (++removed > 1024 && removed > used / 2) compact();
+        for (String g : grams(e.lower)) {
+            Set<Entry> posting = trigrams.get(g);
+            if (posting != null && posting.remove(e) && posting.isEmpty()) trigrams.remove(g);
+        }
+        return true;
+    }
+
+    boolean contains(String nick) {
+        return byNick.containsKey(nick);
+    }
+
+    int size() {
+        return byNick.size();
+    }
+
+    // nicks containing query, ignoring case
+    List<String> search(String query) {
+        String q = query.trim().toLowerCase();
+        List<String> out = new ArrayList<>();
+        if (q.length() < 3) {
+            long m = mask(q);
+            for (int i = 0; i < used; i++) {
+                if ((masks[i] & m) != m) continue;
+                Entry e = order[i];
+                if (e != null && (q.isEmpty() || e.lower.contains(q))) out.add(e.nick);
+            }
+            return out;
+        }
+        Set<Entry> rarest = null;
+        for (String g : grams(q)) {
+            Set<Entry> posting = trigrams.get(g);
+            if (posting == null) return out; // no nick has this trigram
+            if (rarest == null || posting.size() < rarest.size()) rarest = posting;
+        }
+        for (Entry e : rarest) {
+            if (e.lower.contains(q)) out.add(e.nick);
+        }
+        return out;
+    }
+
+    private void compact() {
+        int n = 0;
+        for (int i = 0; i < used; i++) {
+            Entry e = order[i];
+            if (e == null) continue;
+            e.slot = n;
+            order[n] = e;
+            masks[n++] = e.mask;
+        }
+        Arrays.fill(order, n, used, null);
+        used = n;
+        removed = 0;
+    }
+
+    // one bit per char (mod 64): a nick can only contain q if it has all of q's bits
+    private static long mask(String s) {
+        long m = 0;
+        for (int i = 0; i < s.length(); i++) m |= 1L << (s.charAt(i) & 63);
+        return m;
+    }
+
+    private static Set<String> grams(String s) {
+        Set<String> out = new HashSet<>();
+        for (int i = 0; i + 3 <= s.length(); i++) out.add(s.substring(i, i + 3));
+        return out;
+    }
+}
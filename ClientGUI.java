@@ -1,180 +1,430 @@
-package DETAI1;
-
-import javax.swing.*;
-import java.awt.*;
-import java.awt.event.*;
-import java.io.*;
-import java.net.*;
-import java.text.SimpleDateFormat;
-import java.util.Base64;
-import java.util.Date;
-
-/**
- * Client GUI: connect to server, exchange messages, receive files.
- * Protocol:
- * - server: REQUEST_NICK
- * - client sends: nickname
- * - server ack: NICK_ACCEPTED|nick or NICK_ASSIGNED|nick
- * - server sends text: FROM|sender|text
- * - server sends file: FILE|sender|filename|base64
- */
-public class ClientGUI extends JFrame {
-    private final JTextArea chatArea = new JTextArea();
-    private final JTextField nickField = new JTextField("user", 12);
-    private final JButton connectBtn = new JButton("Connect");
-    private final JTextField inputField = new JTextField(30);
-    private final JButton sendBtn = new JButton("Send");
-
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
-    private volatile boolean connected = false;
-    private final SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
-
-    public ClientGUI() {
-        super("Chat Client");
-        setSize(650, 500);
-        setLocationRelativeTo(null);
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        initLayout();
-
-        connectBtn.addActionListener(e -> connect());
-        sendBtn.addActionListener(e -> send());
-        inputField.addActionListener(e -> send());
-    }
-
-    private void initLayout() {
-        JPanel top = new JPanel();
-        top.add(new JLabel("Nick:"));
-        top.add(nickField);
-        top.add(connectBtn);
-
-        chatArea.setEditable(false);
-        JScrollPane sc = new JScrollPane(chatArea);
-
-        JPanel bottom = new JPanel();
-        bottom.add(inputField);
-        bottom.add(sendBtn);
-
-        getContentPane().add(top, BorderLayout.NORTH);
-        getContentPane().add(sc, BorderLayout.CENTER);
-        getContentPane().add(bottom, BorderLayout.SOUTH);
-    }
-
-    private void connect() {
-        if (connected) return;
-        try {
-            socket = new Socket("127.0.0.1", Server.PORT);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
-
-            // start reader thread
-            new Thread(this::readLoop).start();
-
-            connected = true;
-            connectBtn.setEnabled(false);
-            sendBtn.setEnabled(true);
-            chatArea.append("[" + sdf.format(new Date()) + "] Connected to server\n");
-        } catch (IOException ex) {
-            JOptionPane.showMessageDialog(this, "Cannot connect: " + ex.getMessage());
-        }
-    }
-
-    private void readLoop() {
-        try {
-            String line;
-            while ((line = in.readLine()) != null) {
-                if ("REQUEST_NICK".equals(line)) {
-                    String nick = nickField.getText().trim();
-                    if (nick.isEmpty()) nick = "Guest";
-                    out.println(nick);
-                } else if (line.startsWith("NICK_ASSIGNED|") || line.startsWith("NICK_ACCEPTED|")) {
-                    String[] p = line.split("\\|", 2);
-                    if (p.length == 2) {
-                        final String assignedNick = p[1];
-                        SwingUtilities.invokeLater(() -> nickField.setText(assignedNick));
-                    }
-                    chatArea.append("[Server] Nick confirmed: " + p[1] + "\n");
-                } else if (line.startsWith("FROM|")) {
-                    String[] parts = line.split("\\|", 3);
-                    if (parts.length == 3) {
-                        String sender = parts[1];
-                        String text = parts[2];
-                        chatArea.append("[" + sdf.format(new Date()) + "] " + sender + ": " + text + "\n");
-                        if ("admin".equalsIgnoreCase(sender)) {
-                            SwingUtilities.invokeLater(() -> {
-                                JOptionPane.showMessageDialog(this, "New message from admin: " + text);
-                            });
-                        }
-                    }
-                } else if (line.startsWith("FILE|")) {
-                    String[] p = line.split("\\|", 4);
-                    if (p.length == 4) {
-                        handleIncomingFile(p[1], p[2], p[3]);
-                    }
-                } else {
-                    chatArea.append("[Server] " + line + "\n");
-                }
-            }
-        } catch (IOException ex) {
-        chatArea.append("Lost connection to server\n");
-        } finally {
-        closeQuiet();
-        }
-    }
-
-
-    private void handleIncomingFile(String sender, String filename, String b64) {
-        try {
-            byte[] bytes = Base64.getDecoder().decode(b64);
-            // ask user where to save
-            SwingUtilities.invokeLater(() -> {
-                int r = JOptionPane.showConfirmDialog(this, sender + " sent file " + filename + ". Save?", "File received", JOptionPane.YES_NO_OPTION);
-                if (r == JOptionPane.YES_OPTION) {
-                    JFileChooser chooser = new JFileChooser();
-                    chooser.setSelectedFile(new File(filename));
-                    int ch = chooser.showSaveDialog(this);
-                    if (ch == JFileChooser.APPROVE_OPTION) {
-                        File outFile = chooser.getSelectedFile();
-                        try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                            fos.write(bytes);
-                            chatArea.append("[" + sdf.format(new Date()) + "] Received file saved: " + outFile.getAbsolutePath() + "\n");
-                        } catch (IOException ex) {
-                            chatArea.append("Error saving file: " + ex.getMessage() + "\n");
-                        }
-                    }
-                } else {
-                    chatArea.append("Declined file: " + filename + "\n");
-                }
-            });
-        } catch (Exception ex) {
-            chatArea.append("Error decoding file: " + ex.getMessage() + "\n");
-        }
-    }
-
-    private void send() {
-        if (!connected) return;
-        String txt = inputField.getText().trim();
-        if (txt.isEmpty()) return;
-        out.println(txt);
-        inputField.setText("");
-    }
-
-    private void closeQuiet() {
-        connected = false;
-        try { if (in != null) in.close(); } catch (Exception ignored) {}
-        try { if (out != null) out.close(); } catch (Exception ignored) {}
-        try { if (socket != null && !socket.isClosed()) socket.close(); } catch (Exception ignored) {}
-        SwingUtilities.invokeLater(() -> {
-            connectBtn.setEnabled(true);
-            sendBtn.setEnabled(false);
-        });
-    }
-
-    public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> {
-            ClientGUI c = new ClientGUI();
-            c.setVisible(true);
-        });
-    }
-}
+package DETAI1;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Client GUI: connect to server, exchange messages, receive files.
+ * Protocol:
+ * - server: REQUEST_NICK
+ * - client sends: HELLO|proto=2|caps=chunk,history|nick=nickname (older clients: just the nickname)
+ * - caps=deflate: the server may compress frames; WireReader inflates them (flag bit in the header)
+ * - server ack: NICK_ACCEPTED|nick|proto=N or NICK_ASSIGNED|nick|proto=N
+ * - or NICK_REJECTED|reason when no nick can be granted now (cluster unreachable); the server closes
+ * - after the ack, proto=2 switches both directions to binary frames (see Frame)
+ * - server sends text: FROM|sender|text
+ * - server sends file: FILE|sender|filename|base64
+ * - server sends large file: FILESTREAM|sender|filename|size then raw bytes,
+ *   or (caps=chunk) CHUNKED / CHUNK / CHUNK_END, resumed with RESUME|id|offset after a reconnect
+ * - history (caps=history): HISTORY_LINE|time|from|text ... HISTORY_END|n, replayed after the ack
+ *   and in answer to HISTORY|beforeTime|count when the view is scrolled to the top
+ * - caps=filecache: files come as FILEOFFER|id|sender|filename|size|sha256 first; the client answers
+ *   HAVE|id and takes its cached copy (see FileReceiver), or WANT|id and the file follows
+ * - sessions (caps=resume): the ack carries session=token; the client counts what it handled since
+ *   and sends ACK|count every few messages / seconds. Connecting again with session=token|ack=count
+ *   keeps the nick and gets only what was missed (ack ...|resumed=n) instead of the history;
+ *   the replay includes unfinished chunked files, so RESUME|id|offset is only sent for a new session
+ * Incoming files are streamed to a temp file (see FileReceiver); the user saves or discards it afterwards.
+ */
+public class ClientGUI extends JFrame {
+    private final ChatView chatView = new ChatView();
+    private final JTextField nickField = new JTextField("user", 12);
+    private final JButton connectBtn = new JButton("Connect");
+    private final JTextField inputField = new JTextField(30);
+    private final JButton sendBtn = new JButton("Send");
+    private final JProgressBar transferBar = new JProgressBar(0, 1000);
+    private final JLabel transferLabel = new JLabel(" ");
+    private final FileReceiver receiver = new FileReceiver(this::showTransferProgress);
+
+    private Socket socket;
+    private WireReader in;
+    private OutputStream out;
+    private volatile int proto = Frame.PROTO_TEXT; // switched by the server's ack
+    private volatile boolean connected = false;
+    private final SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
+    private final SimpleDateFormat historyFormat = new SimpleDateFormat("dd/MM HH:mm");
+    // pending history page (reader thread fills it, see requestHistory)
+    private volatile Consumer<List<ChatView.Line>> historyDone;
+    private final List<ChatView.Line> historyPage = new ArrayList<>();
+
+    // session (see Sessions): token from the last ack, messages handled since, last count acked
+    private volatile String sessionToken;
+    private volatile long received, acked;
+    private volatile boolean counting; // after the ack: everything the server sends is numbered
+
+    public ClientGUI() {
+        super("Chat Client");
+        setSize(650, 500);
+        setLocationRelativeTo(null);
+        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        initLayout();
+
+        connectBtn.addActionListener(e -> connect());
+        sendBtn.addActionListener(e -> send());
+        inputField.addActionListener(e -> send());
+        // the count goes to the server after a pause as well, not only every ACK_EVERY messages
+        new Timer(2000, e -> sendAck()).start();
+        inputField.setToolTipText("/msg nick text, /all text, /join room, /leave room, /room room text; other text goes to the admin");
+    }
+
+    private void initLayout() {
+        JPanel top = new JPanel();
+        top.add(new JLabel("Nick:"));
+        top.add(nickField);
+        top.add(connectBtn);
+
+        // scrolled to the top, the view asks the server for older messages
+        chatView.setPager(this::requestHistory);
+
+        JPanel input = new JPanel();
+        input.add(inputField);
+        input.add(sendBtn);
+        JPanel transfer = new JPanel(new BorderLayout(5, 0));
+        transferBar.setStringPainted(true);
+        transferBar.setString("");
+        transfer.add(transferBar, BorderLayout.CENTER);
+        transfer.add(transferLabel, BorderLayout.EAST);
+        JPanel bottom = new JPanel(new BorderLayout());
+        bottom.add(input, BorderLayout.CENTER);
+        bottom.add(transfer, BorderLayout.SOUTH);
+
+        getContentPane().add(top, BorderLayout.NORTH);
+        getContentPane().add(chatView, BorderLayout.CENTER);
+        getContentPane().add(bottom, BorderLayout.SOUTH);
+    }
+
+    private void connect() {
+        if (connected) return;
+        try {
+            socket = new Socket("127.0.0.1", Server.PORT);
+            in = new WireReader(new BufferedInputStream(socket.getInputStream()));
+            out = socket.getOutputStream();
+            proto = Frame.PROTO_TEXT;
+            counting = false;
+
+            // start reader thread
+            new Thread(this::readLoop).start();
+
+            connected = true;
+            connectBtn.setEnabled(false);
+            sendBtn.setEnabled(true);
+            chatView.appendLater("[" + sdf.format(new Date()) + "] Connected to server");
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, "Cannot connect: " + ex.getMessage());
+        }
+    }
+
+    private void readLoop() {
+        try {
+            // handshake (and everything from an old server) is text; the ack may switch to frames
+            String line;
+            while (proto == Frame.PROTO_TEXT && (line = in.readLine()) != null) {
+                boolean numbered = counting;
+                handleLine(line);
+                if (numbered) handled();
+            }
+            if (proto >= Frame.PROTO_BINARY) {
+                int type;
+                while ((type = in.readFrame()) != -1) {
+                    handleFrame(type);
+                    handled();
+                }
+            }
+        } catch (IOException ex) {
+        chatView.appendLater("Lost connection to server");
+        } finally {
+        closeQuiet();
+        }
+    }
+
+    private void handleLine(String line) throws IOException {
+        if ("REQUEST_NICK".equals(line)) {
+            String nick = nickField.getText().trim().replace('|', '_');
+            if (nick.isEmpty()) nick = "Guest";
+            String token = sessionToken;
+            sendLine("HELLO|proto=" + Frame.PROTO_BINARY + "|caps=" + ChunkedTransfers.CAPABILITY + "," + HistoryStore.CAPABILITY + "," + IdleWheel.CAPABILITY + "," + FrameDeflater.CAPABILITY + "," + Sessions.CAPABILITY + "," + FileCache.CAPABILITY
+                    + "|nick=" + nick + (token != null ? "|session=" + token + "|ack=" + received : ""));
+        } else if (line.startsWith("NICK_REJECTED|")) {
+            chatView.appendLater("[Server] Nick rejected: " + line.substring("NICK_REJECTED|".length()));
+        } else if (line.startsWith("NICK_ASSIGNED|") || line.startsWith("NICK_ACCEPTED|")) {
+            String[] p = line.split("\\|");
+            if (p.length >= 2) {
+                final String assignedNick = p[1];
+                SwingUtilities.invokeLater(() -> nickField.setText(assignedNick));
+                chatView.appendLater("[Server] Nick confirmed: " + p[1]);
+            }
+            String resumed = null;
+            sessionToken = null;
+            for (int i = 2; i < p.length; i++) {
+                if (p[i].startsWith("proto=")) proto = Integer.parseInt(p[i].substring("proto=".length()));
+                else if (p[i].startsWith("session=")) sessionToken = p[i].substring("session=".length());
+                else if (p[i].startsWith("resumed=")) resumed = p[i].substring("resumed=".length());
+            }
+            if (resumed != null) {
+                chatView.appendLater("[Server] Session resumed, " + resumed + " missed message(s) follow");
+            } else {
+                received = 0; // a new session counts from here
+            }
+            acked = received;
+            counting = true;
+            // pick up chunked files cut off by an earlier disconnect. A resumed session replays the
+            // chunks it still owes, so RESUME there would send the rest of the file twice
+            if (resumed == null) for (Map.Entry<String, Long> e : receiver.incompleteTransfers().entrySet()) {
+                chatView.appendLater("[Server] Resuming " + receiver.chunkedFilename(e.getKey()) + " at " + (e.getValue() / 1024) + " KB");
+                sendLine("RESUME|" + e.getKey() + "|" + e.getValue());
+            }
+        } else if (line.startsWith("FROM|")) {
+            String[] parts = line.split("\\|", 3);
+            if (parts.length == 3) showMessage(parts[1], parts[2]);
+        } else if (line.startsWith("FILE|")) {
+            String[] p = line.split("\\|", 4);
+            if (p.length == 4) {
+                try {
+                    handleIncomingFile(p[1], p[2], receiver.receiveBase64(p[3], p[2]));
+                } catch (IOException ex) {
+                    chatView.appendLater("Error decoding file: " + ex.getMessage());
+                }
+            }
+        } else if (line.startsWith("FILESTREAM|")) {
+            String[] p = line.split("\\|", 4);
+            if (p.length == 4) {
+                handleIncomingFile(p[1], p[2], receiver.receiveStream(in.stream(), p[2], Long.parseLong(p[3].trim())));
+            }
+        } else if (line.startsWith("HISTORY_LINE|")) {
+            String[] p = line.split("\\|", 4);
+            if (p.length == 4) {
+                long time = Long.parseLong(p[1]);
+                ChatView.Line l = new ChatView.Line(time, "[" + historyFormat.format(new Date(time)) + "] " + p[2] + ": " + p[3]);
+                if (historyDone != null) historyPage.add(l);
+                else chatView.appendLater(l.time, l.text); // replay after connecting
+            }
+        } else if (line.startsWith("HISTORY_END|")) {
+            Consumer<List<ChatView.Line>> done = historyDone;
+            historyDone = null;
+            if (done != null) done.accept(new ArrayList<>(historyPage));
+            historyPage.clear();
+        } else if (line.startsWith("FILEOFFER|")) {
+            // FILEOFFER|id|sender|filename|size|sha256: already here from an earlier transfer?
+            String[] p = line.split("\\|");
+            if (p.length == 6) {
+                File copy = receiver.cached(p[5], p[3]);
+                sendLine((copy != null ? "HAVE|" : "WANT|") + p[1]);
+                if (copy != null) offerToSave(p[2], p[3], copy);
+            }
+        } else if (line.startsWith("CHUNKED|")) {
+            String[] p = line.split("\\|");
+            if (p.length == 6) {
+                receiver.chunkedStart(p[1], p[2], p[3], Long.parseLong(p[4]), Long.parseLong(p[5]));
+            }
+        } else if (line.startsWith("CHUNK|")) {
+            // CHUNK|id|offset|length|crc32c, then length raw bytes
+            String[] p = line.split("\\|");
+            if (p.length == 5) {
+                receiver.receiveChunk(in.stream(), p[1], Long.parseLong(p[2]), Long.parseLong(p[3]), Long.parseLong(p[4]));
+            }
+        } else if (line.startsWith("CHUNK_END|")) {
+            String id = line.substring("CHUNK_END|".length());
+            String sender = receiver.chunkedSender(id), filename = receiver.chunkedFilename(id);
+            File done = receiver.chunkedEnd(id);
+            if (done != null) {
+                sendLine("CHUNK_DONE|" + id);
+                handleIncomingFile(sender, filename, done);
+            } else if (receiver.resumeOffset(id) >= 0) {
+                sendLine("RESUME|" + id + "|" + receiver.resumeOffset(id));
+            } else {
+                chatView.appendLater("Transfer of " + filename + " failed, giving up");
+            }
+        } else if (line.startsWith("PING|")) {
+            sendLine("PONG|" + line.substring("PING|".length()));
+        } else if (line.startsWith("TO_ERROR|")) {
+            String[] p = line.split("\\|", 3);
+            if (p.length == 3) chatView.appendLater("[Server] Message to " + p[1] + " not delivered: " + p[2]);
+        } else if (line.startsWith("ROOM|")) {
+            String[] p = line.split("\\|", 4);
+            if (p.length == 4) chatView.appendLater("[" + sdf.format(new Date()) + "] #" + p[1] + " " + p[2] + ": " + p[3]);
+        } else if (line.startsWith("CHUNK_GONE|")) {
+            String id = line.substring("CHUNK_GONE|".length());
+            chatView.appendLater("[Server] Transfer of " + receiver.chunkedFilename(id) + " expired");
+            receiver.chunkedGone(id);
+        } else {
+            chatView.appendLater("[Server] " + line);
+        }
+    }
+
+    private void handleFrame(int type) throws IOException {
+        switch (type) {
+            case Frame.FROM: {
+                String sender = in.str16();
+                showMessage(sender, in.restString());
+                break;
+            }
+            case Frame.FILE: {
+                String sender = in.str16();
+                String filename = in.str16();
+                handleIncomingFile(sender, filename, receiver.receiveFrame(in, filename));
+                break;
+            }
+            case Frame.FILESTREAM: {
+                String sender = in.str16();
+                String filename = in.str16();
+                handleIncomingFile(sender, filename, receiver.receiveStream(in.stream(), filename, in.int64()));
+                break;
+            }
+            case Frame.LINE:
+                handleLine(in.restString());
+                break;
+            default:
+                // unknown frame type from a newer server: skip it
+        }
+    }
+
+    private void showMessage(String sender, String text) {
+        chatView.appendLater("[" + sdf.format(new Date()) + "] " + sender + ": " + text);
+        if ("admin".equalsIgnoreCase(sender)) {
+            SwingUtilities.invokeLater(() -> {
+                JOptionPane.showMessageDialog(this, "New message from admin: " + text);
+            });
+        }
+    }
+
+    // called from the reader thread, throttled by FileReceiver
+    private void showTransferProgress(String filename, long received, long total, double bytesPerSec) {
+        SwingUtilities.invokeLater(() -> {
+            transferBar.setValue(total > 0 ? (int) (received * 1000 / total) : 1000);
+            transferBar.setString(filename + "  " + (received / 1024) + " / " + (total / 1024) + " KB");
+            transferLabel.setText(bytesPerSec > 0 ? String.format("%.1f MB/s", bytesPerSec / (1024 * 1024)) : " ");
+        });
+    }
+
+    // file already complete in tmp: cached for a resend, then offered to the user (off the
+    // reader thread, which goes on reading meanwhile)
+    private void handleIncomingFile(String sender, String filename, File tmp) {
+        receiver.remember(tmp, () -> offerToSave(sender, filename, tmp));
+    }
+
+    // ask where to keep tmp, otherwise delete it
+    private void offerToSave(String sender, String filename, File tmp) {
+        SwingUtilities.invokeLater(() -> {
+            int r = JOptionPane.showConfirmDialog(this, sender + " sent file " + filename + " (" + tmp.length() + " bytes). Save?", "File received", JOptionPane.YES_NO_OPTION);
+            if (r == JOptionPane.YES_OPTION) {
+                JFileChooser chooser = new JFileChooser();
+                chooser.setSelectedFile(new File(filename));
+                int ch = chooser.showSaveDialog(this);
+                if (ch == JFileChooser.APPROVE_OPTION) {
+                    File outFile = chooser.getSelectedFile();
+                    try {
+                        Files.move(tmp.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                        chatView.appendLater("[" + sdf.format(new Date()) + "] Received file saved: " + outFile.getAbsolutePath());
+                    } catch (IOException ex) {
+                        chatView.appendLater("Error saving file: " + ex.getMessage());
+                    }
+                    return;
+                }
+            } else {
+                chatView.appendLater("Declined file: " + filename);
+            }
+            tmp.delete();
+        });
+    }
+
+    private void send() {
+        if (!connected) return;
+        String txt = inputField.getText().trim();
+        if (txt.isEmpty()) return;
+        try {
+            sendLine(toProtocol(txt));
+        } catch (IOException ex) {
+            chatView.appendLater("Send failed: " + ex.getMessage());
+        }
+        inputField.setText("");
+    }
+
+    // /msg nick text, /all text, /join room, /leave room, /room room text; anything else goes to the admin
+    private String toProtocol(String txt) {
+        String[] p = txt.split("\\s+", 3);
+        switch (p[0]) {
+            case "/msg":
+                if (p.length < 3) break;
+                chatView.append("[" + sdf.format(new Date()) + "] me -> " + p[1] + ": " + p[2]);
+                return "TO|" + p[1] + "|" + p[2];
+            case "/all":
+                return p.length < 2 ? txt : "ALL|" + txt.substring(p[0].length()).trim();
+            case "/join":
+            case "/leave":
+                return p.length < 2 ? txt : p[0].substring(1).toUpperCase() + "|" + p[1];
+            case "/room":
+                return p.length < 3 ? txt : "ROOM|" + p[1] + "|" + p[2];
+        }
+        return txt;
+    }
+
+    // ChatView.Pager: the HISTORY_LINEs up to HISTORY_END are the page
+    private void requestHistory(long before, int count, Consumer<List<ChatView.Line>> done) {
+        if (!connected || historyDone != null) {
+            done.accept(Collections.emptyList());
+            return;
+        }
+        historyDone = done;
+        try {
+            sendLine("HISTORY|" + before + "|" + count);
+        } catch (IOException ex) {
+            historyDone = null;
+            done.accept(Collections.emptyList());
+        }
+    }
+
+    // one more server message fully handled (a file once its bytes are in)
+    private void handled() {
+        received++;
+        if (received - acked >= Sessions.ACK_EVERY) sendAck();
+    }
+
+    // ACK|count if the server has not seen the count yet
+    private void sendAck() {
+        long n = received;
+        if (!connected || !counting || sessionToken == null || n == acked) return;
+        try {
+            sendLine("ACK|" + n);
+            acked = n;
+        } catch (IOException ex) {
+            // the read loop notices the broken connection
+        }
+    }
+
+    // one line to the server: text line or LINE frame depending on the negotiated protocol
+    private synchronized void sendLine(String line) throws IOException {
+        out.write(Frame.text(line).bytes(proto));
+        out.flush();
+    }
+
+    private void closeQuiet() {
+        connected = false;
+        counting = false;
+        try { if (socket != null && !socket.isClosed()) socket.close(); } catch (Exception ignored) {}
+        try { if (in != null) in.stream().close(); } catch (Exception ignored) {}
+        try { if (out != null) out.close(); } catch (Exception ignored) {}
+        SwingUtilities.invokeLater(() -> {
+            connectBtn.setEnabled(true);
+            sendBtn.setEnabled(false);
+        });
+    }
+
+    public static void main(String[] args) {
+        SwingUtilities.invokeLater(() -> {
+            ClientGUI c = new ClientGUI();
+            c.setVisible(true);
+        });
+    }
+}
@@ -0,0 +1,416 @@
+package DETAI1;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Links several Server processes into one chat: shared presence, cluster-wide nicks and
+ * message routing to the node that holds the target connection.
+ * - full mesh over TCP: every node dials every peer and only writes on the sockets it dialed
+ *   (and only reads on the ones it accepted), so there is exactly one writer per direction
+ * - each outgoing link has a queue; its writer sends everything queued as one batch frame
+ *   [count][message...] with a single flush
+ * - presence: JOIN / LEAVE per nick, and a SNAPSHOT of local nicks on every (re)connect;
+ *   a peer whose socket closes loses all its nicks
+ * - a nick is granted by one arbiter node, picked by rendezvous hashing over the reachable
+ *   nodes, which checks its local clients, the presence table and claims in flight; if the
+ *   arbiter does not answer within CLAIM_TIMEOUT_MS the claim fails (UNAVAILABLE), a nick is
+ *   never granted without it. A claim that is not used is released on every node (RELEASE)
+ * - sendToClient / broadcast / sendToRoom / kickClient are relayed as SEND / BROADCAST /
+ *   ROOM / KICK; files are not relayed
+ */
+final class ClusterNode {
+    private static final long CLAIM_TIMEOUT_MS = 2000;
+    private static final long RECONNECT_MS = 1000;
+    private static final int MAX_BATCH = 1024;
+
+    // message types
+    private static final byte HELLO = 0, SNAPSHOT = 1, JOIN = 2, LEAVE = 3, CLAIM = 4, CLAIM_REPLY = 5,
+            SEND = 6, BROADCAST = 7, KICK = 8, ROOM = 9, RELEASE = 10;
+
+    // answer to claim
+    enum Claim { GRANTED, TAKEN, UNAVAILABLE }
+
+    final String nodeId;
+    private final ServerSocket serverSocket;
+    private final List<Link> links = new CopyOnWriteArrayList<>();
+    private final Set<Socket> incoming = ConcurrentHashMap.newKeySet();
+    private final Map<String, Link> linksByNode = new ConcurrentHashMap<>();
+    // remote nick -> node holding its connection
+    private final Map<String, String> presence = new ConcurrentHashMap<>();
+    // nicks this node granted as arbiter, not yet seen in presence: nick -> node
+    private final Map<String, String> claims = new ConcurrentHashMap<>();
+    private final Map<Long, CompletableFuture<Boolean>> pendingClaims = new ConcurrentHashMap<>();
+    private final AtomicLong claimIds = new AtomicLong();
+    private volatile boolean running = true;
+
+    private ClusterNode(String nodeId, ServerSocket serverSocket) {
+        this.nodeId = nodeId;
+        this.serverSocket = serverSocket;
+    }
+
+    // listens on clusterPort and keeps dialing every peer (host:port) until stop()
+    static ClusterNode start(String nodeId, int clusterPort, List<String> peers) throws IOException {
+        ServerSocket ss = new ServerSocket();
+        ss.setReuseAddress(true);
+        ss.bind(new InetSocketAddress(clusterPort));
+        ClusterNode node = new ClusterNode(nodeId, ss);
+        daemon(node::acceptLoop, "cluster-accept").start();
+        for (String peer : peers) {
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) throw new IOException("peer must be host:port: " + peer);
+            Link link = node.new Link(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+            node.links.add(link);
+            daemon(link::run, "cluster-link-" + peer).start();
+        }
+        Log.info("cluster", null, null, "node " + nodeId + " on port " + clusterPort + ", peers " + peers);
+        return node;
+    }
+
+    void stop() {
+        running = false;
+        try { serverSocket.close(); } catch (IOException ignored) {}
+        for (Link l : links) l.close();
+        for (Socket s : incoming) {
+            try { s.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // ---- used by Server ----
+
+    // asks the arbiter for nick, waiting up to CLAIM_TIMEOUT_MS: not on an NIO loop thread
+    Claim claim(String nick) {
+        String arbiter = arbiterFor(nick);
+        if (arbiter.equals(nodeId)) return grant(nick, nodeId) ? Claim.GRANTED : Claim.TAKEN;
+        Link link = linksByNode.get(arbiter);
+        if (link == null) return Claim.UNAVAILABLE; // went down meanwhile
+        long id = claimIds.incrementAndGet();
+        CompletableFuture<Boolean> reply = new CompletableFuture<>();
+        pendingClaims.put(id, reply);
+        try {
+            if (!link.send(new Msg(CLAIM, Long.toString(id), nick))) return Claim.UNAVAILABLE;
+            return reply.get(CLAIM_TIMEOUT_MS, TimeUnit.MILLISECONDS) ? Claim.GRANTED : Claim.TAKEN;
+        } catch (TimeoutException ex) {
+            Log.warn("cluster_claim_timeout", nick, null, "no claim answer from " + arbiter);
+            release(nick); // the arbiter may still grant it
+            return Claim.UNAVAILABLE;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return Claim.UNAVAILABLE;
+        } catch (ExecutionException ex) {
+            return Claim.UNAVAILABLE;
+        } finally {
+            pendingClaims.remove(id);
+        }
+    }
+
+    // a claimed nick was not used after all: dropped here and by whichever node granted it
+    void release(String nick) {
+        claims.remove(nick, nodeId);
+        sendAll(new Msg(RELEASE, nick));
+    }
+
+    void joined(String nick) {
+        claims.remove(nick, nodeId);
+        sendAll(new Msg(JOIN, nick));
+    }
+
+    void left(String nick) {
+        claims.remove(nick, nodeId);
+        sendAll(new Msg(LEAVE, nick));
+    }
+
+    Set<String> remoteNicks() {
+        return new HashSet<>(presence.keySet());
+    }
+
+    // false if nick is not on a reachable node
+    boolean send(String nick, String sender, String text) {
+        Link link = ownerLink(nick);
+        return link != null && link.send(new Msg(SEND, nick, sender, text));
+    }
+
+    void broadcast(String sender, String text) {
+        sendAll(new Msg(BROADCAST, sender, text));
+    }
+
+    // every node delivers to its own members of room
+    void room(String room, String sender, String text) {
+        sendAll(new Msg(ROOM, room, sender, text));
+    }
+
+    boolean kick(String nick, String reason) {
+        Link link = ownerLink(nick);
+        return link != null && link.send(new Msg(KICK, nick, reason));
+    }
+
+    // ---- arbiter ----
+
+    // rendezvous hashing: highest hash(nick, node) among this node and the reachable peers
+    private String arbiterFor(String nick) {
+        String best = nodeId;
+        int bestHash = mix(nick, nodeId);
+        for (String node : linksByNode.keySet()) {
+            int h = mix(nick, node);
+            if (h > bestHash || (h == bestHash && node.compareTo(best) > 0)) {
+                best = node;
+                bestHash = h;
+            }
+        }
+        return best;
+    }
+
+    private static int mix(String nick, String node) {
+        int h = (nick + "\u0000" + node).hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    // arbiter check: free if nobody else holds or has been granted it
+    private synchronized boolean grant(String nick, String node) {
+        if (!node.equals(nodeId) && Server.isLocalClient(nick)) return false;
+        String holder = presence.get(nick);
+        if (holder != null && !holder.equals(node)) return false;
+        String claimed = claims.get(nick);
+        if (claimed != null && !claimed.equals(node)) return false;
+        claims.put(nick, node);
+        return true;
+    }
+
+    // ---- incoming ----
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket s = serverSocket.accept();
+                daemon(() -> readLoop(s), "cluster-in-" + s.getRemoteSocketAddress()).start();
+            } catch (IOException ex) {
+                if (running) Log.warn("cluster_error", null, null, "accept failed: " + ex.getMessage());
+            }
+        }
+    }
+
+    private void readLoop(Socket s) {
+        String peer = null;
+        incoming.add(s);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(s.getOutputStream())) {
+            Msg hello = Msg.read(in);
+            if (hello.type != HELLO) throw new IOException("expected HELLO");
+            peer = hello.f[0];
+            new Msg(HELLO, nodeId).write(out);
+            out.flush();
+            Log.info("cluster_link", null, s.getRemoteSocketAddress(), "node " + peer + " connected");
+            while (running) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) handle(peer, Msg.read(in));
+            }
+        } catch (EOFException | SocketException ex) {
+            // peer went away
+        } catch (IOException ex) {
+            Log.warn("cluster_error", null, s.getRemoteSocketAddress(), "link from " + peer + " failed: " + ex.getMessage());
+        } finally {
+            incoming.remove(s);
+            if (peer != null) peerDown(peer);
+        }
+    }
+
+    private void handle(String peer, Msg m) {
+        switch (m.type) {
+            case SNAPSHOT: {
+                Set<String> nicks = new HashSet<>(Arrays.asList(m.f));
+                for (Map.Entry<String, String> e : presence.entrySet()) {
+                    if (e.getValue().equals(peer) && !nicks.contains(e.getKey())) remoteLeft(e.getKey(), peer);
+                }
+                for (String nick : nicks) remoteJoined(nick, peer);
+                break;
+            }
+            case JOIN:
+                remoteJoined(m.f[0], peer);
+                break;
+            case LEAVE:
+                remoteLeft(m.f[0], peer);
+                break;
+            case CLAIM: {
+                boolean ok = grant(m.f[1], peer);
+                Link back = linksByNode.get(peer);
+                if (back != null) back.send(new Msg(CLAIM_REPLY, m.f[0], ok ? "1" : "0"));
+                break;
+            }
+            case RELEASE:
+                claims.remove(m.f[0], peer);
+                break;
+            case CLAIM_REPLY: {
+                CompletableFuture<Boolean> f = pendingClaims.get(Long.parseLong(m.f[0]));
+                if (f != null) f.complete("1".equals(m.f[1]));
+                break;
+            }
+            case SEND:
+                Server.deliverLocal(m.f[0], m.f[1], m.f[2]);
+                break;
+            case BROADCAST:
+                Server.broadcastLocal(m.f[0], m.f[1]);
+                break;
+            case KICK:
+                Server.kickLocal(m.f[0], m.f[1]);
+                break;
+            case ROOM:
+                Server.roomLocal(m.f[0], m.f[1], m.f[2]);
+                break;
+            default:
+                // unknown type from a newer node: ignore
+        }
+    }
+
+    private void remoteJoined(String nick, String peer) {
+        claims.remove(nick, peer);
+        if (Server.isLocalClient(nick)) {
+            Log.warn("cluster_conflict", nick, null, "connected both here and on " + peer);
+        }
+        if (!peer.equals(presence.put(nick, peer))) AdminMessageHandler.clientJoined(nick);
+    }
+
+    private void remoteLeft(String nick, String peer) {
+        claims.remove(nick, peer);
+        if (presence.remove(nick, peer)) AdminMessageHandler.clientLeft(nick);
+    }
+
+    private void peerDown(String peer) {
+        Log.info("cluster_link", null, null, "node " + peer + " disconnected");
+        claims.values().removeIf(peer::equals);
+        for (Map.Entry<String, String> e : presence.entrySet()) {
+            if (e.getValue().equals(peer)) remoteLeft(e.getKey(), peer);
+        }
+    }
+
+    // ---- outgoing ----
+
+    private Link ownerLink(String nick) {
+        String owner = presence.get(nick);
+        return owner == null ? null : linksByNode.get(owner);
+    }
+
+    private void sendAll(Msg m) {
+        for (Link l : links) l.send(m);
+    }
+
+    // our side of one peer: dials, says HELLO, then writes batches until the socket fails
+    private final class Link {
+        final String host;
+        final int port;
+        private final BlockingQueue<Msg> queue = new LinkedBlockingQueue<>();
+        private volatile Socket socket;
+        private volatile String peer;
+
+        Link(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        // queued if the link is up, dropped otherwise (the next SNAPSHOT resyncs presence)
+        boolean send(Msg m) {
+            if (peer == null) return false;
+            return queue.offer(m);
+        }
+
+        void run() {
+            List<Msg> batch = new ArrayList<>();
+            while (running) {
+                try (Socket s = new Socket()) {
+                    s.connect(new InetSocketAddress(host, port), (int) RECONNECT_MS);
+                    s.setTcpNoDelay(true);
+                    socket = s;
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 * 1024));
+                    new Msg(HELLO, nodeId).write(out);
+                    out.flush();
+                    Msg hello = Msg.read(new DataInputStream(s.getInputStream()));
+                    if (hello.type != HELLO) throw new IOException("expected HELLO");
+                    queue.clear();
+                    peer = hello.f[0];
+                    linksByNode.put(peer, this);
+                    // taken after the link accepts sends: a JOIN / LEAVE racing with it is in both
+                    queue.offer(new Msg(SNAPSHOT, Server.getLocalClientNames().toArray(new String[0])));
+                    while (running) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                        out.writeInt(batch.size());
+                        for (Msg m : batch) m.write(out);
+                        out.flush();
+                        batch.clear();
+                    }
+                } catch (IOException ex) {
+                    // not up yet, or gone: retry
+                } catch (InterruptedException ex) {
+                    return;
+                } finally {
+                    if (peer != null) linksByNode.remove(peer, this);
+                    peer = null;
+                    socket = null;
+                    batch.clear();
+                }
+                sleepQuietly(RECONNECT_MS);
+            }
+        }
+
+        void close() {
+            Socket s = socket;
+            try { if (s != null) s.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // one bus message: a type and string fields
+    private static final class Msg {
+        final byte type;
+        final String[] f;
+
+        Msg(byte type, String... fields) {
+            this.type = type;
+            this.f = fields;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(type);
+            out.writeShort(f.length);
+            for (String s : f) {
+                byte[] b = s.getBytes("UTF-8");
+                out.writeInt(b.length);
+                out.write(b);
+            }
+        }
+
+        static Msg read(DataInputStream in) throws IOException {
+            byte type = in.readByte();
+            String[] f = new String[in.readUnsignedShort()];
+            for (int i = 0; i < f.length; i++) {
+                int n = in.readInt();
+                if (n < 0 || n > WireReader.MAX_FRAME_LENGTH) throw new IOException("bad field length " + n);
+                byte[] b = new byte[n];
+                in.readFully(b);
+                f[i] = new String(b, "UTF-8");
+            }
+            return new Msg(type, f);
+        }
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    private static void sleepQuietly(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package DETAI1;
+
+import java.util.List;
+
+/**
+ * A connected client as seen by Server, independent of the IO model serving it
+ * (thread-per-client ClientHandler or the NioServer selector loops).
+ */
+interface Connection {
+    long getLastActive();
+
+    // enqueue an encoded frame; the same Frame may be queued on many connections
+    void enqueue(Frame frame);
+
+    // enqueue a header frame followed by a region of a file (FILESTREAM body, chunk)
+    void enqueueFile(SendQueue.FileBody body);
+
+    // capabilities the client announced in its HELLO (caps=a,b)
+    boolean supports(String capability);
+
+    // depth / bytes / drops of the bounded send queue
+    SendQueue.Stats queueStats();
+
+    void setSendPolicy(SendQueue.Policy policy);
+
+    // the queue is held from registration: backlog (replay, mailbox) is sent first, then what
+    // was queued meanwhile; false if the connection has closed (backlog not taken)
+    boolean release(List<Object> backlog);
+
+    void closeQuiet();
+}
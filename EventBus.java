@@ -0,0 +1,113 @@
+package DETAI1;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server events (joins, leaves, messages) for whoever wants them: admin GUI, history, metrics.
+ * - publish() only queues, so network threads never wait on a subscriber
+ * - one dispatcher thread collects events for WINDOW_MS after the first one and hands each
+ *   subscriber the whole batch, in publish order (the GUI turns a batch into one EDT update)
+ * - a subscriber that throws is logged and keeps its subscription
+ * - if subscribers fall behind, MESSAGE events beyond QUEUE_CAPACITY waiting are dropped
+ *   (counted, see Metrics); JOINED / LEFT always get through, or the client list would stay wrong
+ */
+final class EventBus {
+    enum Type { JOINED, LEFT, MESSAGE }
+
+    static final class Event {
+        final Type type;
+        final long time;
+        final String from, to, text; // JOINED / LEFT: from = nick
+
+        Event(Type type, String from, String to, String text, long time) {
+            this.type = type;
+            this.time = time;
+            this.from = from;
+            this.to = to;
+            this.text = text;
+        }
+    }
+
+    interface Subscriber {
+        // called on the dispatcher thread; batch is read-only
+        void onEvents(List<Event> batch);
+    }
+
+    private static final long WINDOW_MS = Long.getLong("chat.events.windowMs", 50);
+    private static final int QUEUE_CAPACITY = 100_000;
+
+    private static final BlockingQueue<Event> queue = new LinkedBlockingQueue<>(); // bounded by messages
+    private static final AtomicInteger queuedMessages = new AtomicInteger();
+    private static final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private static final AtomicLong dropped = new AtomicLong();
+
+    static {
+        Thread t = new Thread(EventBus::dispatchLoop, "event-bus");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private EventBus() {}
+
+    static void subscribe(Subscriber s) {
+        subscribers.add(s);
+    }
+
+    static void unsubscribe(Subscriber s) {
+        subscribers.remove(s);
+    }
+
+    static void publish(Type type, String from, String to, String text) {
+        publish(type, from, to, text, System.currentTimeMillis());
+    }
+
+    // the same, for something that happened at time (a message keeps the time of its Frame)
+    static void publish(Type type, String from, String to, String text, long time) {
+        if (subscribers.isEmpty()) return;
+        if (type == Type.MESSAGE && queuedMessages.incrementAndGet() > QUEUE_CAPACITY) {
+            queuedMessages.decrementAndGet();
+            if (dropped.incrementAndGet() % 1000 == 1) {
+                Log.warn("event_bus", null, null, "subscribers behind, " + dropped.get() + " message event(s) dropped");
+            }
+            return;
+        }
+        queue.add(new Event(type, from, to, text, time));
+    }
+
+    // MESSAGE events dropped so far
+    static long droppedCount() {
+        return dropped.get();
+    }
+
+    private static void dispatchLoop() {
+        List<Event> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                if (WINDOW_MS > 0) Thread.sleep(WINDOW_MS); // let the rest of the burst arrive
+            } catch (InterruptedException ex) {
+                return;
+            }
+            queue.drainTo(batch);
+            int messages = 0;
+            for (Event e : batch) if (e.type == Type.MESSAGE) messages++;
+            queuedMessages.addAndGet(-messages);
+            List<Event> view = Collections.unmodifiableList(batch);
+            batch = new ArrayList<>();
+            for (Subscriber s : subscribers) {
+                try {
+                    s.onEvents(view);
+                } catch (RuntimeException ex) {
+                    Log.error("event_bus", null, null, "subscriber failed: " + ex);
+                }
+            }
+        }
+    }
+}
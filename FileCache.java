@@ -0,0 +1,353 @@
+package DETAI1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * Content-addressed cache of files the server sends, keyed by SHA-256, so sending the same file
+ * again (or to more clients) does not read and encode it again.
+ * - inline files (sent as FILE frames) keep their bytes and Base64; larger ones the CRC32C of
+ *   each chunk (see ChunkedTransfers), their bodies still go out zero-copy from the file
+ * - a file is recognised by path, length and modification time, so a hit costs no read at all
+ * - LRU under MEMORY_BYTES: inline content that no longer fits is spilled to DIR (raw bytes,
+ *   at most DISK_BYTES, deleted at stop) and read back from there when it is needed again
+ * Clients announcing caps=filecache keep what they received and are asked first:
+ * - FILEOFFER|id|sender|filename|size|sha256 from the server
+ * - HAVE|id: the client already holds that content, nothing is sent;
+ *   WANT|id: the file follows as usual (FILE / FILESTREAM / CHUNKED)
+ * - an offer is answered by the connection it went to, or by its nick's next one (resumed
+ *   session); anyone else's answer is ignored and leaves the offer in place
+ */
+final class FileCache {
+    static final String CAPABILITY = "filecache";
+    static final long MEMORY_BYTES = Long.getLong("chat.fileCache.memoryBytes", 32 * 1024 * 1024);
+    static final long DISK_BYTES = Long.getLong("chat.fileCache.diskBytes", 256 * 1024 * 1024);
+    private static final int MAX_STAMPS = 4096;
+    // how long an offer waits for HAVE / WANT
+    private static final long OFFER_TTL_MS = 10 * 60 * 1000L;
+
+    static final LongAdder hits = new LongAdder();
+    static final LongAdder misses = new LongAdder();
+    static final LongAdder spills = new LongAdder();
+    static final LongAdder skippedBytes = new LongAdder(); // not sent: the client had it (HAVE)
+
+    // what is cached for one content; immutable, so senders keep using it after eviction
+    static final class Content {
+        final String hash;
+        final long size;
+        final byte[] data, base64; // inline files
+        final long[] crcs;         // larger files: CRC32C per chunk of chunkSize
+        final int chunkSize;
+
+        Content(String hash, long size, byte[] data, byte[] base64, long[] crcs, int chunkSize) {
+            this.hash = hash;
+            this.size = size;
+            this.data = data;
+            this.base64 = base64;
+            this.crcs = crcs;
+            this.chunkSize = chunkSize;
+        }
+
+        long cost() {
+            return 64 + (data == null ? 0 : data.length + base64.length) + (crcs == null ? 0 : 8L * crcs.length);
+        }
+
+        boolean fits(boolean inline) {
+            return inline ? data != null : crcs != null && chunkSize == ChunkedTransfers.CHUNK_SIZE;
+        }
+    }
+
+    // cache slot of one hash: the content in memory, or its bytes spilled to disk, or both gone
+    private static final class Entry {
+        Content content;
+        File spill;
+        long spillSize;
+    }
+
+    // a file as last hashed
+    private static final class Stamp {
+        final long length, modified;
+        final String hash;
+
+        Stamp(long length, long modified, String hash) {
+            this.length = length;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    private static final class Offer {
+        final String nick;      // offered to
+        final Connection conn;
+        final String sender;
+        final File file;
+        final Content content;
+        final long created = System.currentTimeMillis();
+
+        Offer(String nick, Connection conn, String sender, File file, Content content) {
+            this.nick = nick;
+            this.conn = conn;
+            this.sender = sender;
+            this.file = file;
+            this.content = content;
+        }
+
+        boolean answerableBy(String nick, Connection c) {
+            return c == conn || (this.nick.equals(nick) && Server.isCurrentConnection(nick, c));
+        }
+    }
+
+    private static final Object lock = new Object();
+    // guarded by lock; access order = LRU first
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private static final LinkedHashMap<String, Stamp> stamps = new LinkedHashMap<String, Stamp>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Stamp> eldest) {
+            return size() > MAX_STAMPS;
+        }
+    };
+    private static long memoryBytes, diskBytes;
+    private static File dir; // null: nothing is spilled, evicted content is dropped
+
+    private static final Map<String, Offer> offers = new ConcurrentHashMap<>();
+    private static final SecureRandom random = new SecureRandom();
+    // hashing reads the whole file: keep it off the caller (admin GUI) thread
+    private static final ExecutorService hasher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "file-cache");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private FileCache() {}
+
+    // spill directory; files left there by an earlier run are removed
+    static void open(File spillDir) throws IOException {
+        if (!spillDir.isDirectory() && !spillDir.mkdirs()) throw new IOException("cannot create " + spillDir);
+        deleteFiles(spillDir);
+        synchronized (lock) {
+            dir = spillDir;
+        }
+    }
+
+    // server stopping: the cache starts empty next time
+    static void close() {
+        synchronized (lock) {
+            entries.clear();
+            stamps.clear();
+            memoryBytes = diskBytes = 0;
+            if (dir != null) deleteFiles(dir);
+            dir = null;
+        }
+        offers.clear();
+    }
+
+    // f's content: inline (bytes + Base64) or chunk checksums, from the cache if f is unchanged
+    static Content describe(File f, boolean inline) throws IOException {
+        long length = f.length(), modified = f.lastModified();
+        String path = f.getAbsolutePath();
+        File spill = null;
+        synchronized (lock) {
+            Stamp s = stamps.get(path);
+            Entry e = s != null && s.length == length && s.modified == modified ? entries.get(s.hash) : null;
+            if (e != null && e.content != null && e.content.fits(inline)) {
+                hits.increment();
+                return e.content;
+            }
+            if (e != null && inline) spill = e.spill;
+        }
+        Content c = spill != null ? readSpill(spill, length) : null;
+        if (c != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            c = inline ? readInline(f) : readChunked(f);
+        }
+        admit(path, length, modified, c);
+        return c;
+    }
+
+    // offers f to targets (nick -> connection, caps=filecache); each answers HAVE or WANT (handle)
+    static void offer(Map<String, Connection> targets, String sender, File f, boolean inline) {
+        Map<String, Connection> copy = new HashMap<>(targets);
+        hasher.execute(() -> {
+            try {
+                Content c = describe(f, inline);
+                for (Map.Entry<String, Connection> t : copy.entrySet()) {
+                    byte[] idBytes = new byte[12];
+                    random.nextBytes(idBytes);
+                    String id = Base64.getUrlEncoder().withoutPadding().encodeToString(idBytes);
+                    offers.put(id, new Offer(t.getKey(), t.getValue(), sender, f, c));
+                    t.getValue().enqueue(Frame.announce("FILEOFFER|" + id + "|" + sender + "|" + f.getName() + "|" + c.size + "|" + c.hash, sender, f));
+                }
+            } catch (IOException ex) {
+                Log.error("file_cache_error", null, null, "cannot read " + f + ": " + ex.getMessage());
+            }
+        });
+    }
+
+    // handles HAVE / WANT from nick's connection c; returns false if msg is not an answer to an offer
+    static boolean handle(String nick, Connection c, String msg) {
+        if (msg.startsWith("HAVE|")) {
+            Offer o = take(msg.substring("HAVE|".length()), nick, c);
+            if (o != null) skippedBytes.add(o.content.size);
+            return true;
+        }
+        if (msg.startsWith("WANT|")) {
+            Offer o = take(msg.substring("WANT|".length()), nick, c);
+            if (o != null) Server.sendFileDirect(Collections.singletonList(c), o.sender, o.file, o.content);
+            return true;
+        }
+        return false;
+    }
+
+    // offer id, removed if nick's connection c may answer it
+    private static Offer take(String id, String nick, Connection c) {
+        Offer o = offers.get(id);
+        if (o == null || !o.answerableBy(nick, c)) return null;
+        return offers.remove(id, o) ? o : null;
+    }
+
+    // drop offers nobody answered within OFFER_TTL_MS
+    static void expire() {
+        long cutoff = System.currentTimeMillis() - OFFER_TTL_MS;
+        offers.values().removeIf(o -> o.created < cutoff);
+    }
+
+    // heap held by cached content, bytes spilled to disk
+    static long memoryBytes() {
+        synchronized (lock) {
+            return memoryBytes;
+        }
+    }
+
+    static long diskBytes() {
+        synchronized (lock) {
+            return diskBytes;
+        }
+    }
+
+    private static void admit(String path, long length, long modified, Content c) {
+        synchronized (lock) {
+            stamps.put(path, new Stamp(length, modified, c.hash));
+            Entry e = entries.get(c.hash);
+            if (e == null) {
+                e = new Entry();
+                entries.put(c.hash, e);
+            }
+            if (e.content != null) memoryBytes -= e.content.cost();
+            e.content = c;
+            memoryBytes += c.cost();
+            trim();
+        }
+    }
+
+    // caller holds lock. Least recently used first: inline content is spilled (or dropped when
+    // it cannot be), checksums are dropped; then the oldest spills go until DISK_BYTES holds
+    private static void trim() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (memoryBytes > MEMORY_BYTES && it.hasNext()) {
+            Map.Entry<String, Entry> me = it.next();
+            Entry e = me.getValue();
+            if (e.content == null) continue;
+            if (e.content.data != null && e.spill == null && dir != null) spill(me.getKey(), e);
+            memoryBytes -= e.content.cost();
+            e.content = null;
+            if (e.spill == null) it.remove();
+        }
+        Iterator<Entry> spilled = entries.values().iterator();
+        while (diskBytes > DISK_BYTES && spilled.hasNext()) {
+            Entry e = spilled.next();
+            if (e.spill == null) continue;
+            e.spill.delete();
+            diskBytes -= e.spillSize;
+            e.spill = null;
+            if (e.content == null) spilled.remove();
+        }
+    }
+
+    // caller holds lock
+    private static void spill(String hash, Entry e) {
+        File f = new File(dir, hash);
+        try {
+            Files.write(f.toPath(), e.content.data);
+            e.spill = f;
+            e.spillSize = e.content.data.length;
+            diskBytes += e.spillSize;
+            spills.increment();
+        } catch (IOException ex) {
+            Log.warn("file_cache_error", null, null, "cannot spill to " + f + ": " + ex.getMessage());
+        }
+    }
+
+    // a spilled content again, or null if its file is gone or not what f holds now
+    private static Content readSpill(File spill, long length) {
+        try {
+            byte[] data = Files.readAllBytes(spill.toPath());
+            if (data.length != length) return null;
+            return inline(data);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private static Content readInline(File f) throws IOException {
+        return inline(Files.readAllBytes(f.toPath()));
+    }
+
+    private static Content inline(byte[] data) {
+        MessageDigest sha = sha256();
+        sha.update(data);
+        return new Content(hex(sha.digest()), data.length, data, Base64.getEncoder().encode(data), null, 0);
+    }
+
+    // one pass over f: SHA-256 of the whole file and CRC32C of every chunk
+    private static Content readChunked(File f) throws IOException {
+        int chunkSize = ChunkedTransfers.CHUNK_SIZE;
+        try (FileChannel fc = FileChannel.open(f.toPath())) {
+            long size = fc.size();
+            long[] crcs = new long[(int) ((size + chunkSize - 1) / chunkSize)];
+            MessageDigest sha = sha256();
+            CRC32C crc = new CRC32C();
+            for (int i = 0; i < crcs.length; i++) {
+                long offset = (long) i * chunkSize;
+                MappedByteBuffer region = fc.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(chunkSize, size - offset));
+                sha.update(region.duplicate());
+                crc.reset();
+                crc.update(region);
+                crcs[i] = crc.getValue();
+            }
+            return new Content(hex(sha.digest()), size, null, null, crcs, chunkSize);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); // every JRE has it
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder b = new StringBuilder(bytes.length * 2);
+        for (byte x : bytes) b.append(String.format("%02x", x));
+        return b.toString();
+    }
+
+    private static void deleteFiles(File d) {
+        File[] files = d.listFiles(File::isFile);
+        if (files != null) for (File f : files) f.delete();
+    }
+}
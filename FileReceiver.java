@@ -0,0 +1,363 @@
+package DETAI1;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32C;
+
+/**
+ * Client side of incoming files.
+ * - bytes go straight to a temp file through one reused buffer, so memory stays
+ *   constant whatever the file size
+ * - progress (bytes, total, throughput) reported at most every PROGRESS_INTERVAL_MS
+ * - the caller decides afterwards where to keep the temp file (or deletes it)
+ * - chunked transfers (see ChunkedTransfers) are kept under PARTIAL_DIR as <id>.part + <id>.meta,
+ *   so they survive a reconnect or a restart and can be resumed from the last good chunk
+ * - every received file is also copied to CACHE_DIR as <sha256>, so a file offered again (see
+ *   FileCache) is taken from there instead of being sent; oldest copies go beyond CACHE_BYTES.
+ *   Hashing and copying run on one background thread, never on the reader (a copy, not a
+ *   link: the user may edit the saved file)
+ */
+final class FileReceiver {
+    interface Progress {
+        void update(String filename, long received, long total, double bytesPerSec);
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long PROGRESS_INTERVAL_MS = 200;
+    private static final File PARTIAL_DIR = new File(System.getProperty("chat.partialDir",
+            System.getProperty("user.home") + File.separator + ".chatclient" + File.separator + "partial"));
+    private static final File CACHE_DIR = new File(System.getProperty("chat.clientCacheDir",
+            System.getProperty("user.home") + File.separator + ".chatclient" + File.separator + "cache"));
+    private static final long CACHE_BYTES = Long.getLong("chat.clientCache.bytes", 256 * 1024 * 1024);
+    // incomplete passes (bad checksum, missing chunks) before a transfer is given up
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE]; // reused for every file
+    private final Progress progress;
+    private final Map<String, Partial> partials = new HashMap<>(); // reader thread only
+    private final ExecutorService cacheWriter = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "file-cache");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // one chunked transfer in progress, mirrored in its .meta file
+    private static final class Partial {
+        final String id;
+        final Properties meta;
+        final File part, metaFile;
+        long start = System.currentTimeMillis(), startLength;
+
+        Partial(String id, Properties meta) {
+            this.id = id;
+            this.meta = meta;
+            this.part = new File(PARTIAL_DIR, id + ".part");
+            this.metaFile = new File(PARTIAL_DIR, id + ".meta");
+        }
+
+        String sender() { return meta.getProperty("sender"); }
+        String filename() { return meta.getProperty("filename"); }
+        long size() { return Long.parseLong(meta.getProperty("size")); }
+        long chunkSize() { return Long.parseLong(meta.getProperty("chunkSize")); }
+        int attempts() { return Integer.parseInt(meta.getProperty("attempts", "0")); }
+
+        void save() throws IOException {
+            try (OutputStream out = new FileOutputStream(metaFile)) {
+                meta.store(out, null);
+            }
+        }
+
+        void delete() {
+            part.delete();
+            metaFile.delete();
+        }
+    }
+
+    FileReceiver(Progress progress) {
+        this.progress = progress;
+    }
+
+    // FILESTREAM body: exactly size raw bytes from raw
+    File receiveStream(InputStream raw, String filename, long size) throws IOException {
+        File tmp = tempFile(filename);
+        long start = System.currentTimeMillis(), lastReport = start;
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            long received = 0;
+            while (received < size) {
+                int n = raw.read(buffer, 0, (int) Math.min(buffer.length, size - received));
+                if (n < 0) throw new EOFException("connection closed during file " + filename);
+                out.write(buffer, 0, n);
+                received += n;
+                long now = System.currentTimeMillis();
+                if (now - lastReport >= PROGRESS_INTERVAL_MS) {
+                    progress.update(filename, received, size, rate(received, start, now));
+                    lastReport = now;
+                }
+            }
+            progress.update(filename, size, size, rate(size, start, System.currentTimeMillis()));
+            return tmp;
+        } catch (IOException ex) {
+            tmp.delete();
+            throw ex;
+        }
+    }
+
+    // v2 FILE frame: the rest of the current frame's payload
+    File receiveFrame(WireReader in, String filename) throws IOException {
+        File tmp = tempFile(filename);
+        long size = in.restLength();
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            in.restTo(out);
+        } catch (IOException ex) {
+            tmp.delete();
+            throw ex;
+        }
+        progress.update(filename, size, size, 0);
+        return tmp;
+    }
+
+    // v1 FILE line: Base64 text, decoded while writing
+    File receiveBase64(String b64, String filename) throws IOException {
+        File tmp = tempFile(filename);
+        try (InputStream dec = Base64.getDecoder().wrap(new ByteArrayInputStream(b64.getBytes("US-ASCII")));
+             OutputStream out = new FileOutputStream(tmp)) {
+            long total = 0;
+            int n;
+            while ((n = dec.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+                total += n;
+            }
+            progress.update(filename, total, total, 0);
+            return tmp;
+        } catch (IOException | IllegalArgumentException ex) {
+            tmp.delete();
+            throw ex instanceof IOException ? (IOException) ex : new IOException("bad Base64: " + ex.getMessage());
+        }
+    }
+
+    // CHUNKED announcement: start (or keep) the partial file for id
+    void chunkedStart(String id, String sender, String filename, long size, long chunkSize) throws IOException {
+        if (!PARTIAL_DIR.isDirectory() && !PARTIAL_DIR.mkdirs()) throw new IOException("cannot create " + PARTIAL_DIR);
+        Partial p = partial(id);
+        if (p == null) {
+            Properties meta = new Properties();
+            meta.setProperty("sender", sender);
+            meta.setProperty("filename", filename);
+            meta.setProperty("size", Long.toString(size));
+            meta.setProperty("chunkSize", Long.toString(chunkSize));
+            p = new Partial(id, meta);
+            p.save();
+            new FileOutputStream(p.part).close();
+            partials.put(id, p);
+        }
+        p.start = System.currentTimeMillis();
+        p.startLength = p.part.length();
+    }
+
+    // CHUNK body: always consumes length bytes from raw; appended only if it is the next
+    // chunk and matches its checksum, otherwise dropped (the gap is resumed at CHUNK_END)
+    boolean receiveChunk(InputStream raw, String id, long offset, long length, long crc32c) throws IOException {
+        Partial p = partial(id);
+        if (p == null || offset != p.part.length()) {
+            skip(raw, length);
+            return false;
+        }
+        CRC32C crc = new CRC32C();
+        try (RandomAccessFile out = new RandomAccessFile(p.part, "rw")) {
+            out.seek(offset);
+            long received = 0;
+            while (received < length) {
+                int n = raw.read(buffer, 0, (int) Math.min(buffer.length, length - received));
+                if (n < 0) throw new EOFException("connection closed during file " + p.filename());
+                out.write(buffer, 0, n);
+                crc.update(buffer, 0, n);
+                received += n;
+            }
+            if (crc.getValue() != crc32c) {
+                out.setLength(offset);
+                return false;
+            }
+        }
+        long now = System.currentTimeMillis();
+        long done = offset + length;
+        progress.update(p.filename(), done, p.size(), rate(done - p.startLength, p.start, now));
+        return true;
+    }
+
+    // CHUNK_END: the finished file (moved to a temp file), or null if chunks are missing;
+    // then resumeOffset(id) says where to resume, or -1 once the transfer was given up
+    File chunkedEnd(String id) throws IOException {
+        Partial p = partial(id);
+        if (p == null) return null;
+        if (p.part.length() == p.size()) {
+            File tmp = tempFile(p.filename());
+            Files.move(p.part.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            p.delete();
+            partials.remove(id);
+            return tmp;
+        }
+        int attempts = p.attempts() + 1;
+        if (attempts >= MAX_ATTEMPTS) {
+            chunkedGone(id);
+        } else {
+            p.meta.setProperty("attempts", Integer.toString(attempts));
+            p.save();
+        }
+        return null;
+    }
+
+    // where to resume id: end of its last complete chunk, -1 if unknown
+    long resumeOffset(String id) {
+        Partial p = partial(id);
+        if (p == null) return -1;
+        long chunk = p.chunkSize();
+        long good = p.part.length() / chunk * chunk; // a chunk cut by a disconnect is re-sent whole
+        if (good != p.part.length()) {
+            try (RandomAccessFile f = new RandomAccessFile(p.part, "rw")) {
+                f.setLength(good);
+            } catch (IOException ex) {
+                return -1;
+            }
+        }
+        return good;
+    }
+
+    // unfinished transfers left from earlier connections: id -> resume offset
+    Map<String, Long> incompleteTransfers() {
+        Map<String, Long> out = new LinkedHashMap<>();
+        File[] metas = PARTIAL_DIR.listFiles((dir, name) -> name.endsWith(".meta"));
+        if (metas == null) return out;
+        for (File m : metas) {
+            String id = m.getName().substring(0, m.getName().length() - ".meta".length());
+            long offset = resumeOffset(id);
+            if (offset >= 0) out.put(id, offset);
+        }
+        return out;
+    }
+
+    String chunkedFilename(String id) {
+        Partial p = partial(id);
+        return p == null ? id : p.filename();
+    }
+
+    String chunkedSender(String id) {
+        Partial p = partial(id);
+        return p == null ? "?" : p.sender();
+    }
+
+    // server no longer has the transfer (or we gave up): drop what we have
+    void chunkedGone(String id) {
+        Partial p = partial(id);
+        if (p != null) p.delete();
+        partials.remove(id);
+    }
+
+    // cached or loaded from PARTIAL_DIR, null if unknown
+    private Partial partial(String id) {
+        if (!id.matches("[\\w-]+")) return null; // ids become file names
+        Partial p = partials.get(id);
+        if (p != null) return p;
+        File metaFile = new File(PARTIAL_DIR, id + ".meta");
+        if (!metaFile.isFile()) return null;
+        Properties meta = new Properties();
+        try (InputStream in = new FileInputStream(metaFile)) {
+            meta.load(in);
+            p = new Partial(id, meta);
+            if (p.size() < 0 || p.chunkSize() <= 0) return null;
+        } catch (IOException | RuntimeException ex) {
+            return null;
+        }
+        if (!p.part.isFile()) return null;
+        partials.put(id, p);
+        return p;
+    }
+
+    private void skip(InputStream raw, long length) throws IOException {
+        while (length > 0) {
+            int n = raw.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (n < 0) throw new EOFException("truncated chunk");
+            length -= n;
+        }
+    }
+
+    // keeps a copy of a received file under its SHA-256 on the background thread, then runs
+    // then (there too: f is left alone until it is cached); failures only cost a later resend
+    void remember(File f, Runnable then) {
+        cacheWriter.execute(() -> {
+            try {
+                cache(f);
+            } finally {
+                then.run();
+            }
+        });
+    }
+
+    private static void cache(File f) {
+        if (f.length() > CACHE_BYTES) return; // trimming would evict everything, then f itself
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            byte[] buf = new byte[BUFFER_SIZE];
+            try (InputStream in = new FileInputStream(f)) {
+                int n;
+                while ((n = in.read(buf)) > 0) sha.update(buf, 0, n);
+            }
+            File copy = new File(CACHE_DIR, FileCache.hex(sha.digest()));
+            if (copy.exists() || (!CACHE_DIR.isDirectory() && !CACHE_DIR.mkdirs())) return;
+            Files.copy(f.toPath(), copy.toPath());
+            trimCache();
+        } catch (IOException | NoSuchAlgorithmException ex) {
+            // not cached
+        }
+    }
+
+    // a temp copy of the cached file with that hash, null if there is none
+    File cached(String sha256, String filename) {
+        File copy = new File(CACHE_DIR, sha256);
+        if (!sha256.matches("[0-9a-f]{64}") || !copy.isFile()) return null;
+        try {
+            File tmp = tempFile(filename);
+            Files.copy(copy.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            copy.setLastModified(System.currentTimeMillis()); // recently used
+            return tmp;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    // oldest cached copies out until CACHE_BYTES holds
+    private static void trimCache() {
+        File[] files = CACHE_DIR.listFiles(File::isFile);
+        if (files == null) return;
+        long total = 0;
+        for (File f : files) total += f.length();
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < files.length && total > CACHE_BYTES; i++) {
+            total -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    static File tempFile(String filename) throws IOException {
+        String safe = new File(filename).getName().replaceAll("[^\\w.-]", "_");
+        File tmp = Files.createTempFile("chat-", "-" + safe).toFile();
+        tmp.deleteOnExit();
+        return tmp;
+    }
+
+    private static double rate(long bytes, long startMs, long nowMs) {
+        long ms = Math.max(1, nowMs - startMs);
+        return bytes * 1000.0 / ms;
+    }
+}
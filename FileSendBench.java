@@ -0,0 +1,98 @@
+package DETAI1;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * FILESTREAM send benchmark over loopback:
+ * - copy: the old senderLoop path, 8 KB byte[] from FileInputStream to the socket stream
+ * - zerocopy: Server.transferFile, FileChannel.transferTo into the SocketChannel
+ * Reports throughput and sender CPU (user+sys of the sending thread) per GB.
+ *
+ * Usage: java DETAI1.FileSendBench [sizeMB=512] [rounds=5]
+ */
+public class FileSendBench {
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Path file = Files.createTempFile("filesend", ".bin");
+        file.toFile().deleteOnExit();
+        writeRandom(file, sizeMb * 1024L * 1024L);
+        System.out.println("file " + sizeMb + " MB, " + rounds + " rounds each");
+
+        // first round of each is warm-up and not reported
+        for (int r = 0; r <= rounds; r++) {
+            report("copy", r, run(file.toFile(), false));
+            report("zerocopy", r, run(file.toFile(), true));
+        }
+    }
+
+    // returns {bytes, wallNanos, cpuNanos}
+    private static long[] run(File f, boolean zeroCopy) throws Exception {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        try (ServerSocketChannel ssc = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            Thread drain = new Thread(() -> drain(ssc), "bench-drain");
+            drain.start();
+            try (SocketChannel ch = SocketChannel.open(ssc.getLocalAddress())) {
+                long cpu0 = mx.getCurrentThreadCpuTime();
+                long t0 = System.nanoTime();
+                long sent;
+                if (zeroCopy) {
+                    sent = Server.transferFile(f, 0, f.length(), ch);
+                } else {
+                    sent = 0;
+                    OutputStream out = ch.socket().getOutputStream();
+                    try (FileInputStream fis = new FileInputStream(f)) {
+                        byte[] buffer = new byte[8192];
+                        int read;
+                        while ((read = fis.read(buffer)) != -1) {
+                            out.write(buffer, 0, read);
+                            sent += read;
+                        }
+                        out.flush();
+                    }
+                }
+                long wall = System.nanoTime() - t0;
+                long cpu = mx.getCurrentThreadCpuTime() - cpu0;
+                ch.shutdownOutput();
+                drain.join();
+                return new long[]{sent, wall, cpu};
+            }
+        }
+    }
+
+    private static void drain(ServerSocketChannel ssc) {
+        try (SocketChannel in = ssc.accept()) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(256 * 1024);
+            while (in.read(buf) >= 0) buf.clear();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private static void report(String name, int round, long[] r) {
+        if (round == 0) return;
+        double gb = r[0] / (1024.0 * 1024 * 1024);
+        double mbPerSec = (r[0] / (1024.0 * 1024)) / (r[1] / 1e9);
+        double cpuMsPerGb = (r[2] / 1e6) / gb;
+        System.out.printf("%-9s round %d: %8.1f MB/s  sender cpu %7.1f ms/GB%n", name, round, mbPerSec, cpuMsPerGb);
+    }
+
+    private static void writeRandom(Path file, long size) throws IOException {
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(42).nextBytes(chunk);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            for (long written = 0; written < size; written += chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+    }
+}
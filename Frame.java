@@ -0,0 +1,307 @@
+package DETAI1;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * One outgoing protocol message, encoded to wire bytes at most once per protocol version.
+ * Frames are immutable, so a broadcast builds one Frame and every connection's
+ * send queue holds a reference to the same bytes.
+ *
+ * v1 (text): one UTF-8 line, e.g. FROM|sender|text, FILE|sender|name|base64
+ * v2 (binary): [type:1][flags:1][length:4][payload], payload per type:
+ * - LINE:       UTF-8 text of a v1 line (control / other messages)
+ * - FROM:       str16 sender, rest = UTF-8 text
+ * - FILE:       str16 sender, str16 name, rest = raw file bytes (no Base64)
+ * - FILESTREAM: str16 sender, str16 name, int64 size; size raw bytes follow the frame
+ * where str16 = [u16 length][UTF-8 bytes].
+ */
+final class Frame {
+    static final int PROTO_TEXT = 1;
+    static final int PROTO_BINARY = 2;
+
+    static final byte LINE = 0;
+    static final byte FROM = 1;
+    static final byte FILE = 2;
+    static final byte FILESTREAM = 3;
+
+    static final int HEADER_SIZE = 6;
+    static final int FLAG_DEFLATE = 1; // payload compressed by the connection's FrameDeflater
+
+    // file types that are compressed already; deflating them again only costs CPU
+    private static final DateTimeFormatter STAMP = DateTimeFormatter.ofPattern("dd/MM HH:mm").withZone(ZoneId.systemDefault());
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jar", "jpg", "jpeg", "png", "gif", "webp",
+            "mp3", "mp4", "m4a", "ogg", "avi", "mkv", "mov", "pdf", "docx", "xlsx", "pptx"));
+
+    private final byte type;
+    private final String a, b;   // LINE: line (, sender if it announces a file) | FROM: sender, text | FILE*: sender, name
+    private final byte[] data;   // FILE payload
+    private final long size;     // FILESTREAM body size
+    private volatile byte[] textBytes, binaryBytes; // encoded lazily, then shared
+    private boolean textOnly;
+    private byte[] base64;       // FILE: Base64 of data if already at hand (see FileCache)
+    private File source;         // FILE or a file announcing line: the file, so a mailbox can refer to it
+    final long created = System.nanoTime(); // delivery latency is measured from here (see Metrics)
+    private boolean replayed;    // sent again after a session resume: not a delivery latency
+    private long time = System.currentTimeMillis(); // when the message was sent (history, mailbox)
+    private boolean stamped;     // FROM: the text goes out as "[dd/MM HH:mm] text" (sent earlier)
+    private boolean notice;      // server notice or history replay: a mailbox does not keep it
+
+    private Frame(byte type, String a, String b, byte[] data, long size) {
+        this.type = type;
+        this.a = a;
+        this.b = b;
+        this.data = data;
+        this.size = size;
+    }
+
+    // a raw text line (without terminator), e.g. control messages
+    static Frame text(String line) {
+        return new Frame(LINE, line, null, null, 0);
+    }
+
+    // a line that goes out as text whatever the connection's protocol (handshake lines)
+    static Frame textOnly(String line) {
+        Frame f = text(line);
+        f.textBytes = f.binaryBytes = line(line);
+        f.textOnly = true;
+        return f;
+    }
+
+    static Frame from(String sender, String text) {
+        return new Frame(FROM, sender, text, null, 0);
+    }
+
+    // a message from the server about this connection (kick, skipped messages, ...)
+    static Frame notice(String text) {
+        Frame f = from("server", text);
+        f.notice = true;
+        return f;
+    }
+
+    // a history record replayed to a client; history keeps it, so a mailbox does not
+    static Frame history(long time, String sender, String text) {
+        Frame f = stamped(time, sender, text);
+        f.notice = true;
+        return f;
+    }
+
+    // a message sent at time, delivered later (history, mailbox): marked with when it was sent
+    static Frame stamped(long time, String sender, String text) {
+        Frame f = from(sender, text);
+        f.time = time;
+        f.stamped = true;
+        return f;
+    }
+
+    // small file sent inline: Base64 line in v1, raw bytes in v2
+    static Frame file(String sender, String name, byte[] data) {
+        return new Frame(FILE, sender, name, data, data.length);
+    }
+
+    // the same with data's Base64 encoding already done, shared by every frame of that content,
+    // read from source
+    static Frame file(String sender, String name, byte[] data, byte[] base64, File source) {
+        Frame f = file(sender, name, data);
+        f.base64 = base64;
+        f.source = source;
+        return f;
+    }
+
+    // a line announcing sender's file source (CHUNKED, FILEOFFER): the client gets the line, a
+    // mailbox that has to keep it instead keeps the file
+    static Frame announce(String line, String sender, File source) {
+        Frame f = new Frame(LINE, line, sender, null, 0);
+        f.source = source;
+        return f;
+    }
+
+    // header of a file whose size raw bytes are written right after it
+    static Frame fileStream(String sender, String name, long size) {
+        return new Frame(FILESTREAM, sender, name, null, size);
+    }
+
+    // the same frame to be sent again (Sessions): shares the encoding, but the time since it was
+    // built is not delivery latency
+    Frame replay() {
+        if (replayed) return this;
+        Frame f = new Frame(type, a, b, data, size);
+        f.textBytes = textBytes;
+        f.binaryBytes = binaryBytes;
+        f.textOnly = textOnly;
+        f.base64 = base64;
+        f.source = source;
+        f.time = time;
+        f.stamped = stamped;
+        f.notice = notice;
+        f.replayed = true;
+        return f;
+    }
+
+    boolean replayed() {
+        return replayed;
+    }
+
+    byte type() {
+        return type;
+    }
+
+    // FROM / FILE* / announce: who sent it
+    String sender() {
+        return type == LINE ? b : a;
+    }
+
+    // FROM: the message text (without the stamp)
+    String text() {
+        return type == FROM ? b : null;
+    }
+
+    // notice or history replay: only meaningful on the connection it was sent to
+    boolean notice() {
+        return notice;
+    }
+
+    // wall-clock time the message was sent
+    long time() {
+        return time;
+    }
+
+    // LINE: the line
+    String line() {
+        return type == LINE ? a : null;
+    }
+
+    // FILE / announce: the file it carries or announces, null if not known
+    File source() {
+        return source;
+    }
+
+    // whether a v2 connection may send this frame compressed (see FrameDeflater)
+    boolean compressible() {
+        if (textOnly || type == FILESTREAM) return false;
+        if (type != FILE) return true;
+        int dot = b.lastIndexOf('.');
+        return dot < 0 || !COMPRESSED_EXTENSIONS.contains(b.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    // shared wire bytes for proto: callers must not modify
+    byte[] bytes(int proto) {
+        if (proto >= PROTO_BINARY) {
+            byte[] out = binaryBytes;
+            if (out == null) binaryBytes = out = encodeBinary();
+            return out;
+        }
+        byte[] out = textBytes;
+        if (out == null) textBytes = out = encodeText();
+        return out;
+    }
+
+    // approximate heap cost for send queue accounting, without encoding
+    int size() {
+        int n = 16 + (a == null ? 0 : a.length()) + (b == null ? 0 : b.length());
+        return data == null ? n : n + data.length;
+    }
+
+    // FROM text as the client shows it
+    private String shown() {
+        return stamped ? "[" + STAMP.format(Instant.ofEpochMilli(time)) + "] " + b : b;
+    }
+
+    private byte[] encodeText() {
+        switch (type) {
+            case FROM:
+                return line("FROM|" + a + "|" + shown());
+            case FILE: {
+                byte[] head = ("FILE|" + a + "|" + b + "|").getBytes(StandardCharsets.UTF_8);
+                byte[] b64 = base64 != null ? base64 : Base64.getEncoder().encode(data);
+                byte[] out = new byte[head.length + b64.length + 1];
+                System.arraycopy(head, 0, out, 0, head.length);
+                System.arraycopy(b64, 0, out, head.length, b64.length);
+                out[out.length - 1] = '\n';
+                return out;
+            }
+            case FILESTREAM:
+                return line("FILESTREAM|" + a + "|" + b + "|" + size);
+            default:
+                return line(a);
+        }
+    }
+
+    private byte[] encodeBinary() {
+        switch (type) {
+            case FROM: {
+                byte[] sender = str16(a);
+                byte[] text = shown().getBytes(StandardCharsets.UTF_8);
+                byte[] out = header(2 + sender.length + text.length);
+                int p = putStr16(out, HEADER_SIZE, sender);
+                System.arraycopy(text, 0, out, p, text.length);
+                return out;
+            }
+            case FILE:
+            case FILESTREAM: {
+                byte[] sender = str16(a);
+                byte[] name = str16(b);
+                int tail = type == FILE ? data.length : 8;
+                byte[] out = header(4 + sender.length + name.length + tail);
+                int p = putStr16(out, HEADER_SIZE, sender);
+                p = putStr16(out, p, name);
+                if (type == FILE) System.arraycopy(data, 0, out, p, data.length);
+                else putLong(out, p, size);
+                return out;
+            }
+            default: {
+                byte[] text = a.getBytes(StandardCharsets.UTF_8);
+                byte[] out = header(text.length);
+                System.arraycopy(text, 0, out, HEADER_SIZE, text.length);
+                return out;
+            }
+        }
+    }
+
+    private static byte[] line(String s) {
+        return (s + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] header(int payloadLength) {
+        byte[] out = new byte[HEADER_SIZE + payloadLength];
+        out[0] = type;
+        out[1] = 0; // flags
+        putInt(out, 2, payloadLength);
+        return out;
+    }
+
+    // UTF-8 bytes of a str16 field, cut to what the u16 length can express
+    private static byte[] str16(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        return bytes.length <= 0xFFFF ? bytes : Arrays.copyOf(bytes, 0xFFFF);
+    }
+
+    private static int putStr16(byte[] out, int p, byte[] s) {
+        out[p] = (byte) (s.length >>> 8);
+        out[p + 1] = (byte) s.length;
+        System.arraycopy(s, 0, out, p + 2, s.length);
+        return p + 2 + s.length;
+    }
+
+    static void putInt(byte[] out, int p, int v) {
+        out[p] = (byte) (v >>> 24);
+        out[p + 1] = (byte) (v >>> 16);
+        out[p + 2] = (byte) (v >>> 8);
+        out[p + 3] = (byte) v;
+    }
+
+    private static void putLong(byte[] out, int p, long v) {
+        putInt(out, p, (int) (v >>> 32));
+        putInt(out, p + 4, (int) v);
+    }
+}
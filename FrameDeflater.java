@@ -0,0 +1,58 @@
+package DETAI1;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Per-connection streaming compression of v2 frames, for clients that announce caps=deflate.
+ * - one raw-deflate context per connection, flushed (SYNC_FLUSH) at the end of every frame, so
+ *   each frame decodes on arrival and later frames reuse what earlier ones sent (short chat lines
+ *   shrink too)
+ * - a compressed frame has Frame.FLAG_DEFLATE set and the compressed payload; the receiver
+ *   keeps the matching Inflater (see WireReader)
+ * - skipped: handshake lines, headers of raw file bodies, tiny payloads and files that are
+ *   compressed already (Frame.compressible)
+ * - compression works on a private copy: the shared encode-once bytes of a Frame stay untouched
+ * Not thread-safe: used by the one thread writing to the connection. Costs ~256 KB of native
+ * memory per connection while in use, so end() it when the connection closes.
+ */
+final class FrameDeflater {
+    static final String CAPABILITY = "deflate";
+    // -Dchat.compress=false turns it off server-side; clients then just get plain frames
+    static final boolean ENABLED = !"false".equals(System.getProperty("chat.compress"));
+    private static final int LEVEL = Integer.getInteger("chat.compress.level", Deflater.BEST_SPEED);
+    private static final int MIN_PAYLOAD = 48;
+
+    private final Deflater deflater = new Deflater(LEVEL, true);
+    private byte[] out = new byte[16 * 1024];
+
+    // the connection's negotiated options allow compression
+    static boolean negotiated(int proto, boolean clientSupports) {
+        return ENABLED && proto >= Frame.PROTO_BINARY && clientSupports;
+    }
+
+    // what to write for frame: its shared v2 bytes, or a compressed copy of them
+    byte[] encode(Frame frame, byte[] wire) {
+        int payload = wire.length - Frame.HEADER_SIZE;
+        if (payload < MIN_PAYLOAD || !frame.compressible()) return wire;
+        long t0 = System.nanoTime();
+        deflater.setInput(wire, Frame.HEADER_SIZE, payload);
+        int n = Frame.HEADER_SIZE;
+        while (true) {
+            if (out.length - n < 64) out = Arrays.copyOf(out, out.length * 2);
+            int room = out.length - n;
+            int written = deflater.deflate(out, n, room, Deflater.SYNC_FLUSH);
+            n += written;
+            if (written < room) break; // all input consumed and flushed
+        }
+        out[0] = wire[0];
+        out[1] = (byte) (wire[1] | Frame.FLAG_DEFLATE);
+        Frame.putInt(out, 2, n - Frame.HEADER_SIZE);
+        Metrics.compressed(payload, n - Frame.HEADER_SIZE, System.nanoTime() - t0);
+        return Arrays.copyOf(out, n);
+    }
+
+    void end() {
+        deflater.end();
+    }
+}
@@ -0,0 +1,63 @@
+package DETAI1;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reply to REQUEST_NICK, on the server side.
+ * - old clients answer with the bare nick: text protocol (v1), plain ack
+ * - newer clients answer HELLO|proto=2|caps=chunk,...|nick=alice[|key=value...]; the ack then carries
+ *   the agreed version (NICK_ACCEPTED|alice|proto=2) and both sides switch to it
+ *   right after the ack line
+ * - a client that cannot get a nick now gets NICK_REJECTED|reason instead, and is closed
+ */
+final class Handshake {
+    static final int MAX_PROTO = Frame.PROTO_BINARY;
+
+    final String nick;    // requested nick, trimmed
+    final int proto;      // agreed protocol version
+    final boolean hello;  // client used HELLO (so it understands ack parameters)
+    final Map<String, String> params;
+    final Set<String> caps; // optional features the client understands
+
+    private Handshake(String nick, int proto, boolean hello, Map<String, String> params) {
+        this.nick = nick;
+        this.proto = proto;
+        this.hello = hello;
+        this.params = params;
+        Set<String> c = new HashSet<>();
+        for (String cap : params.getOrDefault("caps", "").split(",")) {
+            if (!cap.trim().isEmpty()) c.add(cap.trim());
+        }
+        this.caps = Collections.unmodifiableSet(c);
+    }
+
+    static Handshake parse(String line) {
+        String s = line.trim();
+        if (!s.startsWith("HELLO|")) return new Handshake(s, Frame.PROTO_TEXT, false, new HashMap<>());
+        Map<String, String> params = new HashMap<>();
+        for (String part : s.substring("HELLO|".length()).split("\\|")) {
+            int eq = part.indexOf('=');
+            if (eq > 0) params.put(part.substring(0, eq).trim(), part.substring(eq + 1).trim());
+        }
+        int proto = Frame.PROTO_TEXT;
+        try {
+            proto = Math.max(Frame.PROTO_TEXT, Math.min(MAX_PROTO, Integer.parseInt(params.getOrDefault("proto", "1"))));
+        } catch (NumberFormatException ignored) {}
+        return new Handshake(params.getOrDefault("nick", ""), proto, true, params);
+    }
+
+    // ack line (always sent as text) for the nick actually assigned
+    String ack(String assignedNick) {
+        String ack = (assignedNick.equals(nick) ? "NICK_ACCEPTED|" : "NICK_ASSIGNED|") + assignedNick;
+        return hello ? ack + "|proto=" + proto : ack;
+    }
+
+    // line (text) for a client that gets no nick
+    static String reject(String reason) {
+        return "NICK_REJECTED|" + reason;
+    }
+}
@@ -0,0 +1,395 @@
+package DETAI1;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chat history on disk: an append-only log split in segment files (<first seq>.log).
+ * - one text line per message: time|from|to|text (to = "*" for broadcasts)
+ * - append() only queues; a single writer thread group-commits whatever is queued with
+ *   one write, and fsyncs at most every FSYNC_MS (0 = every batch, -1 = leave it to the OS)
+ * - sparse in-memory index: one block entry (segment, offset, first time) every BLOCK_RECORDS
+ *   records, plus per nick the blocks it appears in; rebuilt from the segments at open
+ * - reads binary-search the blocks by first time, then scan only the indexed blocks before
+ *   that point, through read-only mappings of the segments
+ */
+final class HistoryStore implements Closeable {
+    static final String BROADCAST = "*";
+    // clients announcing it get timestamped HISTORY_LINEs and may page with HISTORY|before|count
+    static final String CAPABILITY = "history";
+
+    private static final long SEGMENT_BYTES = Long.getLong("chat.history.segmentBytes", 64L * 1024 * 1024);
+    private static final long FSYNC_MS = Long.getLong("chat.history.fsyncMs", 200);
+    private static final int QUEUE_CAPACITY = 100_000;
+    private static final int BLOCK_RECORDS = 64;
+    private static final int MAX_BATCH = 4096;
+
+    // one stored message
+    static final class Record {
+        final long time;
+        final String from, to, text;
+
+        Record(long time, String from, String to, String text) {
+            this.time = time;
+            this.from = from;
+            this.to = to;
+            this.text = text;
+        }
+
+        boolean involves(String nick, boolean broadcasts) {
+            return nick == null || to.equals(nick) || from.equals(nick) || (broadcasts && BROADCAST.equals(to));
+        }
+    }
+
+    private static final class Segment {
+        final long baseSeq;
+        final File file;
+        long size;               // bytes of complete records
+        MappedByteBuffer map;    // covers [0, mapped), remapped when a read needs more
+        long mapped;
+
+        Segment(long baseSeq, File file) {
+            this.baseSeq = baseSeq;
+            this.file = file;
+        }
+    }
+
+    // sparse index entry: BLOCK_RECORDS records starting at offset of segment
+    private static final class Block {
+        final Segment segment;
+        final long offset;
+        final long firstTime;
+        long end; // offset after the block's last record so far
+
+        Block(Segment segment, long offset, long firstTime) {
+            this.segment = segment;
+            this.offset = offset;
+            this.firstTime = firstTime;
+            this.end = offset;
+        }
+    }
+
+    private final File dir;
+    private final BlockingQueue<Record> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean open = true;
+
+    // index, guarded by this
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<Block> blocks = new ArrayList<>();
+    private final Map<String, IntList> blocksByNick = new HashMap<>();
+    private int blockRecords = BLOCK_RECORDS; // records in the last block
+    private long nextSeq;
+
+    // writer thread only
+    private FileChannel active;
+    private long lastSync = System.currentTimeMillis();
+    private final ByteArrayOutputStream batchBytes = new ByteArrayOutputStream(64 * 1024);
+
+    private HistoryStore(File dir) {
+        this.dir = dir;
+        this.writer = new Thread(this::writeLoop, "history-writer");
+        this.writer.setDaemon(true);
+    }
+
+    // opens (or creates) the log in dir and rebuilds the index from its segments
+    static HistoryStore open(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+        HistoryStore store = new HistoryStore(dir);
+        store.load();
+        store.writer.start();
+        return store;
+    }
+
+    // never blocks: queued for the writer thread, dropped (and counted) if it is far behind
+    void append(long time, String from, String to, String text) {
+        if (!open) return;
+        Record r = new Record(time, clean(from), clean(to), text.replace('\n', ' ').replace('\r', ' '));
+        if (!queue.offer(r) && dropped.incrementAndGet() % 1000 == 1) {
+            Log.warn("history_error", null, null, "writer behind, " + dropped.get() + " message(s) not stored");
+        }
+    }
+
+    // last n messages before time, oldest first: to or from nick (null = everyone's),
+    // plus broadcasts if asked; BROADCAST (without) gives the broadcasts alone
+    List<Record> before(String nick, boolean broadcasts, long time, int n) {
+        List<Record> out = new ArrayList<>();
+        if (n <= 0) return out;
+        // every candidate block holds a matching record, so n + 1 of them are enough (the
+        // newest may hold only records at or after time)
+        List<Block> candidates = new ArrayList<>();
+        synchronized (this) {
+            int last = lastBlockBefore(time);
+            if (nick == null) {
+                for (int b = last; b >= 0 && candidates.size() <= n; b--) candidates.add(blocks.get(b));
+            } else {
+                IntList mine = blocksByNick.get(nick);
+                IntList all = broadcasts ? blocksByNick.get(BROADCAST) : null;
+                // walk both sorted block lists backwards from last, merged
+                int i = mine == null ? -1 : mine.floor(last), j = all == null ? -1 : all.floor(last);
+                while ((i >= 0 || j >= 0) && candidates.size() <= n) {
+                    int b;
+                    if (j < 0 || (i >= 0 && mine.get(i) > all.get(j))) b = mine.get(i--);
+                    else if (i < 0 || all.get(j) > mine.get(i)) b = all.get(j--);
+                    else { b = mine.get(i--); j--; }
+                    candidates.add(blocks.get(b));
+                }
+            }
+        }
+        for (Block b : candidates) {
+            List<Record> inBlock = new ArrayList<>();
+            scan(b, time, nick, broadcasts, inBlock);
+            for (int k = inBlock.size() - 1; k >= 0 && out.size() < n; k--) out.add(inBlock.get(k));
+            if (out.size() >= n) break;
+        }
+        Collections.reverse(out);
+        return out;
+    }
+
+    // index of the last block starting before time, -1 if none; caller holds the lock
+    private int lastBlockBefore(long time) {
+        int lo = 0, hi = blocks.size() - 1, last = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (blocks.get(mid).firstTime < time) { last = mid; lo = mid + 1; }
+            else hi = mid - 1;
+        }
+        return last;
+    }
+
+    // stops accepting, writes and syncs what is queued; the writer notices within one poll
+    // (no interrupt: it would close the FileChannel mid-write)
+    @Override
+    public void close() {
+        open = false;
+        try {
+            writer.join(5000);
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ---- writer ----
+
+    private void writeLoop() {
+        List<Record> batch = new ArrayList<>();
+        try {
+            openActive();
+            while (open || !queue.isEmpty()) {
+                try {
+                    Record r = queue.poll(FSYNC_MS > 0 ? FSYNC_MS : 100, TimeUnit.MILLISECONDS);
+                    if (r != null) batch.add(r);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                queue.drainTo(batch, MAX_BATCH);
+                if (!batch.isEmpty()) writeBatch(batch);
+                batch.clear();
+                maybeSync(!open);
+            }
+        } catch (IOException ex) {
+            Log.error("history_error", null, null, "write failed, history disabled: " + ex.getMessage());
+            open = false;
+        } finally {
+            try { if (active != null) active.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private void writeBatch(List<Record> batch) throws IOException {
+        Segment seg = lastSegment();
+        batchBytes.reset();
+        long offset = seg.size;
+        // offsets of records in this batch, to index them once written
+        long[] ends = new long[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            Record r = batch.get(i);
+            byte[] line = (r.time + "|" + r.from + "|" + r.to + "|" + r.text + "\n").getBytes(StandardCharsets.UTF_8);
+            batchBytes.write(line, 0, line.length);
+            ends[i] = offset + batchBytes.size();
+        }
+        ByteBuffer buf = ByteBuffer.wrap(batchBytes.toByteArray());
+        while (buf.hasRemaining()) active.write(buf);
+        if (FSYNC_MS == 0) active.force(false);
+
+        synchronized (this) {
+            long start = offset;
+            for (int i = 0; i < batch.size(); i++) {
+                index(seg, start, ends[i], batch.get(i));
+                start = ends[i];
+            }
+            seg.size = start;
+        }
+        if (seg.size >= SEGMENT_BYTES) {
+            active.force(false);
+            active.close();
+            synchronized (this) {
+                segments.add(new Segment(nextSeq, segmentFile(nextSeq)));
+                blockRecords = BLOCK_RECORDS;
+            }
+            openActive();
+        }
+    }
+
+    private void maybeSync(boolean force) throws IOException {
+        if (FSYNC_MS < 0 && !force) return;
+        long now = System.currentTimeMillis();
+        if (force || now - lastSync >= FSYNC_MS) {
+            active.force(false);
+            lastSync = now;
+        }
+    }
+
+    private void openActive() throws IOException {
+        active = FileChannel.open(lastSegment().file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        active.position(lastSegment().size);
+    }
+
+    // ---- index ----
+
+    // caller holds this
+    private void index(Segment seg, long offset, long end, Record r) {
+        if (blockRecords >= BLOCK_RECORDS || blocks.isEmpty() || blocks.get(blocks.size() - 1).segment != seg) {
+            blocks.add(new Block(seg, offset, r.time));
+            blockRecords = 0;
+        }
+        int b = blocks.size() - 1;
+        blocks.get(b).end = end;
+        blockRecords++;
+        nextSeq++;
+        addBlock(r.from, b);
+        addBlock(r.to, b);
+    }
+
+    private void addBlock(String nick, int b) {
+        IntList l = blocksByNick.computeIfAbsent(nick, k -> new IntList());
+        if (l.size == 0 || l.get(l.size - 1) != b) l.add(b);
+    }
+
+    private synchronized Segment lastSegment() {
+        return segments.get(segments.size() - 1);
+    }
+
+    private void load() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.matches("\\d{20}\\.log"));
+        if (files != null) Arrays.sort(files);
+        if (files == null || files.length == 0) {
+            segments.add(new Segment(0, segmentFile(0)));
+            return;
+        }
+        for (File f : files) {
+            Segment seg = new Segment(Long.parseLong(f.getName().substring(0, 20)), f);
+            segments.add(seg);
+            nextSeq = seg.baseSeq;
+            try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                long start = 0;
+                for (int p = 0; p < map.limit(); p++) {
+                    if (map.get(p) != '\n') continue;
+                    Record r = parse(map, (int) start, p);
+                    if (r != null) index(seg, start, p + 1, r);
+                    start = p + 1;
+                }
+                seg.size = start;
+                if (start < ch.size()) {
+                    // torn write from a crash: drop the partial last line
+                    ch.truncate(start);
+                    Log.warn("history_error", null, null, "truncated partial record at end of " + f.getName());
+                }
+            }
+            blockRecords = BLOCK_RECORDS; // never extend a block across segments
+        }
+    }
+
+    // ---- reads ----
+
+    // adds block records before toTime involving nick (see Record.involves) to out
+    private void scan(Block b, long toTime, String nick, boolean broadcasts, List<Record> out) {
+        ByteBuffer map;
+        long end;
+        synchronized (this) {
+            end = b.end;
+            try {
+                map = mapping(b.segment, end);
+            } catch (IOException ex) {
+                Log.warn("history_error", null, null, "read failed: " + ex.getMessage());
+                return;
+            }
+        }
+        int start = (int) b.offset;
+        for (int p = start; p < end; p++) {
+            if (map.get(p) != '\n') continue;
+            Record r = parse(map, start, p);
+            start = p + 1;
+            if (r == null || r.time >= toTime) continue;
+            if (r.involves(nick, broadcasts)) out.add(r);
+        }
+    }
+
+    // read-only mapping of seg covering at least end bytes; caller holds this
+    private ByteBuffer mapping(Segment seg, long end) throws IOException {
+        if (seg.map == null || seg.mapped < end) {
+            try (FileChannel ch = FileChannel.open(seg.file.toPath(), StandardOpenOption.READ)) {
+                seg.mapped = Math.min(ch.size(), Math.max(end, seg.size));
+                seg.map = ch.map(FileChannel.MapMode.READ_ONLY, 0, seg.mapped);
+            }
+        }
+        return seg.map.duplicate();
+    }
+
+    // line [start, nl) as a record, null if malformed
+    private static Record parse(ByteBuffer map, int start, int nl) {
+        byte[] bytes = new byte[nl - start];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = map.get(start + i);
+        String[] p = new String(bytes, StandardCharsets.UTF_8).split("\\|", 4);
+        if (p.length < 4) return null;
+        try {
+            return new Record(Long.parseLong(p[0]), p[1], p[2], p[3]);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private File segmentFile(long baseSeq) {
+        return new File(dir, String.format("%020d.log", baseSeq));
+    }
+
+    private static String clean(String nick) {
+        return nick == null ? "" : nick.replace('|', '_').replace('\n', ' ');
+    }
+
+    // growable int array for the per-nick block lists
+    private static final class IntList {
+        int[] a = new int[8];
+        int size;
+
+        void add(int v) {
+            if (size == a.length) a = Arrays.copyOf(a, size * 2);
+            a[size++] = v;
+        }
+
+        int get(int i) {
+            return a[i];
+        }
+
+        // index of the last value <= v, -1 if none (values are ascending)
+        int floor(int v) {
+            int lo = 0, hi = size - 1, out = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (a[mid] <= v) { out = mid; lo = mid + 1; }
+                else hi = mid - 1;
+            }
+            return out;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package DETAI1;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Idle and dead connection detection on a hashed timing wheel, instead of scanning every client.
+ * - one entry per connection, in the wheel slot of its next deadline; a tick only visits the
+ *   entries of the slots that came due
+ * - activity costs nothing here: a connection just updates its lastActive, and an entry that
+ *   comes due for a client active since then is put back at lastActive + interval
+ * - clients with caps=ping get PING|time after PING_INTERVAL_MS without a message and are closed
+ *   if nothing (PONG or anything else) arrives within PING_TIMEOUT_MS, so half-open connections
+ *   are gone within seconds; other clients are closed after idleTimeoutMs without a message
+ * Ticked by a single thread (the server's scheduler); add() is safe from any thread.
+ */
+final class IdleWheel {
+    static final String CAPABILITY = "ping";
+    static final long TICK_MS = 500;
+    static final long PING_INTERVAL_MS = Long.getLong("chat.ping.intervalMs", 15_000);
+    static final long PING_TIMEOUT_MS = Long.getLong("chat.ping.timeoutMs", 10_000);
+    private static final int SLOTS = 512; // one turn = SLOTS * TICK_MS
+
+    private static final class Entry {
+        final String nick;
+        final Connection conn;
+        long due;    // tick
+        long pingAt; // time of the unanswered PING, 0 if none
+        Entry next;  // in the same slot
+
+        Entry(String nick, Connection conn) {
+            this.nick = nick;
+            this.conn = conn;
+        }
+    }
+
+    private final long idleTimeoutMs;
+    private final long start = System.currentTimeMillis();
+    private final Entry[] slots = new Entry[SLOTS];
+    private final ConcurrentLinkedQueue<Entry> added = new ConcurrentLinkedQueue<>();
+    private long tick; // last tick processed; ticking thread only
+
+    IdleWheel(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    // watch a newly registered connection until it is closed or replaced
+    void add(String nick, Connection c) {
+        added.add(new Entry(nick, c));
+    }
+
+    // every TICK_MS; catches up on ticks missed while the thread was late
+    void tick() {
+        long now = System.currentTimeMillis();
+        for (Entry e; (e = added.poll()) != null; ) schedule(e, e.conn.getLastActive() + interval(e));
+        long target = (now - start) / TICK_MS;
+        while (tick < target) {
+            tick++;
+            int slot = (int) (tick & (SLOTS - 1));
+            Entry e = slots[slot];
+            slots[slot] = null;
+            while (e != null) {
+                Entry next = e.next;
+                e.next = null;
+                if (e.due > tick) link(e); // due in a later turn
+                else expire(e, now);
+                e = next;
+            }
+        }
+    }
+
+    private void expire(Entry e, long now) {
+        if (!Server.isCurrentConnection(e.nick, e.conn)) return; // closed or replaced: forget it
+        long last = e.conn.getLastActive();
+        if (e.pingAt != 0) {
+            if (last >= e.pingAt) {
+                e.pingAt = 0; // answered
+            } else if (now - e.pingAt >= PING_TIMEOUT_MS) {
+                Server.dropIdle(e.nick, e.conn, "no PONG for " + PING_TIMEOUT_MS + " ms");
+                return;
+            } else {
+                schedule(e, e.pingAt + PING_TIMEOUT_MS);
+                return;
+            }
+        }
+        long interval = interval(e);
+        if (now - last < interval) {
+            schedule(e, last + interval);
+        } else if (e.conn.supports(CAPABILITY)) {
+            e.pingAt = now;
+            e.conn.enqueue(Frame.text("PING|" + now));
+            schedule(e, now + PING_TIMEOUT_MS);
+        } else {
+            Server.dropIdle(e.nick, e.conn, "inactive for " + (now - last) / 1000 + " s");
+        }
+    }
+
+    private long interval(Entry e) {
+        // caps are only known after registration, so this is not decided in add()
+        return e.conn.supports(CAPABILITY) ? PING_INTERVAL_MS : idleTimeoutMs;
+    }
+
+    private void schedule(Entry e, long time) {
+        e.due = Math.max(tick + 1, (time - start + TICK_MS - 1) / TICK_MS);
+        link(e);
+    }
+
+    private void link(Entry e) {
+        int slot = (int) (e.due & (SLOTS - 1));
+        e.next = slots[slot];
+        slots[slot] = e;
+    }
+}
@@ -0,0 +1,190 @@
+package DETAI1;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Headless load generator: many v1 clients on one selector thread, each sending TO|next|sendTime
+ * to the next client at a fixed rate, and the delivery latency (send to receive, same clock)
+ * of every FROM| that comes back reported per second and at the end as p50 / p99 / max.
+ *
+ * Usage: java DETAI1.LoadGen [host=127.0.0.1] [port=9000] [clients=1000] [msgsPerSecPerClient=1] [seconds=30]
+ * (run the server in another JVM, e.g. java DETAI1.Server --io nio; thousands of clients
+ * need ulimit -n above twice the client count when both run on one machine)
+ */
+public class LoadGen {
+    private static final class Client {
+        final SocketChannel ch;
+        final String nick;
+        String target;
+        final ByteBuffer in = ByteBuffer.allocate(8192);
+        ByteBuffer pending; // unsent rest of the last message
+
+        Client(SocketChannel ch, String nick) {
+            this.ch = ch;
+            this.nick = nick;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "127.0.0.1";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 9000;
+        int n = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        double rate = args.length > 3 ? Double.parseDouble(args[3]) : 1;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 30;
+
+        List<Client> clients = new ArrayList<>();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) clients.add(connect(host, port, "load" + i));
+        for (int i = 0; i < n; i++) clients.get(i).target = clients.get((i + 1) % n).nick;
+        System.out.printf("connected %d clients in %.1f s%n", n, (System.nanoTime() - t0) / 1e9);
+
+        Selector selector = Selector.open();
+        for (Client c : clients) {
+            c.ch.configureBlocking(false);
+            c.ch.register(selector, SelectionKey.OP_READ, c);
+        }
+
+        Metrics.Histogram total = new Metrics.Histogram();
+        Metrics.Histogram second = new Metrics.Histogram();
+        long sent = 0, received = 0, skipped = 0, lastSent = 0, lastReceived = 0;
+        long intervalNanos = (long) (1e9 / (rate * n)); // one message from the next client each interval
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        long nextSend = start, nextReport = start + 1_000_000_000L;
+        int next = 0;
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end) break;
+            for (; nextSend <= now; nextSend += intervalNanos) {
+                Client c = clients.get(next);
+                next = (next + 1) % n;
+                if (send(c, "TO|" + c.target + "|" + System.nanoTime() + "\n")) sent++;
+                else skipped++;
+            }
+            if (now >= nextReport) {
+                long[] h = second.counts();
+                System.out.printf("%3ds  sent %,7d/s  recv %,7d/s  p50 %s  p99 %s  max %s%s%n",
+                        (now - start) / 1_000_000_000L, sent - lastSent, received - lastReceived,
+                        micros(Metrics.Histogram.percentile(h, 0.5)), micros(Metrics.Histogram.percentile(h, 0.99)),
+                        micros(Metrics.Histogram.percentile(h, 1.0)), skipped > 0 ? "  skipped " + skipped : "");
+                second = new Metrics.Histogram();
+                lastSent = sent;
+                lastReceived = received;
+                nextReport += 1_000_000_000L;
+            }
+            long waitMs = Math.max(1, Math.min(nextSend, nextReport) / 1_000_000 - System.nanoTime() / 1_000_000);
+            selector.select(waitMs);
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Client c = (Client) key.attachment();
+                for (long sentAt : read(c)) {
+                    long micros = (System.nanoTime() - sentAt) / 1000;
+                    total.record(micros);
+                    second.record(micros);
+                    received++;
+                }
+                if (c.pending != null) flush(c);
+            }
+        }
+        long[] h = total.counts();
+        System.out.printf("total: sent %,d  received %,d  skipped %,d  p50 %s  p99 %s  p99.9 %s  max %s%n",
+                sent, received, skipped,
+                micros(Metrics.Histogram.percentile(h, 0.5)), micros(Metrics.Histogram.percentile(h, 0.99)),
+                micros(Metrics.Histogram.percentile(h, 0.999)), micros(Metrics.Histogram.percentile(h, 1.0)));
+        for (Client c : clients) c.ch.close();
+    }
+
+    // blocking handshake, then the channel is handed to the selector
+    private static Client connect(String host, int port, String nick) throws IOException {
+        SocketChannel ch = SocketChannel.open(new InetSocketAddress(host, port));
+        ch.socket().setTcpNoDelay(true);
+        readLineBlocking(ch); // REQUEST_NICK
+        ch.write(ByteBuffer.wrap((nick + "\n").getBytes(StandardCharsets.UTF_8)));
+        String ack = readLineBlocking(ch);
+        String[] p = ack.split("\\|");
+        return new Client(ch, p.length > 1 ? p[1] : nick);
+    }
+
+    // byte at a time so nothing after the line is consumed
+    private static String readLineBlocking(SocketChannel ch) throws IOException {
+        StringBuilder b = new StringBuilder();
+        ByteBuffer one = ByteBuffer.allocate(1);
+        while (true) {
+            one.clear();
+            if (ch.read(one) < 0) throw new IOException("closed during handshake");
+            char c = (char) one.get(0);
+            if (c == '\n') return b.toString();
+            if (c != '\r') b.append(c);
+        }
+    }
+
+    // false if the previous message is still not out: the server or network is behind
+    private static boolean send(Client c, String line) {
+        try {
+            if (c.pending != null && !flush(c)) return false;
+            ByteBuffer buf = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            c.ch.write(buf);
+            if (buf.hasRemaining()) c.pending = buf;
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private static boolean flush(Client c) {
+        try {
+            c.ch.write(c.pending);
+        } catch (IOException ex) {
+            return false;
+        }
+        if (c.pending.hasRemaining()) return false;
+        c.pending = null;
+        return true;
+    }
+
+    // send times of the FROM|sender|sendTime lines now complete in c's buffer
+    private static List<Long> read(Client c) {
+        List<Long> out = new ArrayList<>();
+        try {
+            if (c.ch.read(c.in) < 0) {
+                c.ch.close();
+                return out;
+            }
+        } catch (IOException ex) {
+            return out;
+        }
+        c.in.flip();
+        int lineStart = c.in.position();
+        for (int i = c.in.position(); i < c.in.limit(); i++) {
+            if (c.in.get(i) != '\n') continue;
+            String line = new String(c.in.array(), lineStart, i - lineStart, StandardCharsets.UTF_8);
+            lineStart = i + 1;
+            if (!line.startsWith("FROM|")) continue;
+            try {
+                out.add(Long.parseLong(line.substring(line.lastIndexOf('|') + 1).trim()));
+            } catch (NumberFormatException ignored) {
+                // history replay or an admin message
+            }
+        }
+        c.in.position(lineStart);
+        c.in.compact();
+        if (!c.in.hasRemaining()) c.in.clear(); // a line longer than the buffer is not ours
+        return out;
+    }
+
+    private static String micros(long v) {
+        if (v >= 1000) return String.format("%.1f ms", v / 1e3);
+        return v + " us";
+    }
+}
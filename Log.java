@@ -0,0 +1,254 @@
+package DETAI1;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous structured log for the connection paths (connects, disconnects, IO errors, drops),
+ * so network threads never wait on the console or a file.
+ * - callers only put a record into a bounded lock-free ring (one CAS); one writer thread formats
+ *   and writes it
+ * - records have fields: time, level, event, nick, remote address, message; the file gets them as
+ *   key=value lines (LOG_DIR/chat.log, rolled at MAX_BYTES, MAX_FILES kept), the console the
+ *   usual "[HH:mm:ss] SERVER: ..." line unless -Dchat.log.console=false
+ * - never blocks: once the ring is 3/4 full only 1 in SAMPLE INFO records is kept, and a full ring
+ *   drops; the writer reports how many were dropped (and Metrics exports the count)
+ * - an idle writer parks until a record arrives (the caller that finds it idle unparks it)
+ */
+final class Log {
+    enum Level { INFO, WARN, ERROR }
+
+    private static final int CAPACITY = 1 << 14;
+    private static final int SAMPLE = 16;
+    private static final String LOG_DIR = System.getProperty("chat.log.dir", "logs");
+    private static final long MAX_BYTES = Long.getLong("chat.log.maxBytes", 10L * 1024 * 1024);
+    private static final int MAX_FILES = Integer.getInteger("chat.log.maxFiles", 5);
+    private static final boolean CONSOLE = !"false".equals(System.getProperty("chat.log.console"));
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter CONSOLE_TIME = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private static final class Record {
+        final long time = System.currentTimeMillis();
+        final Level level;
+        final String event, nick, remote, message;
+
+        Record(Level level, String event, String nick, Object remote, String message) {
+            this.level = level;
+            this.event = event;
+            this.nick = nick;
+            this.remote = remote == null ? null : String.valueOf(remote);
+            this.message = message;
+        }
+    }
+
+    // bounded multi-producer ring (per-slot sequence numbers), single consumer
+    private static final Record[] ring = new Record[CAPACITY];
+    private static final AtomicLongArray sequence = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head; // written by the writer thread only
+    private static volatile boolean idle; // writer parked, or about to: the next record unparks it
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong sampleCounter = new AtomicLong();
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) sequence.set(i, i);
+        writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drainOnExit, "log-flush"));
+    }
+
+    private Log() {}
+
+    static void info(String event, String nick, Object remote, String message) {
+        log(Level.INFO, event, nick, remote, message);
+    }
+
+    static void warn(String event, String nick, Object remote, String message) {
+        log(Level.WARN, event, nick, remote, message);
+    }
+
+    static void error(String event, String nick, Object remote, String message) {
+        log(Level.ERROR, event, nick, remote, message);
+    }
+
+    // records dropped so far (sampled or ring full)
+    static long droppedCount() {
+        return dropped.get();
+    }
+
+    private static void log(Level level, String event, String nick, Object remote, String message) {
+        if (level == Level.INFO && tail.get() - head > CAPACITY * 3 / 4
+                && sampleCounter.incrementAndGet() % SAMPLE != 0) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (!offer(new Record(level, event, nick, remote, message))) dropped.incrementAndGet();
+        else if (idle) LockSupport.unpark(writer);
+    }
+
+    private static boolean offer(Record r) {
+        long pos = tail.get();
+        while (true) {
+            int i = (int) (pos & (CAPACITY - 1));
+            long diff = sequence.get(i) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) break;
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false; // full
+            } else {
+                pos = tail.get();
+            }
+        }
+        int i = (int) (pos & (CAPACITY - 1));
+        ring[i] = r;
+        sequence.set(i, pos + 1); // publishes the slot; volatile, so it is ordered before the read of idle
+        return true;
+    }
+
+    private static Record poll() {
+        int i = (int) (head & (CAPACITY - 1));
+        if (sequence.get(i) != head + 1) return null;
+        Record r = ring[i];
+        ring[i] = null;
+        sequence.lazySet(i, head + CAPACITY); // slot free for the next turn
+        head++;
+        return r;
+    }
+
+    // ---- writer thread ----
+
+    private static Writer file;
+    private static File current;
+    private static long fileBytes;
+    private static long reportedDrops;
+
+    private static void writeLoop() {
+        openFile();
+        while (true) {
+            if (drain()) continue;
+            // idle is set before the ring is checked again, and callers set the slot before they
+            // read idle: either we see the record or the caller sees idle and unparks us
+            idle = true;
+            if (!pending()) LockSupport.park();
+            idle = false;
+        }
+    }
+
+    // the next slot holds a record
+    private static boolean pending() {
+        return sequence.get((int) (head & (CAPACITY - 1))) == head + 1;
+    }
+
+    // writes what is queued; false if there was nothing
+    private static synchronized boolean drain() {
+        boolean any = false;
+        Record r;
+        while ((r = poll()) != null) {
+            write(r);
+            any = true;
+        }
+        long d = dropped.get();
+        if (d != reportedDrops) {
+            write(new Record(Level.WARN, "log_dropped", null, null, (d - reportedDrops) + " record(s) dropped, log writer behind"));
+            reportedDrops = d;
+            any = true;
+        }
+        if (any) flush();
+        return any;
+    }
+
+    private static void drainOnExit() {
+        drain();
+    }
+
+    private static void write(Record r) {
+        if (CONSOLE) {
+            String line = "[" + CONSOLE_TIME.format(Instant.ofEpochMilli(r.time)) + "] SERVER: " + consoleText(r);
+            (r.level == Level.INFO ? System.out : System.err).println(line);
+        }
+        if (file == null) return;
+        StringBuilder b = new StringBuilder(128);
+        b.append(FILE_TIME.format(Instant.ofEpochMilli(r.time))).append(" level=").append(r.level).append(" event=").append(r.event);
+        if (r.nick != null) b.append(" nick=").append(quote(r.nick));
+        if (r.remote != null) b.append(" remote=").append(quote(r.remote));
+        if (r.message != null) b.append(" msg=").append(quote(r.message));
+        b.append('\n');
+        try {
+            file.write(b.toString());
+            fileBytes += b.length();
+            if (fileBytes >= MAX_BYTES) roll();
+        } catch (IOException ex) {
+            System.err.println("SERVER: log file disabled: " + ex.getMessage());
+            closeFile();
+        }
+    }
+
+    private static String consoleText(Record r) {
+        StringBuilder b = new StringBuilder();
+        if (r.nick != null) b.append(r.nick).append(' ');
+        b.append(r.message != null ? r.message : r.event);
+        if (r.remote != null) b.append(" (").append(r.remote).append(')');
+        return b.toString();
+    }
+
+    private static String quote(String s) {
+        boolean plain = !s.isEmpty();
+        for (int i = 0; i < s.length() && plain; i++) {
+            char c = s.charAt(i);
+            plain = c > ' ' && c != '"' && c != '=' && c != '\\';
+        }
+        if (plain) return s;
+        return '"' + s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n").replace("\r", "\\r") + '"';
+    }
+
+    private static void flush() {
+        try {
+            if (file != null) file.flush();
+        } catch (IOException ignored) {}
+        if (CONSOLE) System.out.flush();
+    }
+
+    private static void openFile() {
+        File dir = new File(LOG_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            System.err.println("SERVER: log file disabled: cannot create " + dir);
+            return;
+        }
+        current = new File(dir, "chat.log");
+        try {
+            fileBytes = current.length();
+            file = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(current, true), StandardCharsets.UTF_8), 64 * 1024);
+        } catch (IOException ex) {
+            System.err.println("SERVER: log file disabled: " + ex.getMessage());
+        }
+    }
+
+    // chat.log -> chat.log.1 -> ... -> chat.log.MAX_FILES (deleted)
+    private static void roll() throws IOException {
+        closeFile();
+        File dir = current.getParentFile();
+        new File(dir, "chat.log." + MAX_FILES).delete();
+        for (int i = MAX_FILES - 1; i >= 1; i--) {
+            File f = new File(dir, "chat.log." + i);
+            if (f.exists()) f.renameTo(new File(dir, "chat.log." + (i + 1)));
+        }
+        current.renameTo(new File(dir, "chat.log.1"));
+        openFile();
+    }
+
+    private static void closeFile() {
+        try {
+            if (file != null) file.close();
+        } catch (IOException ignored) {}
+        file = null;
+    }
+}
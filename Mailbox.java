@@ -0,0 +1,330 @@
+package DETAI1;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Store-and-forward for clients that are not connected: one append-only file per nick
+ * (<hex of nick>.box) holding messages and file references, handed over in order when the
+ * nick registers again.
+ * - record: [int length][kind][int64 time][str sender][str text | file path], str = [int length][UTF-8]
+ * - heap per offline nick is one small Box (bytes, count, newest time); the records
+ *   themselves only live in the file
+ * - store() only checks the quota and queues the bytes; one writer thread appends whatever a
+ *   nick has pending with one write (open, append, close: no file handles kept per nick)
+ * - records older than TTL are skipped on delivery; boxes with nothing younger are deleted by
+ *   expire(); a box over QUOTA_BYTES takes nothing more until it is delivered
+ * Delivery runs on the writer thread too, so it sees every earlier store of that nick; the
+ * messages are put behind the client's replay and both released before anything live.
+ */
+final class Mailbox implements Closeable {
+    static final long TTL_MS = Long.getLong("chat.mailbox.ttlHours", 72) * 3600_000L;
+    static final long QUOTA_BYTES = Long.getLong("chat.mailbox.quotaBytes", 1024 * 1024);
+
+    private static final byte MESSAGE = 1;
+    private static final byte FILE = 2;
+    private static final String SUFFIX = ".box";
+
+    // one nick's mailbox; fields guarded by the Box itself
+    private static final class Box {
+        long bytes;      // on disk plus pending
+        int count;
+        long newest;
+        boolean full;    // quota reached, already logged
+        ByteArrayOutputStream pending; // not yet written; null if nothing is
+
+        void note(long time, int recordBytes) {
+            bytes += recordBytes;
+            count++;
+            newest = Math.max(newest, time);
+        }
+    }
+
+    private final File dir;
+    private final Map<String, Box> boxes = new ConcurrentHashMap<>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "mailbox-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Mailbox(File dir) {
+        this.dir = dir;
+    }
+
+    // opens dir, creating it if needed; the boxes left there are indexed from their records
+    static Mailbox open(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+        Mailbox m = new Mailbox(dir);
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File f : files) {
+                String nick = nickOf(f.getName());
+                if (nick == null) continue;
+                Box b = new Box();
+                for (Entry e : read(f)) b.note(e.time, 0);
+                b.bytes = f.length();
+                if (b.count > 0) m.boxes.put(nick, b);
+                else f.delete();
+            }
+        }
+        return m;
+    }
+
+    // one stored entry, as read back
+    private static final class Entry {
+        final byte kind;
+        final long time;
+        final String sender, body;
+
+        Entry(byte kind, long time, String sender, String body) {
+            this.kind = kind;
+            this.time = time;
+            this.sender = sender;
+            this.body = body;
+        }
+    }
+
+    // a message for nick, sent while it was offline; false if its mailbox is full
+    boolean store(String nick, long time, String sender, String text) {
+        return append(nick, MESSAGE, time, sender, text);
+    }
+
+    // a file for nick, kept as a reference to f (sent again from there on delivery)
+    boolean storeFile(String nick, long time, String sender, File f) {
+        return append(nick, FILE, time, sender, f.getAbsolutePath());
+    }
+
+    // what was still queued for nick when its connection closed:
+    // - messages, and room messages (as "#room text"); not server notices or history replays,
+    //   which would come back as new messages and next to the history they repeat
+    // - files (FILE, FILESTREAM, or the CHUNKED / FILEOFFER line announcing one), by reference;
+    //   the chunks of a transfer follow its announce, the client resumes one already started
+    // - control lines only make sense on that connection: counted in the log, not kept
+    void keepUndelivered(String nick, List<Object> items) {
+        int dropped = 0;
+        for (Object item : items) {
+            Frame f = item instanceof Frame ? (Frame) item : ((SendQueue.FileBody) item).header;
+            if (f.notice()) continue;
+            long time = f.time(); // a broadcast keeps the time history has for it
+            if (f.source() != null) {
+                storeFile(nick, time, f.sender(), f.source());
+            } else if (f.type() == Frame.FROM) {
+                store(nick, time, f.sender(), f.text());
+            } else if (f.type() == Frame.FILESTREAM) {
+                storeFile(nick, time, f.sender(), ((SendQueue.FileBody) item).file);
+            } else if (f.type() != Frame.LINE) {
+                dropped++; // an inline file with no source to refer to
+            } else if (f.line().startsWith("ROOM|")) {
+                String[] p = f.line().split("\\|", 4); // ROOM|room|sender|text
+                if (p.length == 4) store(nick, time, p[2], "#" + p[1] + " " + p[3]);
+            } else if (!f.line().startsWith("CHUNK|") && !f.line().startsWith("CHUNK_END|")) {
+                dropped++;
+            }
+        }
+        if (dropped > 0) Log.info("mailbox", nick, null, dropped + " queued item(s) not kept");
+    }
+
+    // nick's stored messages, in order, to release (which puts them behind c's replay; false if
+    // c has closed), then the files to c; the box is deleted. release always runs, with nothing
+    // if the box is empty or c has gone meanwhile (the box then stays)
+    void deliver(String nick, Connection c, Predicate<List<Object>> release) {
+        if (!boxes.containsKey(nick) || !submit(() -> deliverNow(nick, c, release))) release.test(Collections.emptyList());
+    }
+
+    // writer thread
+    private void deliverNow(String nick, Connection c, Predicate<List<Object>> release) {
+        List<Object> messages = new ArrayList<>();
+        List<Entry> live = new ArrayList<>();
+        boolean released = false;
+        try {
+            if (!Server.isCurrentConnection(nick, c)) return;
+            Box b = boxes.remove(nick);
+            if (b == null) return;
+            File f = fileOf(nick);
+            synchronized (b) {
+                writePending(f, b);
+            }
+            List<Entry> entries = read(f);
+            long cutoff = System.currentTimeMillis() - TTL_MS;
+            for (Entry e : entries) if (e.time >= cutoff) live.add(e);
+            if (!live.isEmpty()) {
+                messages.add(Frame.notice(live.size() + " message(s) arrived while you were offline"));
+                for (Entry e : live) if (e.kind != FILE) messages.add(Frame.stamped(e.time, e.sender, e.body));
+            }
+            if (!f.delete() && f.exists()) Log.warn("mailbox_error", nick, null, "could not delete " + f);
+            Log.info("mailbox", nick, null, "delivered " + live.size() + " stored message(s), " + (entries.size() - live.size()) + " expired");
+        } finally {
+            released = release.test(messages);
+        }
+        for (Entry e : live) {
+            if (!released) append(nick, e.kind, e.time, e.sender, e.body); // c closed meanwhile: kept again
+            else if (e.kind == FILE) Server.deliverStoredFile(nick, c, e.sender, e.body);
+        }
+    }
+
+    // deletes boxes whose newest entry is past the TTL
+    void expire() {
+        long cutoff = System.currentTimeMillis() - TTL_MS;
+        submit(() -> {
+            for (Map.Entry<String, Box> e : boxes.entrySet()) {
+                Box b = e.getValue();
+                synchronized (b) {
+                    if (b.newest >= cutoff || b.pending != null) continue;
+                    if (boxes.remove(e.getKey(), b)) fileOf(e.getKey()).delete();
+                }
+            }
+        });
+    }
+
+    // nicks with a mailbox and their entry counts
+    Map<String, Integer> counts() {
+        Map<String, Integer> out = new TreeMap<>();
+        for (Map.Entry<String, Box> e : boxes.entrySet()) {
+            synchronized (e.getValue()) {
+                out.put(e.getKey(), e.getValue().count);
+            }
+        }
+        return out;
+    }
+
+    // writes what is pending and stops the writer
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // work for the writer thread; dropped once closed (a connection closing after stopServer)
+    private boolean submit(Runnable task) {
+        try {
+            writer.execute(task);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            return false;
+        }
+    }
+
+    private boolean append(String nick, byte kind, long time, String sender, String body) {
+        byte[] record = encode(kind, time, sender, body);
+        while (true) {
+            Box b = boxes.computeIfAbsent(nick, k -> new Box());
+            boolean schedule;
+            synchronized (b) {
+                if (boxes.get(nick) != b) continue; // delivered or expired meanwhile: take the new one
+                if (b.bytes + record.length > QUOTA_BYTES) {
+                    if (!b.full) Log.warn("mailbox_full", nick, null, "mailbox full, further messages dropped");
+                    b.full = true;
+                    return false;
+                }
+                schedule = b.pending == null;
+                if (schedule) b.pending = new ByteArrayOutputStream(Math.max(256, record.length));
+                b.pending.write(record, 0, record.length);
+                b.note(time, record.length);
+            }
+            // one write per nick for everything stored until the writer gets to it
+            if (schedule) submit(() -> {
+                synchronized (b) {
+                    if (boxes.get(nick) == b) writePending(fileOf(nick), b);
+                }
+            });
+            return true;
+        }
+    }
+
+    // caller holds b's lock
+    private static void writePending(File f, Box b) {
+        if (b.pending == null) return;
+        try (OutputStream out = new FileOutputStream(f, true)) {
+            b.pending.writeTo(out);
+        } catch (IOException ex) {
+            Log.error("mailbox_error", null, null, "cannot write " + f + ": " + ex.getMessage());
+        }
+        b.pending = null;
+    }
+
+    private File fileOf(String nick) {
+        StringBuilder hex = new StringBuilder();
+        for (byte x : nick.getBytes(StandardCharsets.UTF_8)) hex.append(String.format("%02x", x));
+        return new File(dir, hex + SUFFIX);
+    }
+
+    private static String nickOf(String fileName) {
+        String hex = fileName.substring(0, fileName.length() - SUFFIX.length());
+        if (hex.isEmpty() || hex.length() % 2 != 0) return null;
+        byte[] bytes = new byte[hex.length() / 2];
+        try {
+            for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encode(byte kind, long time, String sender, String body) {
+        byte[] s = sender.getBytes(StandardCharsets.UTF_8), t = body.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + 1 + 8 + 8 + s.length + t.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(1 + 8 + 4 + s.length + 4 + t.length);
+            out.writeByte(kind);
+            out.writeLong(time);
+            out.writeInt(s.length);
+            out.write(s);
+            out.writeInt(t.length);
+            out.write(t);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex); // in memory, cannot happen
+        }
+        return bytes.toByteArray();
+    }
+
+    // entries of f in order; a torn last record (crash mid-append) is ignored
+    private static List<Entry> read(File f) {
+        List<Entry> out = new ArrayList<>();
+        if (!f.exists()) return out;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException end) {
+                    break;
+                }
+                if (length < 17 || length > QUOTA_BYTES + 64) break; // corrupt from here on
+                byte[] rec = new byte[length];
+                in.readFully(rec);
+                DataInputStream r = new DataInputStream(new ByteArrayInputStream(rec));
+                byte kind = r.readByte();
+                long time = r.readLong();
+                String sender = str(r), body = str(r);
+                out.add(new Entry(kind, time, sender, body));
+            }
+        } catch (IOException ex) {
+            if (!(ex instanceof EOFException)) Log.warn("mailbox_error", null, null, "reading " + f + ": " + ex.getMessage());
+        }
+        return out;
+    }
+
+    private static String str(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0 || n > in.available()) throw new IOException("bad record");
+        byte[] b = new byte[n];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
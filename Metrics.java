@@ -0,0 +1,408 @@
+package DETAI1;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Server metrics: messages / bytes in and out, accepts, connections, send queue depths,
+ * delivery latency, frame compression (ratio, CPU time), send buffer pool use (see BufferPool),
+ * the file cache (see FileCache) and what the EventBus and Log had to drop.
+ * - hot paths only bump LongAdders (striped per thread, no lock) and one histogram bucket,
+ *   striped the same way
+ * - latency is the time from a Frame being built (message read, broadcast, ...) to its bytes
+ *   being written to a client, in a log-linear histogram: 16 sub-buckets per power of two of
+ *   microseconds (HDR-style, ~6% precision, fixed 8 KB per stripe). Frames sent again after a
+ *   session resume (Frame.replay) are counted as messages out but left out of it
+ * - sample() (Server's scheduler, every second) turns the totals into per-second rates, reads
+ *   the queue depths and keeps WINDOW_SECONDS of histograms for recent percentiles
+ * - exposed over JMX (ChatServerMXBean), as Prometheus-style text on
+ *   http://127.0.0.1:<chat.metrics.port>/metrics (off unless the port is set), and in the admin GUI
+ */
+final class Metrics {
+    static final int WINDOW_SECONDS = 10;
+    private static final String JMX_NAME = "DETAI1:type=ChatServer";
+
+    static final LongAdder messagesIn = new LongAdder();
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder messagesOut = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+    static final LongAdder accepted = new LongAdder();
+    static final LongAdder writes = new LongAdder();        // batches of frames written (see SendBatch)
+    static final LongAdder compressRaw = new LongAdder();   // payload bytes given to FrameDeflater
+    static final LongAdder compressWire = new LongAdder();  // what they became
+    static final LongAdder compressNanos = new LongAdder(); // time spent deflating
+    static final Histogram latency = new Histogram();
+
+    private static volatile Snapshot last = new Snapshot();
+    private static final ArrayDeque<long[]> window = new ArrayDeque<>(); // sampler thread only
+    private static HttpServer http;
+
+    private Metrics() {}
+
+    // a message (or file header) fully written to a client
+    static void sent(Frame frame, int bytes) {
+        messagesOut.increment();
+        bytesOut.add(bytes);
+        if (!frame.replayed()) latency.record((System.nanoTime() - frame.created) / 1000);
+    }
+
+    // one frame payload compressed (see FrameDeflater)
+    static void compressed(int rawBytes, int wireBytes, long nanos) {
+        compressRaw.add(rawBytes);
+        compressWire.add(wireBytes);
+        compressNanos.add(nanos);
+    }
+
+    // counts what is read through it into bytesIn
+    static InputStream counting(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) bytesIn.increment();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buf, int off, int len) throws IOException {
+                int n = super.read(buf, off, len);
+                if (n > 0) bytesIn.add(n);
+                return n;
+            }
+        };
+    }
+
+    // JMX always; the text endpoint if scrapePort > 0
+    static synchronized void start(int scrapePort) {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(JMX_NAME);
+            if (!mbs.isRegistered(name)) mbs.registerMBean(new Mx(), name);
+        } catch (JMException ex) {
+            Log.warn("metrics", null, null, "not registered with JMX: " + ex.getMessage());
+        }
+        if (scrapePort <= 0 || http != null) return;
+        try {
+            http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), scrapePort), 0);
+            http.createContext("/metrics", ex -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                ex.sendResponseHeaders(200, body.length);
+                try (OutputStream out = ex.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.start();
+            Log.info("metrics", null, null, "scrape endpoint on http://127.0.0.1:" + scrapePort + "/metrics");
+        } catch (IOException ex) {
+            Log.warn("metrics", null, null, "scrape endpoint disabled: " + ex.getMessage());
+        }
+    }
+
+    static synchronized void stop() {
+        if (http != null) {
+            http.stop(0);
+            http = null;
+        }
+        try {
+            ObjectName name = new ObjectName(JMX_NAME);
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            if (mbs.isRegistered(name)) mbs.unregisterMBean(name);
+        } catch (JMException ignored) {}
+    }
+
+    // every second, on one thread
+    static void sample(Map<String, SendQueue.Stats> queues) {
+        Snapshot prev = last;
+        long now = System.nanoTime();
+        double secs = Math.max(1e-3, (now - prev.nanos) / 1e9);
+        long[] hist = latency.counts();
+        if (window.isEmpty()) window.addLast(new long[hist.length]); // nothing before the first sample
+        window.addLast(hist);
+        while (window.size() > WINDOW_SECONDS + 1) window.removeFirst();
+        long[] recent = Histogram.minus(hist, window.peekFirst());
+
+        Snapshot s = new Snapshot();
+        s.nanos = now;
+        s.messagesIn = messagesIn.sum();
+        s.bytesIn = bytesIn.sum();
+        s.messagesOut = messagesOut.sum();
+        s.bytesOut = bytesOut.sum();
+        s.accepted = accepted.sum();
+        s.writes = writes.sum();
+        s.compressRaw = compressRaw.sum();
+        s.compressWire = compressWire.sum();
+        s.compressNanos = compressNanos.sum();
+        s.poolHits = BufferPool.hits.sum();
+        s.poolMisses = BufferPool.misses.sum();
+        s.poolDiscards = BufferPool.discards.sum();
+        s.poolFree = BufferPool.freeBuffers();
+        s.fileCacheHits = FileCache.hits.sum();
+        s.fileCacheMisses = FileCache.misses.sum();
+        s.fileCacheSpills = FileCache.spills.sum();
+        s.fileCacheSkipped = FileCache.skippedBytes.sum();
+        s.fileCacheMemory = FileCache.memoryBytes();
+        s.fileCacheDisk = FileCache.diskBytes();
+        s.eventsDropped = EventBus.droppedCount();
+        s.logDropped = Log.droppedCount();
+        s.messagesInRate = (s.messagesIn - prev.messagesIn) / secs;
+        s.bytesInRate = (s.bytesIn - prev.bytesIn) / secs;
+        s.messagesOutRate = (s.messagesOut - prev.messagesOut) / secs;
+        s.bytesOutRate = (s.bytesOut - prev.bytesOut) / secs;
+        s.acceptRate = (s.accepted - prev.accepted) / secs;
+        s.writesRate = (s.writes - prev.writes) / secs;
+        s.compressionRatio = s.compressWire == 0 ? 1 : (double) s.compressRaw / s.compressWire;
+        s.compressionCpuMsPerSec = (s.compressNanos - prev.compressNanos) / 1e6 / secs;
+        s.connections = queues.size();
+        s.sessions = Sessions.count();
+        for (Map.Entry<String, SendQueue.Stats> e : queues.entrySet()) {
+            int depth = e.getValue().depth;
+            s.queueDepthTotal += depth;
+            if (depth > s.queueDepthMax) {
+                s.queueDepthMax = depth;
+                s.queueDepthMaxNick = e.getKey();
+            }
+        }
+        s.p50 = Histogram.percentile(recent, 0.50);
+        s.p90 = Histogram.percentile(recent, 0.90);
+        s.p99 = Histogram.percentile(recent, 0.99);
+        s.p999 = Histogram.percentile(recent, 0.999);
+        s.max = Histogram.percentile(recent, 1.0);
+        last = s;
+    }
+
+    static Snapshot snapshot() {
+        return last;
+    }
+
+    // Prometheus text exposition format
+    static String scrape() {
+        Snapshot s = last;
+        StringBuilder b = new StringBuilder(1024);
+        counter(b, "chat_messages_in_total", "Client messages received", s.messagesIn);
+        counter(b, "chat_bytes_in_total", "Bytes read from clients", s.bytesIn);
+        counter(b, "chat_messages_out_total", "Messages written to clients", s.messagesOut);
+        counter(b, "chat_bytes_out_total", "Bytes written to clients", s.bytesOut);
+        counter(b, "chat_accepted_total", "Connections accepted", s.accepted);
+        counter(b, "chat_writes_total", "Batched frame writes to clients", s.writes);
+        counter(b, "chat_compress_raw_bytes_total", "Frame payload bytes compressed", s.compressRaw);
+        counter(b, "chat_compress_wire_bytes_total", "Compressed size of those bytes", s.compressWire);
+        counter(b, "chat_compress_nanoseconds_total", "Time spent compressing", s.compressNanos);
+        counter(b, "chat_buffer_pool_hits_total", "Send buffers reused from the pool", s.poolHits);
+        counter(b, "chat_buffer_pool_misses_total", "Send buffers newly allocated", s.poolMisses);
+        counter(b, "chat_buffer_pool_discards_total", "Send buffers released into a full pool", s.poolDiscards);
+        counter(b, "chat_file_cache_hits_total", "Files sent without reading them again", s.fileCacheHits);
+        counter(b, "chat_file_cache_misses_total", "Files read and hashed", s.fileCacheMisses);
+        counter(b, "chat_file_cache_spills_total", "Cached files moved from memory to disk", s.fileCacheSpills);
+        counter(b, "chat_file_cache_skipped_bytes_total", "File bytes not sent: the client had them", s.fileCacheSkipped);
+        counter(b, "chat_events_dropped_total", "Message events dropped: subscribers behind", s.eventsDropped);
+        counter(b, "chat_log_dropped_total", "Log records dropped: log writer behind", s.logDropped);
+        gauge(b, "chat_messages_in_per_second", s.messagesInRate);
+        gauge(b, "chat_messages_out_per_second", s.messagesOutRate);
+        gauge(b, "chat_bytes_in_per_second", s.bytesInRate);
+        gauge(b, "chat_bytes_out_per_second", s.bytesOutRate);
+        gauge(b, "chat_accepts_per_second", s.acceptRate);
+        gauge(b, "chat_writes_per_second", s.writesRate);
+        gauge(b, "chat_connections", s.connections);
+        gauge(b, "chat_sessions", s.sessions);
+        gauge(b, "chat_send_queue_depth_total", s.queueDepthTotal);
+        gauge(b, "chat_send_queue_depth_max", s.queueDepthMax);
+        gauge(b, "chat_compression_ratio", s.compressionRatio);
+        gauge(b, "chat_compression_cpu_ms_per_second", s.compressionCpuMsPerSec);
+        gauge(b, "chat_buffer_pool_free", s.poolFree);
+        gauge(b, "chat_file_cache_memory_bytes", s.fileCacheMemory);
+        gauge(b, "chat_file_cache_disk_bytes", s.fileCacheDisk);
+        b.append("# HELP chat_delivery_latency_microseconds Frame built to written, last ")
+                .append(WINDOW_SECONDS).append(" s\n# TYPE chat_delivery_latency_microseconds summary\n");
+        quantile(b, "0.5", s.p50);
+        quantile(b, "0.9", s.p90);
+        quantile(b, "0.99", s.p99);
+        quantile(b, "0.999", s.p999);
+        quantile(b, "1", s.max);
+        return b.toString();
+    }
+
+    // the admin GUI's dashboard
+    static String summary() {
+        Snapshot s = last;
+        return String.format("Connections     %,d  (%,d sessions, %.1f accepts/s, %,d total)%n"
+                        + "Messages in     %,.0f/s  (%,d total)%n"
+                        + "Messages out    %,.0f/s  (%,d total)%n"
+                        + "Writes          %,.0f/s  (%.1f messages per write)%n"
+                        + "Bytes in        %s/s%n"
+                        + "Bytes out       %s/s%n"
+                        + "Send queues     %,d queued, deepest %,d%s%n"
+                        + "Compression     %.2fx  (%s -> %s, %.1f ms CPU/s)%n"
+                        + "Buffer pool     %,d hits, %,d misses, %,d discarded, %,d free%n"
+                        + "File cache      %,d hits, %,d misses, %s in memory, %s spilled, %s not resent%n"
+                        + "Latency (%d s)  p50 %s  p90 %s  p99 %s  p99.9 %s  max %s%n",
+                s.connections, s.sessions, s.acceptRate, s.accepted,
+                s.messagesInRate, s.messagesIn, s.messagesOutRate, s.messagesOut,
+                s.writesRate, s.writes == 0 ? 0.0 : (double) s.messagesOut / s.writes,
+                bytes(s.bytesInRate), bytes(s.bytesOutRate),
+                s.queueDepthTotal, s.queueDepthMax, s.queueDepthMaxNick == null ? "" : " (" + s.queueDepthMaxNick + ")",
+                s.compressionRatio, bytes(s.compressRaw), bytes(s.compressWire), s.compressionCpuMsPerSec,
+                s.poolHits, s.poolMisses, s.poolDiscards, s.poolFree,
+                s.fileCacheHits, s.fileCacheMisses, bytes(s.fileCacheMemory), bytes(s.fileCacheDisk), bytes(s.fileCacheSkipped),
+                WINDOW_SECONDS, micros(s.p50), micros(s.p90), micros(s.p99), micros(s.p999), micros(s.max));
+    }
+
+    private static void counter(StringBuilder b, String name, String help, long v) {
+        b.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" counter\n")
+                .append(name).append(' ').append(v).append('\n');
+    }
+
+    private static void gauge(StringBuilder b, String name, double v) {
+        b.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(v).append('\n');
+    }
+
+    private static void quantile(StringBuilder b, String q, long v) {
+        b.append("chat_delivery_latency_microseconds{quantile=\"").append(q).append("\"} ").append(v).append('\n');
+    }
+
+    private static String bytes(double v) {
+        if (v >= 1024 * 1024) return String.format("%.1f MB", v / (1024 * 1024));
+        if (v >= 1024) return String.format("%.1f KB", v / 1024);
+        return String.format("%.0f B", v);
+    }
+
+    private static String micros(long v) {
+        if (v >= 1_000_000) return String.format("%.2f s", v / 1e6);
+        if (v >= 1000) return String.format("%.1f ms", v / 1e3);
+        return v + " us";
+    }
+
+    // one sample(); fields are written before it is published
+    static final class Snapshot {
+        long nanos = System.nanoTime();
+        long messagesIn, bytesIn, messagesOut, bytesOut, accepted, writes;
+        double messagesInRate, bytesInRate, messagesOutRate, bytesOutRate, acceptRate, writesRate;
+        long compressRaw, compressWire, compressNanos;
+        double compressionRatio = 1, compressionCpuMsPerSec;
+        long poolHits, poolMisses, poolDiscards;
+        int poolFree;
+        long fileCacheHits, fileCacheMisses, fileCacheSpills, fileCacheSkipped, fileCacheMemory, fileCacheDisk;
+        long eventsDropped, logDropped;
+        int connections, sessions;
+        long queueDepthTotal;
+        int queueDepthMax;
+        String queueDepthMaxNick;
+        long p50, p90, p99, p999, max;
+    }
+
+    // log-linear histogram of non-negative longs
+    static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+        // a power of two >= the core count (at most 16), so writer threads rarely share one
+        private static final int STRIPES = Math.min(16,
+                Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)));
+
+        private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+        Histogram() {
+            for (int i = 0; i < STRIPES; i++) stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+
+        void record(long v) {
+            stripes[stripe()].incrementAndGet(index(Math.max(0, v)));
+        }
+
+        // the stripes summed
+        long[] counts() {
+            long[] out = new long[BUCKETS];
+            for (AtomicLongArray s : stripes) {
+                for (int i = 0; i < BUCKETS; i++) out[i] += s.get(i);
+            }
+            return out;
+        }
+
+        // the calling thread's stripe: its id, hashed (ids are sequential)
+        private static int stripe() {
+            long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 32) & (STRIPES - 1);
+        }
+
+        // values below SUB exact, then SUB buckets per power of two
+        static int index(long v) {
+            if (v < SUB) return (int) v;
+            int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+            return (shift + 1) * SUB + (int) ((v >>> shift) - SUB);
+        }
+
+        // highest value that lands in bucket i
+        static long upperBound(int i) {
+            if (i < SUB) return i;
+            int shift = i / SUB - 1;
+            return ((long) (i % SUB + SUB + 1) << shift) - 1;
+        }
+
+        static long[] minus(long[] a, long[] b) {
+            long[] out = new long[a.length];
+            for (int i = 0; i < a.length; i++) out[i] = a[i] - b[i];
+            return out;
+        }
+
+        // upper bound of the bucket holding the q-quantile; 0 if empty
+        static long percentile(long[] counts, double q) {
+            long total = 0;
+            for (long c : counts) total += c;
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return upperBound(i);
+            }
+            return upperBound(counts.length - 1);
+        }
+    }
+
+    private static final class Mx implements ChatServerMXBean {
+        public double getMessagesInPerSec() { return last.messagesInRate; }
+        public double getMessagesOutPerSec() { return last.messagesOutRate; }
+        public double getBytesInPerSec() { return last.bytesInRate; }
+        public double getBytesOutPerSec() { return last.bytesOutRate; }
+        public double getAcceptsPerSec() { return last.acceptRate; }
+        public long getMessagesIn() { return messagesIn.sum(); }
+        public long getMessagesOut() { return messagesOut.sum(); }
+        public long getBytesIn() { return bytesIn.sum(); }
+        public long getBytesOut() { return bytesOut.sum(); }
+        public long getAccepted() { return accepted.sum(); }
+        public long getWrites() { return writes.sum(); }
+        public double getWritesPerSec() { return last.writesRate; }
+        public int getConnections() { return last.connections; }
+        public long getQueueDepthTotal() { return last.queueDepthTotal; }
+        public int getQueueDepthMax() { return last.queueDepthMax; }
+        public long getLatencyP50Micros() { return last.p50; }
+        public long getLatencyP99Micros() { return last.p99; }
+        public long getLatencyP999Micros() { return last.p999; }
+        public long getLatencyMaxMicros() { return last.max; }
+        public double getCompressionRatio() { return last.compressionRatio; }
+        public double getCompressionCpuMsPerSec() { return last.compressionCpuMsPerSec; }
+        public long getBufferPoolHits() { return BufferPool.hits.sum(); }
+        public long getBufferPoolMisses() { return BufferPool.misses.sum(); }
+        public long getFileCacheHits() { return FileCache.hits.sum(); }
+        public long getFileCacheSkippedBytes() { return FileCache.skippedBytes.sum(); }
+        public long getEventsDropped() { return EventBus.droppedCount(); }
+        public long getLogRecordsDropped() { return Log.droppedCount(); }
+        public int getSessions() { return last.sessions; }
+    }
+}
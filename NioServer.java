@@ -0,0 +1,444 @@
+package DETAI1;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking server mode:
+ * - one ServerSocketChannel, accepted on the first selector loop
+ * - N selector loops (normally one per core), connections spread round-robin
+ * - per-connection read buffer + line framing, write queue of frames / files; queued frames
+ *   are gathered into one pooled direct buffer per write (see SendBatch)
+ * - FILESTREAM bodies written with FileChannel.transferTo
+ * - nothing that may wait runs on a loop: registration (cluster claims), the backlog a new
+ *   client gets (history, mailbox), HISTORY pages and what a closing connection leaves go
+ *   to worker threads (see Server.registerAsync, Server.offload)
+ *
+ * Speaks exactly the same protocol as Server.ClientHandler: text lines, or v2 binary
+ * frames once negotiated in the handshake.
+ */
+class NioServer {
+    private static final int READ_BUFFER_SIZE = 8192;
+    // guard against a client that never sends a newline (v2: the frame payload limit)
+    private static final int MAX_LINE_BYTES = 4 * 1024 * 1024;
+
+    private final ServerSocketChannel serverChannel;
+    private final Loop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile boolean running = true;
+
+    private NioServer(ServerSocketChannel serverChannel, int loopCount) throws IOException {
+        this.serverChannel = serverChannel;
+        this.loops = new Loop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) loops[i] = new Loop(i);
+    }
+
+    static NioServer start(int port, int loopCount) throws IOException {
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        try {
+            ssc.bind(new InetSocketAddress(port));
+            ssc.configureBlocking(false);
+            NioServer server = new NioServer(ssc, loopCount);
+            ssc.register(server.loops[0].selector, SelectionKey.OP_ACCEPT);
+            for (Loop l : server.loops) l.thread.start();
+            return server;
+        } catch (IOException ex) {
+            ssc.close();
+            throw ex;
+        }
+    }
+
+    void stop() {
+        running = false;
+        try { serverChannel.close(); } catch (IOException ignored) {}
+        for (Loop l : loops) l.selector.wakeup();
+    }
+
+    private void acceptAll() {
+        try {
+            SocketChannel ch;
+            while ((ch = serverChannel.accept()) != null) {
+                Metrics.accepted.increment();
+                ch.configureBlocking(false);
+                Server.tuneSocket(ch.socket());
+                Loop l = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                SocketChannel accepted = ch;
+                l.execute(() -> l.register(accepted));
+            }
+        } catch (IOException ex) {
+            if (running) Log.error("accept_error", null, null, "accept failed: " + ex.getMessage());
+        }
+    }
+
+    // ================= selector loop =================
+    private final class Loop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        Loop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "nio-loop-" + index);
+            thread.setDaemon(true);
+        }
+
+        // run r on this loop's thread
+        void execute(Runnable r) {
+            tasks.offer(r);
+            if (Thread.currentThread() != thread) selector.wakeup();
+        }
+
+        void register(SocketChannel ch) {
+            try {
+                NioConnection c = new NioConnection(this, ch);
+                c.key = ch.register(selector, SelectionKey.OP_READ, c);
+                c.enqueue(Frame.textOnly("REQUEST_NICK"));
+            } catch (IOException ex) {
+                try { ch.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        try {
+                            if (!key.isValid()) continue;
+                            if (key.isAcceptable()) {
+                                acceptAll();
+                                continue;
+                            }
+                            NioConnection c = (NioConnection) key.attachment();
+                            if (key.isReadable()) c.handleRead();
+                            if (key.isValid() && key.isWritable()) c.flush();
+                        } catch (CancelledKeyException ignored) {
+                            // connection closed concurrently
+                        }
+                    }
+                    // tasks queued from this thread don't wake the selector, so drain after the keys
+                    Runnable r;
+                    while ((r = tasks.poll()) != null) r.run();
+                } catch (IOException ex) {
+                    if (running) Log.error("io_error", null, null, "selector loop: " + ex.getMessage());
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection) ((NioConnection) key.attachment()).close();
+            }
+            try { selector.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // ================= connection =================
+    private static final class NioConnection implements Connection {
+        private final Loop loop;
+        private final SocketChannel channel;
+        SelectionKey key;
+
+        private final ByteBuffer readBuf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private byte[] lineBuf = new byte[256]; // current line (v1) or frame (v2) being assembled
+        private int lineLen;
+        private int frameLen = -1;              // v2: payload length once the header is in
+        private volatile int proto = Frame.PROTO_TEXT;
+        private volatile Set<String> caps = Collections.emptySet();
+
+        // Frame or SendQueue.FileBody, in send order
+        private final SendQueue writeQueue = new SendQueue();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private ByteBuffer currentBuf;
+        private Frame currentFrame;             // file header currentBuf holds, for Metrics
+        private boolean currentIsBatch;         // currentBuf is the batch's (frames from writeQueue)
+        private FrameDeflater deflater;         // set at handshake if negotiated
+        private final SendBatch batch = new SendBatch(frame -> {
+            byte[] bytes = frame.bytes(proto);
+            return deflater != null ? deflater.encode(frame, bytes) : bytes;
+        });
+        private SendQueue.FileBody pendingFile; // file region to open once its header is written
+        private FileChannel currentFile;
+        private SendQueue.FileBody currentBody; // region currentFile is sending
+        private long filePos, fileEnd;
+        private Sessions.Session session;       // set at handshake if the client has one
+
+        private volatile long lastActive = System.currentTimeMillis();
+        private volatile boolean open = true;
+        private String nick;
+        // handshake handed to Server.registerAsync: no reading or writing until it is done
+        private boolean registering;
+
+        NioConnection(Loop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        public long getLastActive() { return lastActive; }
+
+        public void enqueue(Frame frame) {
+            if (!open) return;
+            if (writeQueue.offer(frame)) scheduleFlush();
+            else dropSlowConsumer();
+        }
+
+        public void enqueueFile(SendQueue.FileBody body) {
+            if (!open) return;
+            if (writeQueue.offer(body)) scheduleFlush();
+            else dropSlowConsumer();
+        }
+
+        public boolean supports(String capability) { return caps.contains(capability); }
+
+        public SendQueue.Stats queueStats() { return writeQueue.stats(); }
+
+        public void setSendPolicy(SendQueue.Policy policy) { writeQueue.setPolicy(policy); }
+
+        public boolean release(List<Object> backlog) {
+            if (!writeQueue.release(backlog)) return false;
+            scheduleFlush();
+            return true;
+        }
+
+        private void dropSlowConsumer() {
+            Log.warn("slow_consumer", nick, null, "dropped: send queue full");
+            closeQuiet();
+        }
+
+        public void closeQuiet() {
+            if (!open) return;
+            open = false;
+            loop.execute(this::close);
+        }
+
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) loop.execute(this::flush);
+        }
+
+        // ---- read side (loop thread only) ----
+        void handleRead() {
+            try {
+                int n = channel.read(readBuf);
+                if (n < 0) { close(); return; }
+                Metrics.bytesIn.add(n);
+                lastActive = System.currentTimeMillis();
+                processInput();
+            } catch (IOException ex) {
+                Log.warn("io_error", nick, remoteAddress(), "io error: " + ex.getMessage());
+                close();
+            }
+        }
+
+        // the lines / frames in readBuf; what follows a handshake being registered stays there
+        private void processInput() throws IOException {
+            readBuf.flip();
+            while (readBuf.hasRemaining() && !registering) {
+                byte b = readBuf.get();
+                if (proto >= Frame.PROTO_BINARY) {
+                    appendLineByte(b);
+                    if (lineLen == Frame.HEADER_SIZE) {
+                        frameLen = ((lineBuf[2] & 0xFF) << 24) | ((lineBuf[3] & 0xFF) << 16)
+                                | ((lineBuf[4] & 0xFF) << 8) | (lineBuf[5] & 0xFF);
+                        if (frameLen < 0 || frameLen > MAX_LINE_BYTES) throw new IOException("bad frame length");
+                    }
+                    if (lineLen >= Frame.HEADER_SIZE && lineLen - Frame.HEADER_SIZE == frameLen) {
+                        lineLen = 0;
+                        // other frame types are server -> client only
+                        if (lineBuf[0] == Frame.LINE) {
+                            handleLine(new String(lineBuf, Frame.HEADER_SIZE, frameLen, StandardCharsets.UTF_8));
+                            if (!channel.isOpen()) return;
+                        }
+                    }
+                } else if (b == '\n') {
+                    int len = lineLen;
+                    if (len > 0 && lineBuf[len - 1] == '\r') len--;
+                    String line = new String(lineBuf, 0, len, StandardCharsets.UTF_8);
+                    lineLen = 0;
+                    handleLine(line);
+                    if (!channel.isOpen()) return;
+                } else {
+                    appendLineByte(b);
+                }
+            }
+            readBuf.compact();
+        }
+
+        private void appendLineByte(byte b) throws IOException {
+            if (lineLen == lineBuf.length) {
+                // a v2 frame holds its header too; MAX_LINE_BYTES is for the payload
+                int max = proto >= Frame.PROTO_BINARY ? MAX_LINE_BYTES + Frame.HEADER_SIZE : MAX_LINE_BYTES;
+                if (lineBuf.length >= max) throw new IOException("line too long");
+                byte[] grown = new byte[Math.min(max, lineBuf.length * 2)];
+                System.arraycopy(lineBuf, 0, grown, 0, lineLen);
+                lineBuf = grown;
+            }
+            lineBuf[lineLen++] = b;
+        }
+
+        private void handleLine(String line) {
+            if (nick == null) {
+                // handshake: first line is the requested nick (or HELLO|...); bytes after it use the agreed protocol
+                Handshake hs = Handshake.parse(line);
+                writeQueue.hold(); // until onClientRegistered has the backlog
+                // the arbiter may take a round trip (or time out), a session takeover closes
+                // another connection: not on this loop
+                registering = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                Server.registerAsync(hs, this, assigned -> loop.execute(() -> {
+                    registered(hs, assigned);
+                    resumeReading();
+                }));
+                return;
+            }
+            String msg = line.trim();
+            if (msg.isEmpty()) return;
+            if ("/quit".equalsIgnoreCase(msg)) { close(); return; }
+            Server.onClientMessage(nick, this, msg);
+        }
+
+        // handshake done (loop thread): ack, or reject if no nick was granted
+        private void registered(Handshake hs, String assigned) {
+            registering = false;
+            if (!channel.isOpen()) {
+                if (assigned != null) Server.unregister(assigned, this); // closed while registering
+                return;
+            }
+            if (assigned == null) {
+                try {
+                    channel.write(ByteBuffer.wrap(Frame.textOnly(Handshake.reject("cluster unavailable, try again later")).bytes(Frame.PROTO_TEXT)));
+                } catch (IOException ignored) {}
+                close();
+                return;
+            }
+            nick = assigned;
+            // the ack must precede anything queued since registration, so it goes straight to the
+            // write cursor (empty here: REQUEST_NICK was flushed before the client could answer)
+            currentBuf = ByteBuffer.wrap(Frame.textOnly(Server.ackLine(hs, nick, this)).bytes(Frame.PROTO_TEXT));
+            proto = hs.proto;
+            caps = hs.caps;
+            if (FrameDeflater.negotiated(proto, supports(FrameDeflater.CAPABILITY))) deflater = new FrameDeflater();
+            session = Sessions.attached(nick, this);
+            batch.track(session, this);
+            scheduleFlush();
+            Log.info("connect", nick, remoteAddress(), "connected");
+            String registeredNick = nick;
+            Server.offload(() -> Server.onClientRegistered(registeredNick, this)); // reads history
+        }
+
+        // after registerAsync: what arrived behind the handshake, then the socket again
+        private void resumeReading() {
+            if (!channel.isOpen()) return;
+            try {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                processInput();
+            } catch (IOException ex) {
+                Log.warn("io_error", nick, remoteAddress(), "io error: " + ex.getMessage());
+                close();
+            }
+        }
+
+        // ---- write side (loop thread only) ----
+        void flush() {
+            flushScheduled.set(false);
+            if (!channel.isOpen() || registering) return; // registered() flushes the ack first
+            try {
+                while (true) {
+                    if (currentBuf != null) {
+                        channel.write(currentBuf);
+                        if (currentBuf.hasRemaining()) break;
+                        if (currentIsBatch) batch.written();
+                        else if (currentFrame != null) Metrics.sent(currentFrame, currentBuf.limit());
+                        currentIsBatch = false;
+                        currentFrame = null;
+                        currentBuf = null;
+                    } else if (pendingFile != null) {
+                        currentFile = FileChannel.open(pendingFile.file.toPath());
+                        filePos = pendingFile.offset;
+                        fileEnd = Math.min(currentFile.size(), pendingFile.offset + pendingFile.length);
+                        currentBody = pendingFile;
+                        pendingFile = null;
+                    } else if (currentFile != null) {
+                        long sent = currentFile.transferTo(filePos, fileEnd - filePos, channel);
+                        filePos += sent;
+                        Metrics.bytesOut.add(sent);
+                        if (filePos >= fileEnd) {
+                            currentFile.close();
+                            currentFile = null;
+                            if (session != null) session.written(this, currentBody);
+                            currentBody = null;
+                        } else if (sent == 0) {
+                            break; // socket buffer full
+                        }
+                    } else {
+                        Object next = batch.poll(writeQueue);
+                        if (next == null) break;
+                        if (next instanceof Frame) {
+                            // this frame and the ones queued behind it, copied into one pooled buffer
+                            currentBuf = batch.fill((Frame) next, writeQueue);
+                            currentIsBatch = true;
+                        } else {
+                            SendQueue.FileBody body = (SendQueue.FileBody) next;
+                            currentFrame = body.header;
+                            currentBuf = ByteBuffer.wrap(currentFrame.bytes(proto));
+                            pendingFile = body;
+                        }
+                    }
+                }
+                boolean pending = currentBuf != null || pendingFile != null || currentFile != null;
+                int ops = key.interestOps();
+                int wanted = pending ? (ops | SelectionKey.OP_WRITE) : (ops & ~SelectionKey.OP_WRITE);
+                if (wanted != ops) key.interestOps(wanted);
+            } catch (IOException ex) {
+                Log.warn("send_error", nick, null, "send error: " + ex.getMessage());
+                close();
+            }
+        }
+
+        void close() {
+            open = false;
+            if (key != null) key.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+            try { if (currentFile != null) currentFile.close(); } catch (IOException ignored) {}
+            // not (fully) written, in send order: the file under way, the batch, the queue
+            List<Object> unsent = new ArrayList<>();
+            if (currentBody != null) unsent.add(currentBody);
+            else if (pendingFile != null) unsent.add(pendingFile);
+            unsent.addAll(batch.discard());
+            unsent.addAll(writeQueue.close());
+            currentFile = null;
+            currentBody = null;
+            currentBuf = null;
+            currentIsBatch = false;
+            pendingFile = null;
+            if (deflater != null) deflater.end();
+            deflater = null;
+            if (nick != null) {
+                // the leftovers may go to the mailbox; then the nick is free (in that order)
+                String gone = nick;
+                Server.offload(() -> {
+                    Server.keepUndelivered(gone, this, unsent);
+                    Server.unregister(gone, this);
+                    Log.info("disconnect", gone, null, "disconnected");
+                });
+                nick = null;
+            }
+        }
+
+        private String remoteAddress() {
+            try { return String.valueOf(channel.getRemoteAddress()); } catch (IOException ex) { return "?"; }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package DETAI1;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named chat rooms: a message reaches the room's members only.
+ * Client -> server:
+ * - JOIN|room         join (the room exists while it has members)
+ * - LEAVE|room
+ * - ROOM|room|text    message to a room the client is in
+ * Server -> client (text lines / LINE frames):
+ * - ROOM|room|sender|text
+ * - ROOM_JOINED|room|memberCount, ROOM_LEFT|room, ROOM_ERROR|room|reason
+ * - room -> members is an immutable array swapped on join / leave, so a room message only
+ *   walks that room's members (never the whole client map) and takes no lock
+ * - each room message is one Frame shared by all members (encoded once per protocol version)
+ * - nick -> rooms, so a disconnect leaves its rooms without looking at the others
+ * - a resumable session (Sessions) keeps its rooms while detached; the resumed connection takes
+ *   the old one's place in them (rebind)
+ * - in a cluster room messages are relayed to every node, which delivers to its own members
+ */
+final class Rooms {
+    static final int MAX_NAME = 64;
+    static final int MAX_ROOMS_PER_CLIENT = 100;
+
+    // members of one room; never modified, replaced as a whole
+    private static final class Members {
+        static final Members EMPTY = new Members(new String[0], new Connection[0]);
+
+        final String[] nicks;
+        final Connection[] conns;
+
+        Members(String[] nicks, Connection[] conns) {
+            this.nicks = nicks;
+            this.conns = conns;
+        }
+
+        int indexOf(String nick) {
+            for (int i = 0; i < nicks.length; i++) if (nicks[i].equals(nick)) return i;
+            return -1;
+        }
+
+        Members with(String nick, Connection c) {
+            int n = nicks.length;
+            String[] ns = Arrays.copyOf(nicks, n + 1);
+            Connection[] cs = Arrays.copyOf(conns, n + 1);
+            ns[n] = nick;
+            cs[n] = c;
+            return new Members(ns, cs);
+        }
+
+        // null once the room is empty
+        Members without(int i) {
+            int n = nicks.length - 1;
+            if (n == 0) return null;
+            String[] ns = new String[n];
+            Connection[] cs = new Connection[n];
+            System.arraycopy(nicks, 0, ns, 0, i);
+            System.arraycopy(conns, 0, cs, 0, i);
+            System.arraycopy(nicks, i + 1, ns, i, n - i);
+            System.arraycopy(conns, i + 1, cs, i, n - i);
+            return new Members(ns, cs);
+        }
+
+        Members rebound(int i, Connection c) {
+            Connection[] cs = conns.clone();
+            cs[i] = c;
+            return new Members(nicks, cs);
+        }
+    }
+
+    private static final Map<String, Members> rooms = new ConcurrentHashMap<>();
+    private static final Map<String, Set<String>> roomsByNick = new ConcurrentHashMap<>();
+
+    private Rooms() {}
+
+    // handles JOIN / LEAVE / ROOM; returns false if msg is not a room message
+    static boolean handle(String nick, Connection c, String msg) {
+        if (msg.startsWith("JOIN|")) {
+            String room = msg.substring("JOIN|".length()).trim();
+            String error = join(nick, c, room);
+            c.enqueue(Frame.text(error == null ? "ROOM_JOINED|" + room + "|" + memberCount(room) : "ROOM_ERROR|" + room + "|" + error));
+            return true;
+        }
+        if (msg.startsWith("LEAVE|")) {
+            String room = msg.substring("LEAVE|".length()).trim();
+            c.enqueue(Frame.text(leave(nick, room) ? "ROOM_LEFT|" + room : "ROOM_ERROR|" + room + "|not a member"));
+            return true;
+        }
+        if (msg.startsWith("ROOM|")) {
+            String[] p = msg.split("\\|", 3);
+            if (p.length < 3) return true;
+            if (!isMember(nick, p[1])) {
+                c.enqueue(Frame.text("ROOM_ERROR|" + p[1] + "|not a member"));
+                return true;
+            }
+            Server.sendToRoom(p[1], nick, p[2]);
+            return true;
+        }
+        return false;
+    }
+
+    // null if joined (or already a member), otherwise why not
+    static String join(String nick, Connection c, String room) {
+        if (room.isEmpty() || room.length() > MAX_NAME || room.indexOf('|') >= 0) return "invalid room name";
+        Set<String> mine = roomsByNick.computeIfAbsent(nick, k -> ConcurrentHashMap.newKeySet());
+        if (mine.contains(room)) return null;
+        if (mine.size() >= MAX_ROOMS_PER_CLIENT) return "too many rooms";
+        mine.add(room);
+        rooms.compute(room, (k, m) -> {
+            if (m == null) m = Members.EMPTY;
+            return m.indexOf(nick) >= 0 ? m : m.with(nick, c);
+        });
+        if (roomsByNick.get(nick) != mine) removeMember(nick, room); // disconnected meanwhile
+        return null;
+    }
+
+    static boolean leave(String nick, String room) {
+        Set<String> mine = roomsByNick.get(nick);
+        if (mine == null || !mine.remove(room)) return false;
+        removeMember(nick, room);
+        return true;
+    }
+
+    // on disconnect
+    static void leaveAll(String nick) {
+        Set<String> mine = roomsByNick.remove(nick);
+        if (mine == null) return;
+        for (String room : mine) removeMember(nick, room);
+    }
+
+    // nick's memberships now deliver to c (its session resumed on a new connection)
+    static void rebind(String nick, Connection c) {
+        Set<String> mine = roomsByNick.get(nick);
+        if (mine == null) return;
+        for (String room : mine) {
+            rooms.computeIfPresent(room, (k, m) -> {
+                int i = m.indexOf(nick);
+                return i < 0 ? m : m.rebound(i, c);
+            });
+        }
+    }
+
+    static boolean isMember(String nick, String room) {
+        Set<String> mine = roomsByNick.get(nick);
+        return mine != null && mine.contains(room);
+    }
+
+    static int memberCount(String room) {
+        Members m = rooms.get(room);
+        return m == null ? 0 : m.nicks.length;
+    }
+
+    // room -> local member count
+    static Map<String, Integer> list() {
+        Map<String, Integer> out = new TreeMap<>();
+        for (Map.Entry<String, Members> e : rooms.entrySet()) out.put(e.getKey(), e.getValue().nicks.length);
+        return out;
+    }
+
+    // one frame for every local member of room; returns how many got it
+    static int deliverLocal(String room, String sender, String text) {
+        Members m = rooms.get(room);
+        if (m == null) return 0;
+        Frame f = Frame.text("ROOM|" + room + "|" + sender + "|" + text);
+        for (Connection c : m.conns) c.enqueue(f);
+        return m.conns.length;
+    }
+
+    private static void removeMember(String nick, String room) {
+        rooms.computeIfPresent(room, (k, m) -> {
+            int i = m.indexOf(nick);
+            return i < 0 ? m : m.without(i);
+        });
+    }
+}
@@ -0,0 +1,161 @@
+package DETAI1;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The write side of one connection: frames waiting in its SendQueue copied back to back into one
+ * pooled direct buffer (BufferPool), so a burst of messages is a single socket write and the
+ * steady state allocates nothing per message.
+ * - fill() takes the first frame and keeps polling the queue until the buffer or MAX_FRAMES is
+ *   reached; a FileBody (or a frame that no longer fits) is carried over to the next poll()
+ * - with a linger budget (sender threads, -Dchat.send.lingerMicros) a batch that is part of a
+ *   burst (two frames or more) waits up to the budget for more frames before it is written;
+ *   a lone frame always goes out at once, so interactive traffic gets no added delay
+ * - a frame bigger than BufferPool.MAX_SIZE goes out alone from its own heap bytes
+ * - written() records the frames in Metrics (and in the client's session, see Sessions) and
+ *   returns the buffer to the pool
+ * Used by the one thread writing to the connection (sender thread or selector loop).
+ */
+final class SendBatch {
+    static final int MIN_BUFFER = BufferPool.SIZES[0];
+    static final int MAX_FRAMES = 64;
+    // latency budget for coalescing a burst into one write; 0 = write what is queued right away
+    static final long LINGER_NANOS = Long.getLong("chat.send.lingerMicros", 0) * 1000;
+
+    // the connection's encoding: protocol version plus compression (see FrameDeflater)
+    interface Encoder {
+        byte[] encode(Frame frame);
+    }
+
+    private final Encoder encoder;
+    private final long lingerNanos;
+    private final Frame[] frames = new Frame[MAX_FRAMES];
+    private final int[] sizes = new int[MAX_FRAMES];
+    private int count;
+    private ByteBuffer buf;
+    private boolean pooled;
+    private Object carry;       // polled but not yet sent
+    private byte[] carryBytes;  // its encoding if it is a Frame (encoding twice would break a deflate stream)
+    private Sessions.Session session; // numbers what is written, if the client has a session
+    private Connection owner;
+
+    SendBatch(Encoder encoder) {
+        this(encoder, 0);
+    }
+
+    // lingerNanos > 0 only for a writer that may block (it waits on the queue)
+    SendBatch(Encoder encoder, long lingerNanos) {
+        this.encoder = encoder;
+        this.lingerNanos = lingerNanos;
+    }
+
+    // written frames also go to session s of connection c (null: no session)
+    void track(Sessions.Session s, Connection c) {
+        session = s;
+        owner = c;
+    }
+
+    // the item carried over from the last fill, else the queue's next one; null if none
+    Object poll(SendQueue queue) {
+        if (carry == null) return queue.poll();
+        Object item = carry;
+        carry = null;
+        return item;
+    }
+
+    boolean hasCarry() {
+        return carry != null;
+    }
+
+    // first and the frames queued behind it, flipped and ready to write
+    ByteBuffer fill(Frame first, SendQueue queue) {
+        byte[] bytes = encodingOf(first);
+        buf = BufferPool.acquire(Math.max(MIN_BUFFER, bytes.length));
+        pooled = buf != null;
+        if (!pooled) {
+            add(first, bytes);
+            buf = ByteBuffer.wrap(bytes);
+            return buf;
+        }
+        buf.put(bytes);
+        add(first, bytes);
+        boolean lingered = false;
+        while (count < MAX_FRAMES) {
+            Object next = queue.poll();
+            if (next == null) {
+                // a burst is under way: give its producers the budget to add to this write, once.
+                // Parked rather than waiting on the queue, so producers don't wake us per frame
+                if (lingered || lingerNanos <= 0 || count < 2) break;
+                lingered = true;
+                LockSupport.parkNanos(lingerNanos);
+                continue;
+            }
+            if (!(next instanceof Frame)) {
+                carry = next;
+                break;
+            }
+            Frame frame = (Frame) next;
+            bytes = encoder.encode(frame);
+            if (bytes.length > buf.remaining()) {
+                carry = frame;
+                carryBytes = bytes;
+                break;
+            }
+            buf.put(bytes);
+            add(frame, bytes);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    // the buffer from fill() has been fully written
+    void written() {
+        Metrics.writes.increment();
+        for (int i = 0; i < count; i++) {
+            Metrics.sent(frames[i], sizes[i]);
+            if (session != null) session.written(owner, frames[i]);
+            frames[i] = null;
+        }
+        count = 0;
+        releaseBuffer();
+    }
+
+    // write failed or connection closed: returns what was taken from the queue but not (fully)
+    // written, in queue order, so it can be kept for the client (see Server.keepUndelivered)
+    List<Object> discard() {
+        List<Object> unsent = new ArrayList<>(count + 1);
+        for (int i = 0; i < count; i++) {
+            unsent.add(frames[i]);
+            frames[i] = null;
+        }
+        if (carry != null) unsent.add(carry);
+        count = 0;
+        carry = null;
+        carryBytes = null;
+        releaseBuffer();
+        return unsent;
+    }
+
+    private byte[] encodingOf(Frame frame) {
+        if (carryBytes != null) {
+            byte[] bytes = carryBytes;
+            carryBytes = null;
+            return bytes;
+        }
+        return encoder.encode(frame);
+    }
+
+    private void add(Frame frame, byte[] bytes) {
+        frames[count] = frame;
+        sizes[count] = bytes.length;
+        count++;
+    }
+
+    private void releaseBuffer() {
+        if (buf != null && pooled) BufferPool.release(buf);
+        buf = null;
+    }
+}
@@ -0,0 +1,260 @@
+package DETAI1;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded per-connection send queue.
+ * - bounded by bytes (encoded frame sizes) and by entry count
+ * - what happens when a slow reader lets it fill up is the connection's Policy
+ * - entries are Frame or FileBody (a FILESTREAM / CHUNK header + file region kept together,
+ *   so dropping never splits a header from its body)
+ * - held from registration until the client's backlog (replay, mailbox) is ready: entries are
+ *   accepted but not handed out, and release puts the backlog in front of them
+ *
+ * Defaults come from -Dchat.sendQueue.maxBytes, .maxEntries, .policy.
+ */
+final class SendQueue {
+    enum Policy {
+        BLOCK,       // producer waits for room (up to BLOCK_TIMEOUT_MS, then the client is dropped);
+                     // only a thread that allowBlocking waits, any other producer (NIO loop, EDT,
+                     // scheduler, cluster link) drops the client at once, as DISCONNECT
+        DROP_OLDEST, // evict the oldest entries silently
+        COALESCE,    // evict the oldest entries, replaced by one "n messages skipped" notice
+        DISCONNECT   // drop the client
+    }
+
+    // a header frame followed by length raw bytes of file starting at offset; immutable, may be shared
+    static final class FileBody {
+        final Frame header;
+        final File file;
+        final long offset;
+        final long length;
+
+        FileBody(Frame header, File file, long offset, long length) {
+            this.header = header;
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    // point-in-time view for the admin console
+    static final class Stats {
+        final int depth;
+        final long bytes;
+        final long dropped;
+        final Policy policy;
+
+        Stats(int depth, long bytes, long dropped, Policy policy) {
+            this.depth = depth;
+            this.bytes = bytes;
+            this.dropped = dropped;
+            this.policy = policy;
+        }
+    }
+
+    static final long DEFAULT_MAX_BYTES = Long.getLong("chat.sendQueue.maxBytes", 4L * 1024 * 1024);
+    static final int DEFAULT_MAX_ENTRIES = Integer.getInteger("chat.sendQueue.maxEntries", 10_000);
+    static final Policy DEFAULT_POLICY = parsePolicy(System.getProperty("chat.sendQueue.policy"), Policy.COALESCE);
+    private static final long BLOCK_TIMEOUT_MS = 5000;
+    // threads that may wait under BLOCK
+    private static final ThreadLocal<Boolean> mayBlock = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<Object> items = new ArrayDeque<>();
+    private final long maxBytes;
+    private final int maxEntries;
+    private volatile Policy policy;
+    private long bytes;
+    private long dropped;
+    private int skipped; // COALESCE: evicted since the last notice
+    private boolean held;
+    private boolean closed;
+
+    SendQueue() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MAX_ENTRIES, DEFAULT_POLICY);
+    }
+
+    SendQueue(long maxBytes, int maxEntries, Policy policy) {
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        this.policy = policy;
+    }
+
+    void setPolicy(Policy p) {
+        policy = p;
+    }
+
+    // the calling thread may (or no longer may) wait under BLOCK: a client's own reader thread,
+    // which only holds up that client
+    static void allowBlocking(boolean allowed) {
+        if (allowed) mayBlock.set(Boolean.TRUE);
+        else mayBlock.remove();
+    }
+
+    /**
+     * Adds item (Frame or FileBody). Returns false if the consumer is too slow
+     * and must be disconnected (DISCONNECT, or BLOCK timing out or not allowed to wait);
+     * the item is then queued all the same, so close() hands it over with the rest.
+     */
+    boolean offer(Object item) {
+        long cost = cost(item);
+        lock.lock();
+        try {
+            if (closed) return true;
+            boolean ok = true;
+            while (ok && !fits(cost)) {
+                switch (policy) {
+                    case BLOCK:
+                        if (!mayBlock.get()) {
+                            ok = false;
+                            break;
+                        }
+                        try {
+                            if (!notFull.await(BLOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS) && !fits(cost)) ok = false;
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                            ok = false;
+                        }
+                        if (closed) return true;
+                        break;
+                    case DISCONNECT:
+                        ok = false;
+                        break;
+                    default:
+                        evictOldest();
+                }
+            }
+            items.addLast(item);
+            bytes += cost;
+            notEmpty.signal();
+            return ok;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // next entry, waiting if empty (or held); null once closed
+    Object take() throws InterruptedException {
+        lock.lock();
+        try {
+            while ((held || (items.isEmpty() && skipped == 0)) && !closed) notEmpty.await();
+            return closed ? null : next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // next entry or null if empty (or held), never waits
+    Object poll() {
+        lock.lock();
+        try {
+            return closed || held || (items.isEmpty() && skipped == 0) ? null : next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // nothing is handed out until release
+    void hold() {
+        lock.lock();
+        try {
+            held = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // backlog goes first, in order (not bounded: it is what the client missed), then what was
+    // queued meanwhile; false if closed, backlog is then not taken
+    boolean release(List<Object> backlog) {
+        lock.lock();
+        try {
+            if (closed) return false;
+            for (int i = backlog.size() - 1; i >= 0; i--) {
+                items.addFirst(backlog.get(i));
+                bytes += cost(backlog.get(i));
+            }
+            held = false;
+            notEmpty.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // drop everything and wake any waiting producer / consumer; returns what was still queued
+    // (empty if already closed), e.g. for the client's mailbox
+    List<Object> close() {
+        lock.lock();
+        try {
+            List<Object> left = closed ? Collections.emptyList() : new ArrayList<>(items);
+            closed = true;
+            items.clear();
+            bytes = 0;
+            notEmpty.signalAll();
+            notFull.signalAll();
+            return left;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Stats stats() {
+        lock.lock();
+        try {
+            return new Stats(items.size(), bytes, dropped, policy);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Object next() {
+        if (skipped > 0) {
+            Frame notice = Frame.notice(skipped + " message(s) skipped, your connection is too slow");
+            skipped = 0;
+            return notice;
+        }
+        Object item = items.pollFirst();
+        bytes -= cost(item);
+        notFull.signalAll();
+        return item;
+    }
+
+    // an oversized item is still accepted into an empty queue, otherwise it could never be sent
+    private boolean fits(long cost) {
+        if (items.isEmpty()) return true;
+        return bytes + cost <= maxBytes && items.size() < maxEntries;
+    }
+
+    private void evictOldest() {
+        Object old = items.pollFirst();
+        bytes -= cost(old);
+        dropped++;
+        if (policy == Policy.COALESCE) skipped++;
+    }
+
+    // heap bytes held by an entry; FILESTREAM bodies are read from disk when sent
+    private static long cost(Object item) {
+        if (item instanceof Frame) return ((Frame) item).size();
+        return ((FileBody) item).header.size();
+    }
+
+    static Policy parsePolicy(String s, Policy fallback) {
+        if (s == null) return fallback;
+        try {
+            return Policy.valueOf(s.trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            return fallback;
+        }
+    }
+}
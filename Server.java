@@ -1,319 +1,947 @@
-package DETAI1;
-
-import java.io.*;
-import java.net.*;
-import java.nio.file.Files;
-import java.text.SimpleDateFormat;
-import java.util.*;
-import java.util.concurrent.*;
-import java.util.Base64;
-
-/**
- * Improved Server:
- * - multi-client using thread pool
- * - keepalive / timeout handling
- * - send text (FROM|sender|text)
- * - send small files as base64 (FILE|sender|filename|base64)
- * - send large files as stream (FILESTREAM|sender|filename|size) then raw bytes
- * - kick, broadcast, sendToClient
- *
- * Place in package com.mycompany.chatgpt
- */
-public class Server {
-    public static volatile int PORT = 9000;
-    private static final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
-    private static final ExecutorService pool = Executors.newCachedThreadPool();
-    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-    private static ServerSocket serverSocket;
-
-    // maximum file size (bytes) to encode as base64 (compatibility with older client)
-    private static final int MAX_BASE64_SIZE_BYTES = 200 * 1024; // 200 KB
-
-    // client inactivity timeout (seconds) - if no read for this time, drop
-    private static final int CLIENT_TIMEOUT_SECONDS = 300; // 5 minutes
-
-    // start server in background; returns true if started
-    public static synchronized boolean startServer(int port) {
-        if (serverSocket != null && !serverSocket.isClosed()) return true;
-        try {
-            PORT = port;
-            serverSocket = new ServerSocket(PORT);
-            pool.execute(() -> acceptLoop());
-            // schedule periodic cleanup of dead clients (safety)
-            scheduler.scheduleAtFixedRate(Server::cleanupDeadClients, 60, 60, TimeUnit.SECONDS);
-            System.out.println("SERVER: running on port " + PORT);
-            return true;
-        } catch (IOException ex) {
-            System.err.println("SERVER: failed to start: " + ex.getMessage());
-            return false;
-        }
-    }
-
-    private static void acceptLoop() {
-        try {
-            while (!serverSocket.isClosed()) {
-                Socket sock = serverSocket.accept();
-                sock.setSoTimeout(0); // disable socket-level read timeout; we use lastActive timestamp
-                ClientHandler handler = new ClientHandler(sock);
-                pool.execute(handler);
-            }
-        } catch (IOException ex) {
-            if (serverSocket != null && serverSocket.isClosed()) {
-                System.out.println("SERVER: accept loop terminated (server closed).");
-            } else {
-                ex.printStackTrace();
-            }
-        }
-    }
-
-    public static synchronized void stopServer() {
-        try {
-            if (serverSocket != null) serverSocket.close();
-        } catch (IOException ignored) {}
-        // close clients
-        for (ClientHandler h : clients.values()) h.closeQuiet();
-        clients.clear();
-        scheduler.shutdownNow();
-        pool.shutdownNow();
-        System.out.println("SERVER: stopped.");
-    }
-
-    public static Set<String> getClientNames() {
-        return new HashSet<>(clients.keySet());
-    }
-
-    // send text to a client
-    public static void sendToClient(String nick, String sender, String text) {
-        ClientHandler h = clients.get(nick);
-        if (h != null) h.enqueueText("FROM|" + sender + "|" + text);
-    }
-
-    // broadcast text
-    public static void broadcast(String sender, String text) {
-        String msg = "FROM|" + sender + "|" + text;
-        for (ClientHandler h : clients.values()) h.enqueueText(msg);
-    }
-
-    // send file to client: choose base64 small or stream large
-    public static void sendFileToClient(String nick, String sender, File f) {
-        ClientHandler h = clients.get(nick);
-        if (h == null) return;
-        sendFileInternal(h, sender, f);
-    }
-
-    // broadcast file
-    public static void broadcastFile(String sender, File f) {
-        for (ClientHandler h : clients.values()) {
-            sendFileInternal(h, sender, f);
-        }
-    }
-
-    private static void sendFileInternal(ClientHandler h, String sender, File f) {
-        try {
-            long size = f.length();
-            if (size <= MAX_BASE64_SIZE_BYTES) {
-                // encode base64 and send single-line header (compat)
-                byte[] bytes = Files.readAllBytes(f.toPath());
-                String b64 = Base64.getEncoder().encodeToString(bytes);
-                String header = "FILE|" + sender + "|" + f.getName() + "|" + b64;
-                h.enqueueText(header);
-            } else {
-                // stream mode: send header indicating file stream follows, then raw bytes
-                // header format: FILESTREAM|sender|filename|size
-                String header = "FILESTREAM|" + sender + "|" + f.getName() + "|" + size;
-                h.enqueueStreamFile(header, f);
-            }
-        } catch (IOException ex) {
-            ex.printStackTrace();
-        }
-    }
-
-    // kick client
-    public static void kickClient(String nick, String reason) {
-        ClientHandler h = clients.get(nick);
-        if (h != null) {
-            h.enqueueText("FROM|server|You have been kicked. Reason: " + reason);
-            h.closeQuiet();
-            clients.remove(nick);
-            AdminMessageHandler.clientLeft(nick);
-            System.out.println("SERVER: kicked " + nick);
-        }
-    }
-
-    // register client
-    private static void register(String nick, ClientHandler h) {
-        clients.put(nick, h);
-        AdminMessageHandler.clientJoined(nick);
-    }
-
-    // unregister client
-    private static void unregister(String nick) {
-        clients.remove(nick);
-        AdminMessageHandler.clientLeft(nick);
-    }
-
-    private static void cleanupDeadClients() {
-        long now = System.currentTimeMillis();
-        List<String> toRemove = new ArrayList<>();
-        for (Map.Entry<String, ClientHandler> e : clients.entrySet()) {
-            ClientHandler h = e.getValue();
-            if ((now - h.getLastActive()) > CLIENT_TIMEOUT_SECONDS * 1000L) {
-                toRemove.add(e.getKey());
-            }
-        }
-        for (String nick : toRemove) {
-            ClientHandler h = clients.get(nick);
-            if (h != null) {
-                System.out.println("SERVER: removing inactive client " + nick);
-                h.closeQuiet();
-                unregister(nick);
-            }
-        }
-    }
-
-    // ================= ClientHandler =================
-    private static class ClientHandler implements Runnable {
-        private final Socket socket;
-        private final BlockingQueue<Object> sendQueue = new LinkedBlockingQueue<>();
-        private volatile long lastActive = System.currentTimeMillis();
-        private volatile boolean running = true;
-
-        private PrintWriter textOut; // for sending text lines (may also use DataOutputStream)
-        private OutputStream rawOut;
-        private BufferedReader reader;
-        private String nick;
-        private final SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
-
-        ClientHandler(Socket s) {
-            this.socket = s;
-        }
-
-        long getLastActive() { return lastActive; }
-
-        public void run() {
-            try {
-                InputStream inStream = socket.getInputStream();
-                rawOut = socket.getOutputStream();
-                reader = new BufferedReader(new InputStreamReader(inStream, "UTF-8"));
-                textOut = new PrintWriter(new OutputStreamWriter(rawOut, "UTF-8"), true);
-
-                // handshake: request nick
-                textOut.println("REQUEST_NICK");
-                String line = reader.readLine();
-                if (line == null) { closeQuiet(); return; }
-                nick = line.trim();
-                if (nick.isEmpty()) nick = "Guest-" + new Random().nextInt(1000);
-
-                // ensure unique
-                synchronized (clients) {
-                    if (clients.containsKey(nick)) {
-                        String base = nick;
-                        int i = 1;
-                        while (clients.containsKey(base + "_" + i)) i++;
-                        nick = base + "_" + i;
-                        textOut.println("NICK_ASSIGNED|" + nick);
-                    } else {
-                        textOut.println("NICK_ACCEPTED|" + nick);
-                    }
-                }
-
-                register(nick, this);
-                System.out.println(time() + " SERVER: " + nick + " connected from " + socket.getRemoteSocketAddress());
-
-                // start a sender thread to flush sendQueue (so reading is not blocked)
-                Thread senderThread = new Thread(this::senderLoop, "sender-" + nick);
-                senderThread.setDaemon(true);
-                senderThread.start();
-
-                // read loop
-                while (running) {
-                    String msg = reader.readLine();
-                    if (msg == null) break;
-                    lastActive = System.currentTimeMillis();
-                    msg = msg.trim();
-                    if (msg.isEmpty()) continue;
-                    if ("/quit".equalsIgnoreCase(msg)) break;
-
-                    // Handle simple control commands from client if needed (e.g., client->client)
-                    // For now all client messages forwarded to admin GUI
-                    AdminMessageHandler.receiveFromClient(nick, msg);
-                }
-
-            } catch (SocketException sx) {
-                System.out.println("SERVER: socket error for " + nick + " : " + sx.getMessage());
-            } catch (IOException ex) {
-                System.out.println("SERVER: io error for " + nick + " : " + ex.getMessage());
-            } finally {
-                running = false;
-                closeQuiet();
-                unregister(nick);
-                System.out.println(time() + " SERVER: " + nick + " disconnected.");
-            }
-        }
-
-        // enqueue a text line (String) to send
-        void enqueueText(String line) {
-            if (!running) return;
-            sendQueue.offer(line);
-        }
-
-        // enqueue a file stream: first header (String), then File object -> senderLoop will do streaming
-        void enqueueStreamFile(String header, File f) {
-            if (!running) return;
-            sendQueue.offer(header);
-            sendQueue.offer(f);
-        }
-
-        // sender loop consumes queue and writes to socket
-        private void senderLoop() {
-            try {
-                while (running && !socket.isClosed()) {
-                    Object obj = sendQueue.take(); // blocking
-                    if (obj instanceof String) {
-                        // send text header or normal message
-                        String line = (String) obj;
-                        try {
-                            textOut.println(line); // send as line terminated
-                        } catch (Exception ex) {
-                            System.err.println("SEND error to " + nick + " : " + ex.getMessage());
-                        }
-                    } else if (obj instanceof File) {
-                        File f = (File) obj;
-                        // Write raw bytes directly AFTER the previous header (which should be FILESTREAM|...)
-                        try (FileInputStream fis = new FileInputStream(f)) {
-                            byte[] buffer = new byte[8192];
-                            int read;
-                            // Important: flush textual output first
-                            textOut.flush();
-                            // Now write raw bytes to rawOut
-                            while ((read = fis.read(buffer)) != -1) {
-                                rawOut.write(buffer, 0, read);
-                            }
-                            rawOut.flush();
-                        } catch (IOException ex) {
-                            System.err.println("STREAM send error to " + nick + " : " + ex.getMessage());
-                        }
-                    } else {
-                        // ignore unknown object
-                    }
-                }
-            } catch (InterruptedException ie) {
-                // thread interrupted: exit
-            } catch (Exception ex) {
-                System.err.println("Sender loop error for " + nick + " : " + ex.getMessage());
-            }
-        }
-
-        void closeQuiet() {
-            running = false;
-            try { if (reader != null) reader.close(); } catch (Exception ignored) {}
-            try { if (textOut != null) textOut.close(); } catch (Exception ignored) {}
-            try { if (rawOut != null) rawOut.close(); } catch (Exception ignored) {}
-            try { if (socket != null && !socket.isClosed()) socket.close(); } catch (Exception ignored) {}
-        }
-
-        String time() {
-            return "[" + sdf.format(new Date()) + "]";
-        }
-    }
-}
+package DETAI1;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Improved Server:
+ * - multi-client using thread pool
+ * - keepalive / timeout handling: idle clients expire on a timing wheel, clients announcing
+ *   caps=ping get PING|time and must answer PONG|time (see IdleWheel)
+ * - text protocol (v1) or binary frames (v2), negotiated per client at REQUEST_NICK (see Handshake, Frame)
+ * - send text (FROM|sender|text)
+ * - client -> client routing on the network threads: TO|nick|text (or TO_ERROR|nick|reason back)
+ *   and ALL|text; the admin GUI only sees a sample of that traffic
+ * - send small files as base64 (FILE|sender|filename|base64)
+ * - send large files as stream (FILESTREAM|sender|filename|size) then raw bytes (zero-copy transferTo),
+ *   or as resumable checksummed chunks to clients that support it (see ChunkedTransfers)
+ * - kick, broadcast, sendToClient (broadcasts encode each message / file once, see Frame)
+ * - files sent are cached by content (SHA-256, LRU, spilled to disk over budget) so a resend
+ *   is not read or encoded again; clients with caps=filecache are offered the hash first and
+ *   get nothing if they already hold it (see FileCache)
+ * - named rooms (JOIN|room, LEAVE|room, ROOM|room|text): room messages go to members only (see Rooms)
+ * - bounded per-client send queues with a slow-consumer policy (see SendQueue); queued frames
+ *   are written in batches from pooled direct buffers (see SendBatch, BufferPool), optionally
+ *   lingering up to -Dchat.send.lingerMicros for the rest of a burst; TCP_NODELAY is on
+ * - joins, leaves and messages published on the EventBus (admin GUI, history, ...)
+ * - chat history appended to disk off the network threads (see HistoryStore); the last
+ *   HISTORY_REPLAY public messages are replayed when a client connects
+ * - offline mailboxes: messages / files for a nick that is not connected, and whatever was still
+ *   queued when its connection closed, are stored on disk (TTL, quota) and delivered in order
+ *   right after its next handshake (see Mailbox)
+ * - resumable sessions for clients announcing caps=resume: a token in the ack, ACK|n from the
+ *   client, and on reconnect with the token the same nick and only the messages it missed,
+ *   from a bounded per-session retransmit buffer (see Sessions)
+ * - optional cluster mode (-Dchat.cluster.port / .peers / .node, or main's --cluster-port ...):
+ *   nicks unique across nodes, messages / kicks routed to the node holding the client (see ClusterNode)
+ * - metrics (rates, queue depths, delivery latency) over JMX, a local text endpoint
+ *   (-Dchat.metrics.port) and the admin GUI (see Metrics)
+ * - v2 clients announcing caps=deflate get frames compressed with a per-connection streaming
+ *   deflate context; files that are compressed already are sent as they are (see FrameDeflater)
+ * - connection events logged asynchronously to the console and logs/chat.log (see Log)
+ * - IO model chosen at start: thread-per-client (THREADS), virtual thread per client (VIRTUAL)
+ *   or selector loops (NIO, see NioServer)
+ *
+ * Place in package com.mycompany.chatgpt
+ */
+public class Server {
+    public enum IoMode { THREADS, VIRTUAL, NIO }
+
+    public static volatile int PORT = 9000;
+    private static final Map<String, Connection> clients = new ConcurrentHashMap<>();
+    private static final ExecutorService pool = Executors.newCachedThreadPool();
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    // disk work that network threads hand off (see offload); fixed size, so a flood of
+    // requests queues up instead of starting threads
+    private static final ExecutorService diskWork = Executors.newFixedThreadPool(
+            Integer.getInteger("chat.diskThreads", 4), r -> {
+                Thread t = new Thread(r, "disk-work");
+                t.setDaemon(true);
+                return t;
+            });
+    private static ServerSocket serverSocket;
+    private static NioServer nioServer;
+    private static volatile ClusterNode cluster;
+    private static volatile IoMode ioMode = IoMode.THREADS;
+    private static volatile HistoryStore history;
+    private static volatile Mailbox mailbox;
+    private static volatile IdleWheel idleWheel;
+    // stores MESSAGE events; appending only queues for the history writer
+    private static final EventBus.Subscriber historySubscriber = batch -> {
+        HistoryStore h = history;
+        if (h == null) return;
+        for (EventBus.Event e : batch) {
+            if (e.type == EventBus.Type.MESSAGE) h.append(e.time, e.from, e.to, e.text);
+        }
+    };
+
+    // history directory and how many messages a (re)connecting client gets replayed
+    private static final String HISTORY_DIR = System.getProperty("chat.historyDir", "chat_history");
+    private static final int HISTORY_REPLAY = Integer.getInteger("chat.history.replay", 20);
+    // per-nick store-and-forward for clients that are offline (see Mailbox)
+    private static final String MAILBOX_DIR = System.getProperty("chat.mailboxDir", "chat_mailbox");
+    // where FileCache spills cached file content beyond its memory budget
+    private static final String FILE_CACHE_DIR = System.getProperty("chat.fileCacheDir", "chat_filecache");
+
+    // maximum file size (bytes) to encode as base64 (compatibility with older client)
+    private static final int MAX_BASE64_SIZE_BYTES = 200 * 1024; // 200 KB
+
+    // client inactivity timeout (seconds) - if no read for this time, drop
+    private static final int CLIENT_TIMEOUT_SECONDS = 300; // 5 minutes
+
+    // client socket options (see tuneSocket)
+    private static final boolean TCP_NO_DELAY = !"false".equals(System.getProperty("chat.tcp.noDelay"));
+    private static final int TCP_SEND_BUFFER = Integer.getInteger("chat.tcp.sendBuffer", 0);
+
+    // IO model used by startServer(port); override with -Dchat.io=nio
+    public static IoMode defaultIoMode() {
+        try {
+            return IoMode.valueOf(System.getProperty("chat.io", "THREADS").trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            return IoMode.THREADS;
+        }
+    }
+
+    // start server in background; returns true if started
+    public static boolean startServer(int port) {
+        return startServer(port, defaultIoMode());
+    }
+
+    public static synchronized boolean startServer(int port, IoMode mode) {
+        if ((serverSocket != null && !serverSocket.isClosed()) || nioServer != null) return true;
+        if (mode == IoMode.VIRTUAL && !VirtualThreads.isSupported()) {
+            Log.warn("server_start", null, null, "virtual threads need Java 21+, falling back to THREADS");
+            mode = IoMode.THREADS;
+        }
+        try {
+            PORT = port;
+            ioMode = mode;
+            try {
+                if (history == null) history = HistoryStore.open(new File(HISTORY_DIR));
+                EventBus.subscribe(historySubscriber);
+            } catch (IOException ex) {
+                Log.warn("history_error", null, null, "chat history disabled: " + ex.getMessage());
+            }
+            try {
+                if (mailbox == null) mailbox = Mailbox.open(new File(MAILBOX_DIR));
+            } catch (IOException ex) {
+                Log.warn("mailbox_error", null, null, "offline mailboxes disabled: " + ex.getMessage());
+            }
+            try {
+                FileCache.open(new File(FILE_CACHE_DIR));
+            } catch (IOException ex) {
+                Log.warn("file_cache_error", null, null, "file cache kept in memory only: " + ex.getMessage());
+            }
+            if (mode == IoMode.NIO) {
+                nioServer = NioServer.start(PORT, Runtime.getRuntime().availableProcessors());
+            } else {
+                // channel-backed so accepted sockets have a SocketChannel for transferTo
+                serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(PORT)).socket();
+                pool.execute(() -> acceptLoop());
+            }
+            startCluster();
+            // idle / dead clients: timing wheel plus PING for clients that answer it
+            IdleWheel wheel = new IdleWheel(CLIENT_TIMEOUT_SECONDS * 1000L);
+            idleWheel = wheel;
+            scheduler.scheduleAtFixedRate(wheel::tick, IdleWheel.TICK_MS, IdleWheel.TICK_MS, TimeUnit.MILLISECONDS);
+            scheduler.scheduleAtFixedRate(ChunkedTransfers::expire, 60, 60, TimeUnit.SECONDS);
+            scheduler.scheduleAtFixedRate(FileCache::expire, 60, 60, TimeUnit.SECONDS);
+            scheduler.scheduleAtFixedRate(Sessions::expire, 5, 5, TimeUnit.SECONDS);
+            scheduler.scheduleAtFixedRate(() -> {
+                Mailbox m = mailbox;
+                if (m != null) m.expire();
+            }, 10, 10, TimeUnit.MINUTES);
+            Metrics.start(Integer.getInteger("chat.metrics.port", 0));
+            scheduler.scheduleAtFixedRate(() -> Metrics.sample(getQueueStats()), 1, 1, TimeUnit.SECONDS);
+            if (mode == IoMode.VIRTUAL) {
+                scheduler.scheduleAtFixedRate(() -> Log.info("thread_stats", null, null, "threads " + getThreadStats()),
+                        30, 30, TimeUnit.SECONDS);
+            }
+            Log.info("server_start", null, null, "running on port " + PORT + " (" + mode + ")");
+            return true;
+        } catch (IOException ex) {
+            Log.error("server_start", null, null, "failed to start: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    // joins the cluster if -Dchat.cluster.port is set; a failure leaves this node standalone
+    private static void startCluster() {
+        int clusterPort = Integer.getInteger("chat.cluster.port", 0);
+        if (clusterPort <= 0 || cluster != null) return;
+        List<String> peers = new ArrayList<>();
+        for (String p : System.getProperty("chat.cluster.peers", "").split(",")) {
+            if (!p.trim().isEmpty()) peers.add(p.trim());
+        }
+        try {
+            cluster = ClusterNode.start(System.getProperty("chat.cluster.node", "node-" + clusterPort), clusterPort, peers);
+        } catch (IOException | NumberFormatException ex) {
+            Log.warn("cluster_error", null, null, "cluster disabled: " + ex.getMessage());
+        }
+    }
+
+    private static void acceptLoop() {
+        try {
+            while (!serverSocket.isClosed()) {
+                Socket sock = serverSocket.accept();
+                Metrics.accepted.increment();
+                sock.setSoTimeout(0); // disable socket-level read timeout; we use lastActive timestamp
+                tuneSocket(sock);
+                ClientHandler handler = new ClientHandler(sock);
+                if (ioMode == IoMode.VIRTUAL) {
+                    VirtualThreads.start(handler, "client-" + sock.getRemoteSocketAddress());
+                } else {
+                    pool.execute(handler);
+                }
+            }
+        } catch (IOException ex) {
+            if (serverSocket != null && serverSocket.isClosed()) {
+                Log.info("server_stop", null, null, "accept loop terminated (server closed)");
+            } else {
+                Log.error("accept_error", null, null, "accept loop failed: " + ex.getMessage());
+            }
+        }
+    }
+
+    public static synchronized void stopServer() {
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException ignored) {}
+        if (nioServer != null) {
+            nioServer.stop();
+            nioServer = null;
+        }
+        if (cluster != null) {
+            cluster.stop();
+            cluster = null;
+        }
+        // close clients; nobody can resume a session any more, so what is queued goes to mailboxes
+        Sessions.endAll();
+        for (Connection h : clients.values()) h.closeQuiet();
+        clients.clear();
+        scheduler.shutdownNow();
+        pool.shutdownNow();
+        Metrics.stop();
+        EventBus.unsubscribe(historySubscriber);
+        if (history != null) {
+            history.close();
+            history = null;
+        }
+        if (mailbox != null) {
+            mailbox.close();
+            mailbox = null;
+        }
+        FileCache.close();
+        Log.info("server_stop", null, null, "stopped");
+    }
+
+    // clients of the whole cluster
+    public static Set<String> getClientNames() {
+        Set<String> names = new HashSet<>(clients.keySet());
+        ClusterNode c = cluster;
+        if (c != null) names.addAll(c.remoteNicks());
+        return names;
+    }
+
+    // clients connected to this node
+    static Set<String> getLocalClientNames() {
+        return new HashSet<>(clients.keySet());
+    }
+
+    static boolean isLocalClient(String nick) {
+        return clients.containsKey(nick);
+    }
+
+    // live virtual / carrier / platform thread counts, to check VIRTUAL mode stays flat
+    public static String getThreadStats() {
+        return "mode=" + ioMode + " clients=" + clients.size() + " " + VirtualThreads.stats();
+    }
+
+    // send queue depth / bytes per client, to spot who is lagging
+    public static Map<String, SendQueue.Stats> getQueueStats() {
+        Map<String, SendQueue.Stats> stats = new TreeMap<>();
+        for (Map.Entry<String, Connection> e : clients.entrySet()) stats.put(e.getKey(), e.getValue().queueStats());
+        return stats;
+    }
+
+    static void setSendPolicy(String nick, SendQueue.Policy policy) {
+        Connection h = clients.get(nick);
+        if (h != null) h.setSendPolicy(policy);
+    }
+
+    // send text to a client, here or on the node holding it
+    public static void sendToClient(String nick, String sender, String text) {
+        if (!route(nick, sender, text)) deliverLocal(nick, sender, text);
+    }
+
+    // text to nick wherever it is connected; false if nick is not connected anywhere.
+    // Only a lock-free map lookup, so client -> client messages stay on the network thread.
+    static boolean route(String nick, String sender, String text) {
+        if (clients.containsKey(nick)) {
+            deliverLocal(nick, sender, text);
+            return true;
+        }
+        ClusterNode c = cluster;
+        return c != null && c.send(nick, sender, text);
+    }
+
+    // text for a client of this node (also what SEND from another node ends up in)
+    static void deliverLocal(String nick, String sender, String text) {
+        Connection h = clients.get(nick);
+        if (h != null) {
+            h.enqueue(Frame.from(sender, text));
+        } else {
+            // offline: kept for its next login
+            Mailbox m = mailbox;
+            if (m != null) m.store(nick, System.currentTimeMillis(), sender, text);
+        }
+        EventBus.publish(EventBus.Type.MESSAGE, sender, nick, text);
+    }
+
+    // broadcast text to the whole cluster
+    public static void broadcast(String sender, String text) {
+        broadcastLocal(sender, text);
+        ClusterNode c = cluster;
+        if (c != null) c.broadcast(sender, text);
+    }
+
+    // broadcast to this node's clients: encoded once, the same frame is queued on every client
+    static void broadcastLocal(String sender, String text) {
+        Frame frame = Frame.from(sender, text);
+        for (Connection h : clients.values()) h.enqueue(frame);
+        // history gets the frame's time: a copy left in a closing queue goes to the mailbox with
+        // it, and the replay recognizes the pair (see replayHistory)
+        EventBus.publish(EventBus.Type.MESSAGE, sender, HistoryStore.BROADCAST, text, frame.time());
+    }
+
+    // message to a room, on every node: only the room's members get it (see Rooms)
+    public static void sendToRoom(String room, String sender, String text) {
+        roomLocal(room, sender, text);
+        ClusterNode c = cluster;
+        if (c != null) c.room(room, sender, text);
+    }
+
+    static void roomLocal(String room, String sender, String text) {
+        Rooms.deliverLocal(room, sender, text);
+        EventBus.publish(EventBus.Type.MESSAGE, sender, "#" + room, text);
+    }
+
+    // stored messages before time (see HistoryStore.before), for the admin views; empty if history is disabled
+    static List<HistoryStore.Record> getHistory(String nick, boolean broadcasts, long beforeTime, int limit) {
+        HistoryStore h = history;
+        return h == null ? Collections.emptyList() : h.before(nick, broadcasts, beforeTime, limit);
+    }
+
+    // broadcasts only, for clients: private messages are kept by nick, and a nick passes to
+    // whoever registers it next
+    private static List<HistoryStore.Record> publicHistory(long beforeTime, int limit) {
+        return getHistory(HistoryStore.BROADCAST, false, beforeTime, limit);
+    }
+
+    // send file to client: choose base64 small or stream large
+    public static void sendFileToClient(String nick, String sender, File f) {
+        Connection h = clients.get(nick);
+        if (h == null) {
+            Mailbox m = mailbox;
+            if (m != null) m.storeFile(nick, System.currentTimeMillis(), sender, f);
+            return;
+        }
+        sendFileInternal(Collections.singletonMap(nick, h), sender, f);
+    }
+
+    // broadcast file
+    public static void broadcastFile(String sender, File f) {
+        sendFileInternal(clients, sender, f);
+    }
+
+    // clients with a file cache are offered f first (see FileCache); the rest get it right away
+    private static void sendFileInternal(Map<String, Connection> targets, String sender, File f) {
+        Map<String, Connection> offered = new HashMap<>();
+        List<Connection> direct = new ArrayList<>();
+        for (Map.Entry<String, Connection> e : targets.entrySet()) {
+            if (e.getValue().supports(FileCache.CAPABILITY)) offered.put(e.getKey(), e.getValue());
+            else direct.add(e.getValue());
+        }
+        if (!offered.isEmpty()) FileCache.offer(offered, sender, f, f.length() <= MAX_BASE64_SIZE_BYTES);
+        if (!direct.isEmpty()) sendFileDirect(direct, sender, f, null);
+    }
+
+    // reads and encodes f once, however many targets there are, and not again while FileCache
+    // holds it. content: what an offer of f was made with (f may have changed since), or null
+    static void sendFileDirect(Collection<Connection> targets, String sender, File f, FileCache.Content content) {
+        try {
+            long size = content != null ? content.size : f.length();
+            if (size <= MAX_BASE64_SIZE_BYTES) {
+                // encode base64 and send single-line header (compat)
+                FileCache.Content c = content != null && content.data != null ? content : FileCache.describe(f, true);
+                Frame frame = Frame.file(sender, f.getName(), c.data, c.base64, f);
+                for (Connection h : targets) h.enqueue(frame);
+            } else {
+                // clients that can resume get chunks; the rest a single stream:
+                // header indicating file stream follows (FILESTREAM|sender|filename|size), then raw bytes
+                List<Connection> chunked = new ArrayList<>();
+                SendQueue.FileBody stream = new SendQueue.FileBody(Frame.fileStream(sender, f.getName(), size), f, 0, size);
+                for (Connection h : targets) {
+                    if (h.supports(ChunkedTransfers.CAPABILITY)) chunked.add(h);
+                    else h.enqueueFile(stream);
+                }
+                if (!chunked.isEmpty()) ChunkedTransfers.send(chunked, sender, f);
+            }
+        } catch (IOException ex) {
+            Log.error("file_error", null, null, "cannot send " + f + ": " + ex.getMessage());
+        }
+    }
+
+    // per-connection TCP options: Nagle off by default, since SendBatch already coalesces what
+    // is queued and Nagle would only hold back the last segment of a burst; send buffer from
+    // -Dchat.tcp.sendBuffer (bytes, OS default if unset)
+    static void tuneSocket(Socket s) {
+        try {
+            s.setTcpNoDelay(TCP_NO_DELAY);
+            if (TCP_SEND_BUFFER > 0) s.setSendBufferSize(TCP_SEND_BUFFER);
+        } catch (SocketException ex) {
+            Log.warn("io_error", null, s.getRemoteSocketAddress(), "socket options not set: " + ex.getMessage());
+        }
+    }
+
+    // write length bytes of f from offset to out; to a SocketChannel this is a kernel zero-copy (sendfile)
+    static long transferFile(File f, long offset, long length, WritableByteChannel out) throws IOException {
+        try (FileChannel fc = FileChannel.open(f.toPath())) {
+            long end = Math.min(fc.size(), offset + length);
+            long pos = offset;
+            while (pos < end) pos += fc.transferTo(pos, end - pos, out);
+            return pos - offset;
+        }
+    }
+
+    // a line from a client, after the handshake; runs on the connection's network thread.
+    // TO / ALL / rooms are routed here, only the rest goes to the admin.
+    static void onClientMessage(String nick, Connection c, String msg) {
+        Metrics.messagesIn.increment();
+        if (ChunkedTransfers.handle(c, msg)) return;
+        if (FileCache.handle(nick, c, msg)) return;
+        if (Rooms.handle(nick, c, msg)) return;
+        if (msg.startsWith("PONG|")) return; // reading it already counted as activity
+        if (msg.startsWith("ACK|")) {
+            Sessions.ack(nick, c, msg.substring("ACK|".length()));
+            return;
+        }
+        if (msg.startsWith("PING|")) {
+            c.enqueue(Frame.text("PONG|" + msg.substring("PING|".length())));
+            return;
+        }
+        if (msg.startsWith("TO|")) {
+            // TO|nick|text: direct message to another client
+            String[] p = msg.split("\\|", 3);
+            if (p.length < 3) return;
+            if (!route(p[1], nick, p[2])) c.enqueue(Frame.text("TO_ERROR|" + p[1] + "|not connected"));
+            return;
+        }
+        if (msg.startsWith("ALL|")) {
+            broadcast(nick, msg.substring("ALL|".length()));
+            return;
+        }
+        if (msg.startsWith("HISTORY|")) {
+            // HISTORY|beforeTime|count: a page of older messages for the client's view, read
+            // from the segments off the network thread
+            String[] p = msg.split("\\|");
+            offload(() -> {
+                try {
+                    for (Frame f : historyPage(nick, Long.parseLong(p[1]), Math.min(Integer.parseInt(p[2]), 500))) c.enqueue(f);
+                } catch (RuntimeException ex) {
+                    c.enqueue(Frame.text("HISTORY_END|0"));
+                }
+            });
+            return;
+        }
+        AdminMessageHandler.receiveFromClient(nick, msg);
+    }
+
+    // right after the ack: replay what the client could have seen, oldest first
+    // (clients with caps=history get HISTORY_LINE|time|from|text, which keeps the original time).
+    // A resumed session gets only what it missed instead. c's queue is held since registration,
+    // so all of it (and the mailbox after it) goes out before anything sent to c meanwhile
+    static void onClientRegistered(String nick, Connection c) {
+        // public history up to now, then the mailbox
+        Mailbox m = mailbox;
+        List<Object> replay = Sessions.takeReplay(nick, c);
+        boolean resumed = replay != null;
+        List<HistoryStore.Record> past = resumed ? Collections.emptyList() : publicHistory(Long.MAX_VALUE, HISTORY_REPLAY);
+        Predicate<List<Object>> release = stored -> {
+            List<Object> all = resumed ? new ArrayList<>(replay) : replayHistory(c, past, stored);
+            all.addAll(stored);
+            if (c.release(all)) return true;
+            // closed meanwhile: the session keeps its replay (the mailbox keeps its own entries)
+            if (resumed) keepUndelivered(nick, c, replay);
+            return false;
+        };
+        if (m != null) m.deliver(nick, c, release);
+        else release.test(Collections.emptyList());
+    }
+
+    // past as c takes it, without what the mailbox's stored messages repeat: a broadcast left in
+    // a closing queue is in both, with the same time and sender
+    private static List<Object> replayHistory(Connection c, List<HistoryStore.Record> past, List<Object> stored) {
+        List<Object> out = new ArrayList<>();
+        if (history == null) return out;
+        Set<String> kept = new HashSet<>();
+        for (Object item : stored) {
+            Frame f = (Frame) item;
+            kept.add(f.time() + "|" + f.sender());
+        }
+        List<HistoryStore.Record> page = new ArrayList<>(past.size());
+        for (HistoryStore.Record r : past) if (!kept.contains(r.time + "|" + r.from)) page.add(r);
+        if (c.supports(HistoryStore.CAPABILITY)) {
+            out.addAll(historyLines(page));
+        } else {
+            for (HistoryStore.Record r : page) out.add(Frame.history(r.time, r.from, r.text));
+        }
+        return out;
+    }
+
+    // a stored file for c, sent again from disk (after the backlog: it may be offered or chunked)
+    static void deliverStoredFile(String nick, Connection c, String sender, String path) {
+        File f = new File(path);
+        if (f.isFile()) sendFileInternal(Collections.singletonMap(nick, c), sender, f);
+        else c.enqueue(Frame.notice("file " + f.getName() + " from " + sender + " is no longer available"));
+    }
+
+    // what was still queued for a client whose connection c closed: kept by its session for a
+    // resume, else it goes to its mailbox
+    static void keepUndelivered(String nick, Connection c, List<Object> items) {
+        if (nick == null || items.isEmpty() || Sessions.keep(nick, c, items)) return;
+        Mailbox m = mailbox;
+        if (m != null) m.keepUndelivered(nick, items);
+    }
+
+    // nicks with stored messages and how many (admin console)
+    public static Map<String, Integer> getMailboxCounts() {
+        Mailbox m = mailbox;
+        return m == null ? Collections.emptyMap() : m.counts();
+    }
+
+    // HISTORY_LINE per public message before beforeTime, then HISTORY_END|count
+    private static List<Frame> historyPage(String nick, long beforeTime, int count) {
+        return historyLines(publicHistory(beforeTime, count));
+    }
+
+    private static List<Frame> historyLines(List<HistoryStore.Record> page) {
+        List<Frame> out = new ArrayList<>(page.size() + 1);
+        for (HistoryStore.Record r : page) {
+            out.add(Frame.text("HISTORY_LINE|" + r.time + "|" + r.from + "|" + r.text));
+        }
+        out.add(Frame.text("HISTORY_END|" + page.size()));
+        return out;
+    }
+
+    // kick client, here or on the node holding it
+    public static void kickClient(String nick, String reason) {
+        ClusterNode c = cluster;
+        if (!clients.containsKey(nick) && c != null && c.kick(nick, reason)) return;
+        kickLocal(nick, reason);
+    }
+
+    static void kickLocal(String nick, String reason) {
+        Connection h = clients.get(nick);
+        if (h != null) {
+            h.enqueue(Frame.notice("You have been kicked. Reason: " + reason));
+            Sessions.end(nick); // no resuming after a kick
+            h.closeQuiet();
+            unregister(nick, h);
+            Log.info("kick", nick, null, "kicked: " + reason);
+        }
+    }
+
+    // register client under a unique nick derived from the requested one; returns the nick assigned.
+    // putIfAbsent instead of a monitor on clients, so virtual threads never pin here.
+    // In a cluster each candidate is first claimed from its arbiter node (one round trip); null if
+    // the arbiter cannot be reached, as no candidate could be granted safely then
+    static String registerUnique(String requested, Connection h) {
+        String base = requested;
+        if (base.isEmpty()) base = "Guest-" + new Random().nextInt(1000);
+        String nick = base;
+        int i = 0;
+        ClusterNode c = cluster;
+        while (true) {
+            if (!isReserved(nick) && !clients.containsKey(nick) && !Sessions.held(nick)) {
+                ClusterNode.Claim claim = c == null ? ClusterNode.Claim.GRANTED : c.claim(nick);
+                if (claim == ClusterNode.Claim.UNAVAILABLE) return null;
+                if (claim == ClusterNode.Claim.GRANTED) {
+                    if (clients.putIfAbsent(nick, h) == null) break;
+                    if (c != null) c.release(nick);
+                }
+            }
+            nick = base + "_" + (++i);
+        }
+        if (c != null) c.joined(nick);
+        IdleWheel wheel = idleWheel;
+        if (wheel != null) wheel.add(nick, h);
+        AdminMessageHandler.clientJoined(nick);
+        return nick;
+    }
+
+    // registers c after its handshake and returns its nick. A client presenting a session token
+    // (caps=resume, session=..., ack=n) gets the session's nick back, replacing a connection that
+    // may still hold it; anyone else gets registerUnique, and a new session if it supports them.
+    // Null if no nick could be granted (cluster arbiter unreachable): c is then rejected
+    static String register(Handshake hs, Connection c) {
+        boolean resumable = hs.caps.contains(Sessions.CAPABILITY);
+        Sessions.Session s = resumable ? Sessions.find(hs.params.get("session")) : null;
+        if (s != null && takeOver(s.nick, c)) {
+            long ack;
+            try {
+                ack = Long.parseLong(hs.params.getOrDefault("ack", "0"));
+            } catch (NumberFormatException ex) {
+                ack = 0;
+            }
+            Sessions.resume(s, c, ack);
+            return s.nick;
+        }
+        String nick = registerUnique(hs.nick, c);
+        if (nick != null && resumable) Sessions.open(nick, c);
+        return nick;
+    }
+
+    // register on the pool for an NIO loop, which must not wait for a cluster arbiter; done gets
+    // the nick (or null, as register)
+    static void registerAsync(Handshake hs, Connection c, Consumer<String> done) {
+        pool.execute(() -> done.accept(register(hs, c)));
+    }
+
+    // task that may wait on the disk (history segments, mailbox), run for a network thread that
+    // must not: NIO loops. Tasks run in no particular order
+    static void offload(Runnable task) {
+        diskWork.execute(task);
+    }
+
+    // ack line for c's handshake: Handshake.ack plus the session parameters, if any
+    static String ackLine(Handshake hs, String nick, Connection c) {
+        return hs.ack(nick) + Sessions.ackParams(nick, c);
+    }
+
+    // nick for c, resuming its session. The client's old connection may not have been found
+    // dead yet: it is replaced and closed (its leftovers then go to the session)
+    private static boolean takeOver(String nick, Connection h) {
+        Connection old = clients.get(nick);
+        if (old != null) {
+            if (!clients.replace(nick, old, h)) return false;
+            old.closeQuiet();
+        } else {
+            ClusterNode c = cluster;
+            if (c != null && c.claim(nick) != ClusterNode.Claim.GRANTED) return false;
+            if (clients.putIfAbsent(nick, h) != null) {
+                if (c != null) c.release(nick);
+                return false;
+            }
+            if (c != null) c.joined(nick);
+            AdminMessageHandler.clientJoined(nick);
+        }
+        Rooms.rebind(nick, h); // memberships still refer to the old connection
+        IdleWheel wheel = idleWheel;
+        if (wheel != null) wheel.add(nick, h);
+        return true;
+    }
+
+    // names messages from the server side use: a client called "admin" could fake them
+    private static boolean isReserved(String nick) {
+        return nick.equalsIgnoreCase("admin") || nick.equalsIgnoreCase("server") || nick.equals(HistoryStore.BROADCAST);
+    }
+
+    // unregister client, unless its nick has passed to another connection (resumed session);
+    // its session, if any, waits for a resume
+    static void unregister(String nick, Connection h) {
+        if (nick == null || !clients.remove(nick, h)) return;
+        if (!Sessions.detach(nick, h)) Rooms.leaveAll(nick); // a detached session keeps its rooms
+        ClusterNode c = cluster;
+        if (c != null) c.left(nick);
+        AdminMessageHandler.clientLeft(nick);
+    }
+
+    static boolean isCurrentConnection(String nick, Connection c) {
+        return clients.get(nick) == c;
+    }
+
+    // IdleWheel found c idle or not answering PING
+    static void dropIdle(String nick, Connection c, String reason) {
+        if (clients.get(nick) != c) return;
+        Log.info("idle", nick, null, "dropped as inactive: " + reason);
+        c.closeQuiet();
+        unregister(nick, c);
+    }
+
+    // headless node, e.g. a local 2-node cluster:
+    //   java DETAI1.Server --port 9000 --cluster-port 9100 --peers 127.0.0.1:9101
+    //   java DETAI1.Server --port 9001 --cluster-port 9101 --peers 127.0.0.1:9100
+    // options: --port, --io, --cluster-port, --peers, --node, --metrics-port; then commands on stdin:
+    //   who | say <text> | to <nick> <text> | rooms | room <room> <text> | mailboxes | kick <nick> [reason] | quit
+    public static void main(String[] args) throws IOException {
+        int port = PORT;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--port": port = Integer.parseInt(value); break;
+                case "--io": System.setProperty("chat.io", value); break;
+                case "--cluster-port": System.setProperty("chat.cluster.port", value); break;
+                case "--peers": System.setProperty("chat.cluster.peers", value); break;
+                case "--node": System.setProperty("chat.cluster.node", value); break;
+                case "--metrics-port": System.setProperty("chat.metrics.port", value); break;
+                default: System.err.println("unknown option " + args[i]);
+            }
+        }
+        if (!startServer(port)) System.exit(1);
+        EventBus.subscribe(batch -> {
+            for (EventBus.Event e : batch) {
+                if (e.type == EventBus.Type.MESSAGE && "admin".equals(e.to)) System.out.println("[" + e.from + "] " + e.text);
+                else if (e.type != EventBus.Type.MESSAGE) System.out.println("[System] " + e.from + " " + e.type.name().toLowerCase());
+            }
+        });
+        BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        while ((line = console.readLine()) != null) {
+            String[] p = line.trim().split(" ", 3);
+            switch (p[0]) {
+                case "who": System.out.println(new TreeSet<>(getClientNames())); break;
+                case "say": if (p.length > 1) broadcast("admin", line.trim().substring(4)); break;
+                case "to": if (p.length == 3) sendToClient(p[1], "admin", p[2]); break;
+                case "rooms": System.out.println(Rooms.list()); break;
+                case "room": if (p.length == 3) sendToRoom(p[1], "admin", p[2]); break;
+                case "mailboxes": System.out.println(getMailboxCounts()); break;
+                case "kick": if (p.length > 1) kickClient(p[1], p.length == 3 ? p[2] : "kicked by admin"); break;
+                case "quit": stopServer(); System.exit(0); break;
+                case "": break;
+                default: System.out.println("commands: who | say <text> | to <nick> <text> | rooms | room <room> <text> | mailboxes | kick <nick> [reason] | quit");
+            }
+        }
+        // stdin closed (running in the background): keep serving
+        try {
+            Thread.currentThread().join();
+        } catch (InterruptedException ignored) {}
+    }
+
+    // ================= ClientHandler =================
+    private static class ClientHandler implements Runnable, Connection {
+        private final Socket socket;
+        private final SendQueue sendQueue = new SendQueue();
+        // queue leftovers handed over by closeQuiet while the sender thread still holds a batch;
+        // it keeps them after its own (guarded by leftovers, like senderActive)
+        private final List<Object> leftovers = new ArrayList<>();
+        private boolean senderActive;
+        private volatile long lastActive = System.currentTimeMillis();
+        private volatile boolean running = true;
+
+        private OutputStream rawOut; // only the handshake and then the sender thread write here
+        private InputStream in;
+        private int proto = Frame.PROTO_TEXT; // fixed at handshake, before the sender thread starts
+        private volatile Set<String> caps = Collections.emptySet();
+        private String nick;
+
+        ClientHandler(Socket s) {
+            this.socket = s;
+        }
+
+        public long getLastActive() { return lastActive; }
+
+        public void run() {
+            SendQueue.allowBlocking(true); // a BLOCK queue of another client may hold up this reader only
+            try {
+                in = new BufferedInputStream(Metrics.counting(socket.getInputStream()));
+                rawOut = socket.getOutputStream();
+                WireReader wire = new WireReader(in);
+
+                // handshake: request nick (and, from newer clients, the protocol version)
+                writeLine("REQUEST_NICK");
+                String line = wire.readLine();
+                if (line == null) { closeQuiet(); return; }
+                Handshake hs = Handshake.parse(line);
+                sendQueue.hold(); // until onClientRegistered has the backlog
+                nick = register(hs, this);
+                if (nick == null) {
+                    writeLine(Handshake.reject("cluster unavailable, try again later"));
+                    closeQuiet();
+                    return;
+                }
+                writeLine(ackLine(hs, nick, this));
+                proto = hs.proto;
+                caps = hs.caps;
+                Log.info("connect", nick, socket.getRemoteSocketAddress(), "connected");
+                onClientRegistered(nick, this);
+
+                // start a sender thread to flush sendQueue (so reading is not blocked)
+                synchronized (leftovers) {
+                    senderActive = true;
+                }
+                if (ioMode == IoMode.VIRTUAL) {
+                    VirtualThreads.start(this::senderLoop, "sender-" + nick);
+                } else {
+                    Thread senderThread = new Thread(this::senderLoop, "sender-" + nick);
+                    senderThread.setDaemon(true);
+                    senderThread.start();
+                }
+
+                // read loop
+                while (running) {
+                    String msg = readMessage(wire);
+                    if (msg == null) break;
+                    lastActive = System.currentTimeMillis();
+                    msg = msg.trim();
+                    if (msg.isEmpty()) continue;
+                    if ("/quit".equalsIgnoreCase(msg)) break;
+
+                    onClientMessage(nick, this, msg);
+                }
+
+            } catch (SocketException sx) {
+                Log.warn("io_error", nick, null, "socket error: " + sx.getMessage());
+            } catch (IOException ex) {
+                Log.warn("io_error", nick, null, "io error: " + ex.getMessage());
+            } finally {
+                running = false;
+                closeQuiet();
+                unregister(nick, this);
+                Log.info("disconnect", nick, null, "disconnected");
+                SendQueue.allowBlocking(false); // pool threads are reused
+            }
+        }
+
+        // enqueue an encoded frame to send
+        public void enqueue(Frame frame) {
+            if (!running) return;
+            if (!sendQueue.offer(frame)) dropSlowConsumer();
+        }
+
+        // enqueue a file region: header and body kept together -> senderLoop will do streaming
+        public void enqueueFile(SendQueue.FileBody body) {
+            if (!running) return;
+            if (!sendQueue.offer(body)) dropSlowConsumer();
+        }
+
+        public boolean supports(String capability) { return caps.contains(capability); }
+
+        public SendQueue.Stats queueStats() { return sendQueue.stats(); }
+
+        public void setSendPolicy(SendQueue.Policy policy) { sendQueue.setPolicy(policy); }
+
+        public boolean release(List<Object> backlog) {
+            return sendQueue.release(backlog);
+        }
+
+        private void dropSlowConsumer() {
+            Log.warn("slow_consumer", nick, null, "dropped: send queue full");
+            closeQuiet(); // read loop then ends and unregisters
+        }
+
+        // sender loop consumes queue and writes to socket
+        private void senderLoop() {
+            // per-connection compression context, owned by this thread (see FrameDeflater)
+            FrameDeflater deflater = FrameDeflater.negotiated(proto, supports(FrameDeflater.CAPABILITY)) ? new FrameDeflater() : null;
+            // queued frames go out together from one pooled direct buffer (see SendBatch)
+            SendBatch batch = new SendBatch(frame -> {
+                byte[] bytes = frame.bytes(proto);
+                return deflater != null ? deflater.encode(frame, bytes) : bytes;
+            }, SendBatch.LINGER_NANOS);
+            Sessions.Session session = Sessions.attached(nick, this);
+            batch.track(session, this);
+            WritableByteChannel out = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(rawOut);
+            SendQueue.FileBody unsentBody = null; // file whose transfer broke off
+            try {
+                while (running && !socket.isClosed()) {
+                    // blocking; null once closed
+                    Object obj = batch.hasCarry() ? batch.poll(sendQueue) : sendQueue.take();
+                    if (obj == null) break;
+                    if (obj instanceof Frame) {
+                        // this frame and the ones queued behind it, in one write
+                        try {
+                            ByteBuffer buf = batch.fill((Frame) obj, sendQueue);
+                            while (buf.hasRemaining()) out.write(buf);
+                            batch.written();
+                        } catch (Exception ex) {
+                            // the batch (maybe partly written) is kept for the client below
+                            Log.warn("send_error", nick, null, "send error: " + ex.getMessage());
+                            closeQuiet();
+                            break;
+                        }
+                    } else if (obj instanceof SendQueue.FileBody) {
+                        SendQueue.FileBody body = (SendQueue.FileBody) obj;
+                        File f = body.file;
+                        // Write raw bytes directly AFTER the FILESTREAM|... / CHUNK|... header;
+                        // header written unbuffered, so the channel write lands right after it
+                        try {
+                            byte[] header = body.header.bytes(proto);
+                            rawOut.write(header);
+                            Metrics.sent(body.header, header.length);
+                            Metrics.bytesOut.add(transferFile(f, body.offset, body.length, out));
+                            if (session != null) session.written(this, body);
+                        } catch (IOException ex) {
+                            Log.warn("send_error", nick, null, "stream send error: " + ex.getMessage());
+                            unsentBody = body;
+                            closeQuiet();
+                            break;
+                        }
+                    } else {
+                        // ignore unknown object
+                    }
+                }
+            } catch (InterruptedException ie) {
+                // thread interrupted: exit
+            } catch (Exception ex) {
+                Log.error("send_error", nick, null, "sender loop error: " + ex);
+            } finally {
+                // not written: the interrupted file, the batch, then what closeQuiet found queued
+                List<Object> unsent = new ArrayList<>();
+                if (unsentBody != null) unsent.add(unsentBody);
+                unsent.addAll(batch.discard());
+                synchronized (leftovers) {
+                    senderActive = false;
+                    unsent.addAll(leftovers);
+                    leftovers.clear();
+                }
+                keepUndelivered(nick, this, unsent);
+                if (deflater != null) deflater.end();
+            }
+        }
+
+        public void closeQuiet() {
+            running = false;
+            // releases the sender thread and any blocked producer. What was left is kept for the
+            // client (session or mailbox), behind anything the sender thread has not written yet
+            List<Object> left = sendQueue.close();
+            synchronized (leftovers) {
+                if (senderActive) {
+                    leftovers.addAll(left);
+                    left = Collections.emptyList();
+                }
+            }
+            keepUndelivered(nick, this, left);
+            // socket first: it unblocks a reader parked in a read, whose lock in.close() needs
+            try { if (socket != null && !socket.isClosed()) socket.close(); } catch (Exception ignored) {}
+            try { if (in != null) in.close(); } catch (Exception ignored) {}
+            try { if (rawOut != null) rawOut.close(); } catch (Exception ignored) {}
+        }
+
+        // encode and write one handshake line straight to the socket stream; unlike PrintWriter
+        // there is no monitor involved, so a virtual thread does not pin its carrier
+        private void writeLine(String line) throws IOException {
+            rawOut.write(Frame.text(line).bytes(Frame.PROTO_TEXT));
+        }
+
+        // next client message: a text line (v1) or the text of a LINE frame (v2); null at end of stream
+        private String readMessage(WireReader wire) throws IOException {
+            if (proto == Frame.PROTO_TEXT) return wire.readLine();
+            int type;
+            while ((type = wire.readFrame()) != -1) {
+                if (type == Frame.LINE) return wire.restString();
+                // other frame types are server -> client only
+            }
+            return null;
+        }
+    }
+}
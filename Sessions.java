@@ -0,0 +1,276 @@
+package DETAI1;
+
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resumable sessions for clients that announce caps=resume.
+ * - the ack of the handshake carries a session token (NICK_ACCEPTED|nick|proto=2|session=token)
+ * - sequence numbers: every frame (or file header + body) written to the client after the ack
+ *   is the next number of the session, on both sides; nothing is added to the wire, so frames
+ *   stay shared between connections. The client counts what it has fully handled
+ * - the client acknowledges with ACK|n (cumulative, every few messages or seconds); the
+ *   session keeps what was written but not acknowledged, bounded by MAX_UNACKED entries /
+ *   MAX_UNACKED_BYTES (older entries are given up, and reported as lost on resume)
+ * - after a drop the client sends HELLO|...|session=token|ack=n: it gets its nick back (a stale
+ *   connection still holding it is closed) and only what came after n, plus whatever was still
+ *   queued when the old connection closed; no history replay (ack ...|resumed=count). File
+ *   bodies (FILESTREAM, CHUNK) are replayed like frames: within a resumed session this replay
+ *   owns file recovery, RESUME|id|offset (ChunkedTransfers) is for a client starting a new one
+ * - a detached session holds its nick and its rooms for GRACE_MS (room messages meanwhile are
+ *   not kept); then, or when the client is kicked, what it still holds goes to the mailbox
+ */
+final class Sessions {
+    static final String CAPABILITY = "resume";
+    static final long GRACE_MS = Long.getLong("chat.session.graceSeconds", 120) * 1000;
+    static final int MAX_UNACKED = Integer.getInteger("chat.session.maxUnacked", 1000);
+    static final long MAX_UNACKED_BYTES = Long.getLong("chat.session.maxUnackedBytes", 1024 * 1024);
+    // acks from the client at least this often (messages); the client also acks after a pause
+    static final int ACK_EVERY = 32;
+
+    static final class Session {
+        final String token;
+        final String nick;
+        // guarded by this
+        private Connection conn;          // null while detached
+        private long detachedAt;
+        private final ArrayDeque<Object> unacked = new ArrayDeque<>(); // numbered base+1, base+2, ...
+        private long base;                // last number no longer kept (acknowledged or given up)
+        private long bytes;
+        private List<Object> unsent = new ArrayList<>(); // queued but never written
+        private List<Object> replay;      // for onClientRegistered after a resume
+        private int resumed = -1;         // replay size, -1 if the session is new
+
+        private Session(String token, String nick, Connection conn) {
+            this.token = token;
+            this.nick = nick;
+            this.conn = conn;
+        }
+
+        // item fully written to c. A stale connection (taken over) has not really delivered
+        // it, so it goes to the current one instead
+        void written(Connection c, Object item) {
+            Connection current;
+            synchronized (this) {
+                current = conn;
+                if (c == current) {
+                    unacked.addLast(item);
+                    bytes += cost(item);
+                    while (unacked.size() > MAX_UNACKED || bytes > MAX_UNACKED_BYTES) {
+                        bytes -= cost(unacked.pollFirst());
+                        base++;
+                    }
+                    return;
+                }
+                if (current == null) {
+                    unsent.add(item);
+                    return;
+                }
+            }
+            enqueue(current, item);
+        }
+
+        synchronized boolean detached() {
+            return conn == null;
+        }
+
+        // the client has handled everything up to n
+        synchronized void ack(long n) {
+            while (base < n && !unacked.isEmpty()) {
+                bytes -= cost(unacked.pollFirst());
+                base++;
+            }
+        }
+
+        // what nobody will send any more: unsent, plus unacked if the client is gone
+        private List<Object> leftovers() {
+            List<Object> out = new ArrayList<>();
+            if (conn == null) out.addAll(unacked);
+            out.addAll(unsent);
+            unacked.clear();
+            unsent = new ArrayList<>();
+            return out;
+        }
+    }
+
+    private static final Map<String, Session> byNick = new ConcurrentHashMap<>();
+    private static final Map<String, Session> byToken = new ConcurrentHashMap<>();
+    private static final SecureRandom random = new SecureRandom();
+
+    private Sessions() {}
+
+    // a new session for nick on c (a previous one of nick ends)
+    static Session open(String nick, Connection c) {
+        byte[] t = new byte[16];
+        random.nextBytes(t);
+        Session s = new Session(Base64.getUrlEncoder().withoutPadding().encodeToString(t), nick, c);
+        Session old = byNick.put(nick, s);
+        if (old != null) retire(old);
+        byToken.put(s.token, s);
+        return s;
+    }
+
+    // the session token names, if there is one
+    static Session find(String token) {
+        return token == null ? null : byToken.get(token);
+    }
+
+    // s continues on c, the client having handled up to ack. Everything after it is lined up
+    // for onClientRegistered; numbering restarts at ack, so the replay is numbered as before
+    static void resume(Session s, Connection c, long ack) {
+        synchronized (s) {
+            s.conn = c;
+            s.detachedAt = 0;
+            List<Object> replay = new ArrayList<>();
+            if (ack < s.base) {
+                replay.add(Frame.notice((s.base - ack) + " message(s) could not be recovered"));
+            } else {
+                s.ack(ack);
+            }
+            for (Object item : s.unacked) replay.add(replay(item));
+            for (Object item : s.unsent) replay.add(replay(item));
+            s.unacked.clear();
+            s.unsent = new ArrayList<>();
+            s.bytes = 0;
+            s.base = Math.max(0, ack); // the client's count; the replay is written (numbered) again
+            s.replay = replay;
+            s.resumed = replay.size();
+        }
+    }
+
+    // the session of nick if c is its connection
+    static Session attached(String nick, Connection c) {
+        Session s = nick == null ? null : byNick.get(nick);
+        if (s == null) return null;
+        synchronized (s) {
+            return s.conn == c ? s : null;
+        }
+    }
+
+    // ack parameters for c's handshake: the token, and how much was replayed if it resumed
+    static String ackParams(String nick, Connection c) {
+        Session s = attached(nick, c);
+        if (s == null) return "";
+        synchronized (s) {
+            return "|session=" + s.token + (s.resumed >= 0 ? "|resumed=" + s.resumed : "");
+        }
+    }
+
+    // what a resume lined up for c, once; null if c did not resume
+    static List<Object> takeReplay(String nick, Connection c) {
+        Session s = attached(nick, c);
+        if (s == null) return null;
+        synchronized (s) {
+            List<Object> r = s.replay;
+            s.replay = null;
+            return r;
+        }
+    }
+
+    // a detached session keeps its nick for its owner
+    static boolean held(String nick) {
+        Session s = byNick.get(nick);
+        if (s == null) return false;
+        synchronized (s) {
+            return s.conn == null;
+        }
+    }
+
+    // ACK|n from nick's connection c
+    static void ack(String nick, Connection c, String n) {
+        Session s = attached(nick, c);
+        if (s == null) return;
+        try {
+            s.ack(Long.parseLong(n.trim()));
+        } catch (NumberFormatException ignored) {}
+    }
+
+    // items c could not send; true if nick's session keeps them for a resume
+    static boolean keep(String nick, Connection c, List<Object> items) {
+        Session s = byNick.get(nick);
+        if (s == null) return false;
+        Connection current;
+        synchronized (s) {
+            current = s.conn;
+            if (current == c || current == null) {
+                s.unsent.addAll(items);
+                return true;
+            }
+        }
+        for (Object item : items) enqueue(current, item); // already taken over: send them there
+        return true;
+    }
+
+    // c is gone; its session waits GRACE_MS for the client to come back. False if c had none
+    static boolean detach(String nick, Connection c) {
+        Session s = byNick.get(nick);
+        if (s == null) return false;
+        synchronized (s) {
+            if (s.conn != c) return false;
+            s.conn = null;
+            s.detachedAt = System.currentTimeMillis();
+            s.replay = null;
+            return true;
+        }
+    }
+
+    // nick's session ends now (kick): what it holds goes to the mailbox
+    static void end(String nick) {
+        Session s = byNick.remove(nick);
+        if (s == null) return;
+        if (s.detached()) Rooms.leaveAll(nick);
+        retire(s);
+    }
+
+    // sessions detached for longer than GRACE_MS end
+    static void expire() {
+        long cutoff = System.currentTimeMillis() - GRACE_MS;
+        for (Session s : byNick.values()) {
+            boolean expired;
+            synchronized (s) {
+                expired = s.conn == null && s.detachedAt < cutoff && byNick.get(s.nick) == s;
+                if (expired) Rooms.leaveAll(s.nick); // kept while detached; before the nick is free
+            }
+            if (expired && byNick.remove(s.nick, s)) retire(s);
+        }
+    }
+
+    // server stopping: every session ends
+    static void endAll() {
+        for (String nick : new ArrayList<>(byNick.keySet())) end(nick);
+    }
+
+    // sessions held, attached or detached (Metrics)
+    static int count() {
+        return byNick.size();
+    }
+
+    private static void retire(Session s) {
+        byToken.remove(s.token);
+        List<Object> left;
+        synchronized (s) {
+            left = s.leftovers();
+        }
+        Server.keepUndelivered(s.nick, null, left);
+    }
+
+    // an item of another connection (taken over) to c
+    private static void enqueue(Connection c, Object item) {
+        item = replay(item);
+        if (item instanceof Frame) c.enqueue((Frame) item);
+        else c.enqueueFile((SendQueue.FileBody) item);
+    }
+
+    // item to be sent again: kept out of the latency metrics (see Frame.replay)
+    private static Object replay(Object item) {
+        if (item instanceof Frame) return ((Frame) item).replay();
+        SendQueue.FileBody f = (SendQueue.FileBody) item;
+        return new SendQueue.FileBody(f.header.replay(), f.file, f.offset, f.length);
+    }
+
+    private static long cost(Object item) {
+        if (item instanceof Frame) return ((Frame) item).size();
+        return ((SendQueue.FileBody) item).header.size();
+    }
+}
@@ -0,0 +1,64 @@
+package DETAI1;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Virtual thread support for Server's VIRTUAL IoMode.
+ * - looked up reflectively so the project still compiles and runs on Java 17
+ *   (VIRTUAL then falls back to platform threads)
+ * - counts live virtual threads started through here and the carrier threads
+ *   they are multiplexed onto
+ */
+final class VirtualThreads {
+    private static final AtomicInteger live = new AtomicInteger();
+    private static final ThreadFactory factory = lookupFactory();
+
+    private VirtualThreads() {}
+
+    static boolean isSupported() {
+        return factory != null;
+    }
+
+    // start r on a new virtual thread; returns null if virtual threads are not available
+    static Thread start(Runnable r, String name) {
+        if (factory == null) return null;
+        Thread t = factory.newThread(() -> {
+            live.incrementAndGet();
+            try {
+                r.run();
+            } finally {
+                live.decrementAndGet();
+            }
+        });
+        t.setName(name);
+        t.start();
+        return t;
+    }
+
+    // e.g. "virtual=10002 carriers=8 platform=31 heapUsedMB=212"
+    static String stats() {
+        int carriers = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if ("jdk.internal.misc.CarrierThread".equals(t.getClass().getName())) carriers++;
+        }
+        int platform = ManagementFactory.getThreadMXBean().getThreadCount();
+        Runtime rt = Runtime.getRuntime();
+        long heapUsedMb = (rt.totalMemory() - rt.freeMemory()) / (1024 * 1024);
+        return "virtual=" + live.get() + " carriers=" + carriers + " platform=" + platform
+                + " heapUsedMB=" + heapUsedMb;
+    }
+
+    private static ThreadFactory lookupFactory() {
+        try {
+            // Thread.ofVirtual().factory(), Java 21+
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factoryMethod = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factoryMethod.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package DETAI1;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Blocking decoder for both protocol versions over one byte stream:
+ * - readLine() for v1 text lines (and the handshake)
+ * - readFrame() for v2 binary frames, payload kept in one reusable buffer and
+ *   parsed in place with str16() / int64() / rest...()
+ * - stream() for raw bytes that follow a FILESTREAM header
+ * - frames with Frame.FLAG_DEFLATE are inflated here with one Inflater kept for the whole stream
+ *   (the sender's FrameDeflater context spans frames), so callers only ever see plain payloads
+ * Replaces BufferedReader, which buffers ahead and so cannot share a stream with raw bytes.
+ */
+final class WireReader {
+    static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    private static final int MAX_LINE_LENGTH = 16 * 1024 * 1024;
+
+    private final InputStream in; // should be buffered
+    private byte[] buf = new byte[512];
+    private int len, pos;
+    private int flags;
+    private Inflater inflater; // created on the first compressed frame
+    private byte[] spare = new byte[0];
+
+    WireReader(InputStream in) {
+        this.in = in;
+    }
+
+    // v1: next line without terminator ('\n' or "\r\n"), null at end of stream
+    String readLine() throws IOException {
+        len = 0;
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (len == MAX_LINE_LENGTH) throw new IOException("line too long");
+            ensure(len + 1);
+            buf[len++] = (byte) c;
+        }
+        if (c == -1 && len == 0) return null;
+        int end = len > 0 && buf[len - 1] == '\r' ? len - 1 : len;
+        return new String(buf, 0, end, StandardCharsets.UTF_8);
+    }
+
+    // v2: reads one frame, returns its type or -1 at end of stream
+    int readFrame() throws IOException {
+        int type = in.read();
+        if (type == -1) return -1;
+        flags = readByte();
+        int length = (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        if (length < 0 || length > MAX_FRAME_LENGTH) throw new IOException("bad frame length " + length);
+        ensure(length);
+        readFully(buf, 0, length);
+        len = length;
+        pos = 0;
+        if ((flags & Frame.FLAG_DEFLATE) != 0) inflate();
+        return type;
+    }
+
+    // ---- payload cursor ----
+    String str16() throws IOException {
+        if (pos + 2 > len) throw new IOException("truncated field");
+        int n = ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+        if (pos + 2 + n > len) throw new IOException("truncated field");
+        String s = new String(buf, pos + 2, n, StandardCharsets.UTF_8);
+        pos += 2 + n;
+        return s;
+    }
+
+    long int64() throws IOException {
+        if (pos + 8 > len) throw new IOException("truncated field");
+        long v = 0;
+        for (int i = 0; i < 8; i++) v = (v << 8) | (buf[pos++] & 0xFF);
+        return v;
+    }
+
+    String restString() {
+        String s = new String(buf, pos, len - pos, StandardCharsets.UTF_8);
+        pos = len;
+        return s;
+    }
+
+    int restLength() {
+        return len - pos;
+    }
+
+    void restTo(OutputStream out) throws IOException {
+        out.write(buf, pos, len - pos);
+        pos = len;
+    }
+
+    // raw stream positioned right after the last line / frame read
+    InputStream stream() {
+        return in;
+    }
+
+    // replaces the compressed payload in buf by its plain bytes
+    private void inflate() throws IOException {
+        if (inflater == null) inflater = new Inflater(true);
+        inflater.setInput(buf, 0, len);
+        int n = 0;
+        try {
+            while (true) {
+                if (spare.length - n < 512) {
+                    if (spare.length >= MAX_FRAME_LENGTH) throw new IOException("inflated frame too long");
+                    byte[] grown = new byte[Math.max(4096, spare.length * 2)];
+                    System.arraycopy(spare, 0, grown, 0, n);
+                    spare = grown;
+                }
+                int room = spare.length - n;
+                int r = inflater.inflate(spare, n, room);
+                n += r;
+                if (r < room) break; // input used up (the sender flushed at the frame end)
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("bad compressed frame: " + ex.getMessage());
+        }
+        byte[] compressed = buf;
+        buf = spare;
+        spare = compressed;
+        len = n;
+        flags &= ~Frame.FLAG_DEFLATE;
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b == -1) throw new EOFException("truncated frame");
+        return b;
+    }
+
+    private void readFully(byte[] b, int off, int n) throws IOException {
+        while (n > 0) {
+            int r = in.read(b, off, n);
+            if (r == -1) throw new EOFException("truncated frame");
+            off += r;
+            n -= r;
+        }
+    }
+
+    private void ensure(int capacity) {
+        if (capacity <= buf.length) return;
+        byte[] grown = new byte[Math.max(capacity, buf.length * 2)];
+        System.arraycopy(buf, 0, grown, 0, len);
+        buf = grown;
+    }
+}
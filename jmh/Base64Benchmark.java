@@ -0,0 +1,30 @@
+package DETAI1;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Frame.file(...).bytes(v1): the Base64 encode done once per sendFileInternal, at 200 KB
+ * (MAX_BASE64_SIZE_BYTES, the largest file sent inline).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base64Benchmark {
+    private final byte[] data = new byte[200 * 1024];
+
+    @Setup
+    public void setup() {
+        new Random(1).nextBytes(data);
+    }
+
+    @Benchmark
+    public byte[] fileFrame() {
+        return Frame.file("admin", "f.bin", data).bytes(Frame.PROTO_TEXT);
+    }
+}
@@ -0,0 +1,70 @@
+package DETAI1;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Server.broadcastLocal over n in-process connections, half v1 and half v2; each one takes the
+ * encoded bytes like a sender would, without a socket. One op is one broadcast to all n.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanoutBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int n;
+
+    private final Map<String, Connection> sinks = new HashMap<>();
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < n; i++) {
+            Connection sink = new SinkConnection(i % 2 == 0 ? Frame.PROTO_TEXT : Frame.PROTO_BINARY);
+            sinks.put(Server.registerUnique("bench" + i, sink), sink);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        sinks.forEach(Server::unregister);
+        sinks.clear();
+    }
+
+    @Benchmark
+    public void broadcastLocal() {
+        Server.broadcastLocal("admin", "broadcast text of a typical length");
+    }
+
+    // in-process connection: encodes for its protocol and keeps the byte count so the work stays live
+    static final class SinkConnection implements Connection {
+        private final int proto;
+        long taken;
+
+        SinkConnection(int proto) {
+            this.proto = proto;
+        }
+
+        public long getLastActive() { return System.currentTimeMillis(); }
+
+        public void enqueue(Frame frame) { taken += frame.bytes(proto).length; }
+
+        public void enqueueFile(SendQueue.FileBody body) { taken += body.length; }
+
+        public boolean supports(String capability) { return false; }
+
+        public SendQueue.Stats queueStats() { return new SendQueue.Stats(0, 0, 0, SendQueue.Policy.DROP_OLDEST); }
+
+        public void setSendPolicy(SendQueue.Policy policy) {}
+
+        public boolean release(List<Object> backlog) { return true; }
+
+        public void closeQuiet() {}
+    }
+}
@@ -0,0 +1,149 @@
+package DETAI1;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The send path over a real server on loopback (IO mode from -Dchat.io, THREADS by default):
+ * - fileStream: a 64 MB FILESTREAM through the sender to one client, read to the last byte
+ * - burst:      100 broadcasts to 50 clients, waiting until every copy is read; the teardown prints
+ *               how many messages each socket write carried (compare -Dchat.send.lingerMicros=0 / 500)
+ * For connection-level latency under load see LoadGen.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackBenchmark {
+    static final int FILE_MB = 64;
+    static final int CLIENTS = 50;
+    static final int BURST = 100;
+
+    @State(Scope.Benchmark)
+    public static class ChatServer {
+        int port;
+
+        @Setup
+        public void start() {
+            port = 19000 + new Random().nextInt(1000);
+            if (!Server.startServer(port, Server.defaultIoMode())) throw new IllegalStateException("server did not start on " + port);
+        }
+
+        @TearDown
+        public void stop() {
+            Server.stopServer();
+        }
+
+        // connects and registers under nick, returns the reader positioned after the ack
+        WireReader join(Socket s, InputStream in, String nick) throws IOException {
+            WireReader r = new WireReader(in);
+            r.readLine(); // REQUEST_NICK
+            s.getOutputStream().write((nick + "\n").getBytes(StandardCharsets.UTF_8));
+            r.readLine(); // ack
+            return r;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FileClient {
+        File file;
+        Socket socket;
+        InputStream in;
+        WireReader reader;
+        String nick;
+        final byte[] buf = new byte[256 * 1024];
+
+        @Setup
+        public void setup(ChatServer server) throws IOException {
+            Path path = Files.createTempFile("bench", ".bin");
+            file = path.toFile();
+            file.deleteOnExit();
+            byte[] chunk = new byte[1024 * 1024];
+            new Random(2).nextBytes(chunk);
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path))) {
+                for (int i = 0; i < FILE_MB; i++) out.write(chunk);
+            }
+            socket = new Socket("127.0.0.1", server.port);
+            in = new BufferedInputStream(socket.getInputStream(), 256 * 1024);
+            reader = new WireReader(in);
+            reader.readLine(); // REQUEST_NICK
+            socket.getOutputStream().write("benchfile\n".getBytes(StandardCharsets.UTF_8));
+            nick = reader.readLine().split("\\|")[1];
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            socket.close();
+            file.delete();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class BurstClients {
+        final List<Socket> sockets = new ArrayList<>();
+        final AtomicLong received = new AtomicLong();
+        long writes0, out0;
+
+        @Setup
+        public void setup(ChatServer server) throws Exception {
+            for (int i = 0; i < CLIENTS; i++) {
+                Socket s = new Socket("127.0.0.1", server.port);
+                sockets.add(s);
+                WireReader r = server.join(s, new BufferedInputStream(s.getInputStream()), "burst" + i);
+                Thread reader = new Thread(() -> {
+                    try {
+                        while (r.readLine() != null) received.incrementAndGet();
+                    } catch (IOException ignored) {
+                        // closed at the end
+                    }
+                }, "bench-reader-" + i);
+                reader.setDaemon(true);
+                reader.start();
+            }
+            Thread.sleep(500); // history replay, if any, is in
+            writes0 = Metrics.writes.sum();
+            out0 = Metrics.messagesOut.sum();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            long writes = Metrics.writes.sum() - writes0, out = Metrics.messagesOut.sum() - out0;
+            System.out.printf("%n%.1f messages/write (linger %d us, %s)%n", (double) out / Math.max(1, writes),
+                    SendBatch.LINGER_NANOS / 1000, Server.defaultIoMode());
+            for (Socket s : sockets) s.close();
+        }
+    }
+
+    @Benchmark
+    public long fileStream(FileClient c) throws IOException {
+        Server.sendFileToClient(c.nick, "admin", c.file);
+        String header;
+        long skipped = 0;
+        while (!(header = c.reader.readLine()).startsWith("FILESTREAM|")) skipped += header.length();
+        long left = Long.parseLong(header.substring(header.lastIndexOf('|') + 1));
+        while (left > 0) {
+            int got = c.in.read(c.buf, 0, (int) Math.min(c.buf.length, left));
+            if (got < 0) throw new EOFException();
+            left -= got;
+        }
+        return skipped;
+    }
+
+    @Benchmark
+    public void burst(BurstClients c) {
+        long target = c.received.get() + (long) BURST * CLIENTS;
+        for (int k = 0; k < BURST; k++) Server.broadcastLocal("admin", "burst message " + k);
+        while (c.received.get() < target) Thread.onSpinWait();
+    }
+}
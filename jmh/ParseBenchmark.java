@@ -0,0 +1,44 @@
+package DETAI1;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * FROM| / FILE| lines read and split the way ClientGUI.readLoop does (WireReader.readLine + split).
+ * One op is the whole 1100-line capture, so divide by LINES for the per-line cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    static final int LINES = 1100;
+
+    private byte[] wire;
+
+    @Setup
+    public void setup() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 1000; i++) {
+            out.write(Frame.from("user" + (i % 50), "hello there, message number " + i).bytes(Frame.PROTO_TEXT));
+            if (i % 10 == 0) out.write(Frame.file("user" + (i % 50), "f" + i + ".txt", new byte[256]).bytes(Frame.PROTO_TEXT));
+        }
+        wire = out.toByteArray();
+    }
+
+    @Benchmark
+    public void parse(Blackhole bh) throws IOException {
+        WireReader r = new WireReader(new ByteArrayInputStream(wire));
+        String line;
+        while ((line = r.readLine()) != null) {
+            bh.consume(line.startsWith("FILE|") ? line.split("\\|", 4) : line.split("\\|", 3));
+        }
+    }
+}
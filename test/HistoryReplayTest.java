@@ -0,0 +1,126 @@
+package DETAI1;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A client coming back gets what it missed once: public history up to now, its mailbox, and
+ * nothing twice where the two overlap.
+ */
+class HistoryReplayTest {
+    private static int port;
+
+    // in-process connection that keeps what it is sent, like a queue nobody drains
+    private static final class Capture implements Connection {
+        final List<Object> got = new ArrayList<>();
+
+        public long getLastActive() { return System.currentTimeMillis(); }
+
+        public synchronized void enqueue(Frame frame) { got.add(frame); }
+
+        public synchronized void enqueueFile(SendQueue.FileBody body) { got.add(body); }
+
+        public boolean supports(String capability) { return false; }
+
+        public SendQueue.Stats queueStats() { return new SendQueue.Stats(0, 0, 0, SendQueue.Policy.DROP_OLDEST); }
+
+        public void setSendPolicy(SendQueue.Policy policy) {}
+
+        public boolean release(List<Object> backlog) { return true; }
+
+        public void closeQuiet() {}
+
+        synchronized List<Object> drain() {
+            return new ArrayList<>(got);
+        }
+    }
+
+    // one server for the class (IO mode from -Dchat.io): it is not restarted within a JVM
+    @BeforeAll
+    static void start() {
+        port = 21000 + new Random().nextInt(1000);
+        assertTrue(Server.startServer(port, Server.defaultIoMode()));
+    }
+
+    @AfterAll
+    static void stop() {
+        Server.stopServer();
+    }
+
+    @Test
+    void replaysPublicHistoryAndMailboxOnce() throws Exception {
+        String tag = Long.toString(System.nanoTime() % 100_000);
+        String nick = "zed" + tag;
+        send(() -> Server.broadcast("admin", "before " + tag));
+
+        // nick is online but does not read: everything it was sent is still queued at the kick
+        Capture c = new Capture();
+        assertEquals(nick, Server.registerUnique(nick, c));
+        Server.onClientRegistered(nick, c);
+        Thread.sleep(200);
+        send(() -> Server.broadcast("admin", "b1 " + tag));
+        send(() -> Server.sendToClient(nick, "admin", "dm " + tag));
+        send(() -> Server.broadcast("admin", "b2 " + tag));
+        Server.kickClient(nick, "bye " + tag);
+        Thread.sleep(200);
+        Server.unregister(nick, c);
+        Server.keepUndelivered(nick, c, c.drain());
+
+        // offline: only history has it
+        send(() -> Server.broadcast("admin", "after " + tag));
+        awaitHistory("after " + tag);
+
+        List<String> lines = reconnect(nick);
+        for (String text : new String[]{"before", "b1", "dm", "b2", "after"}) {
+            String suffix = "] " + text + " " + tag;
+            assertEquals(1, lines.stream().filter(l -> l.startsWith("FROM|admin|") && l.endsWith(suffix)).count(),
+                    text + " in " + lines);
+        }
+        assertTrue(lines.stream().noneMatch(l -> l.contains("bye " + tag)), lines.toString());
+    }
+
+    // distinct send times: the replay tells history and mailbox apart by time and sender
+    private static void send(Runnable r) throws InterruptedException {
+        r.run();
+        Thread.sleep(20);
+    }
+
+    // history is written behind the event bus: wait until text is in
+    private static void awaitHistory(String text) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (Server.getHistory(HistoryStore.BROADCAST, false, Long.MAX_VALUE, 1).stream().noneMatch(r -> r.text.equals(text))) {
+            assertTrue(System.currentTimeMillis() < end, text + " not in history");
+            Thread.sleep(10);
+        }
+    }
+
+    // every line the server sends nick on a v1 connection until it goes quiet
+    private static List<String> reconnect(String nick) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (Socket s = new Socket("127.0.0.1", port)) {
+            WireReader r = new WireReader(new BufferedInputStream(s.getInputStream()));
+            r.readLine(); // REQUEST_NICK
+            s.getOutputStream().write((nick + "\n").getBytes(StandardCharsets.UTF_8));
+            s.setSoTimeout(1500);
+            try {
+                String line;
+                while ((line = r.readLine()) != null) lines.add(line);
+            } catch (SocketTimeoutException quiet) {
+                // all of it is in
+            }
+        }
+        return lines;
+    }
+}
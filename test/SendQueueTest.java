@@ -0,0 +1,153 @@
+package DETAI1;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * What each SendQueue.Policy does once a slow reader lets the queue fill up.
+ */
+class SendQueueTest {
+
+    private static Frame msg(int i) {
+        return Frame.from("alice", "m" + i);
+    }
+
+    private static String text(Object item) {
+        return ((Frame) item).text();
+    }
+
+    private static SendQueue filled(SendQueue.Policy policy, int offered, boolean expectOk) {
+        SendQueue q = new SendQueue(Long.MAX_VALUE, 3, policy);
+        for (int i = 0; i < offered; i++) assertEquals(i < 3 || expectOk, q.offer(msg(i)), "offer " + i);
+        return q;
+    }
+
+    @Test
+    void dropOldestEvictsSilently() throws InterruptedException {
+        SendQueue q = filled(SendQueue.Policy.DROP_OLDEST, 5, true);
+        SendQueue.Stats s = q.stats();
+        assertEquals(3, s.depth);
+        assertEquals(2, s.dropped);
+        assertEquals("m2", text(q.take()));
+        assertEquals("m3", text(q.take()));
+        assertEquals("m4", text(q.take()));
+        assertNull(q.poll());
+    }
+
+    @Test
+    void coalesceReplacesEvictedByOneNotice() throws InterruptedException {
+        SendQueue q = filled(SendQueue.Policy.COALESCE, 5, true);
+        assertEquals(2, q.stats().dropped);
+        Frame notice = (Frame) q.take();
+        assertTrue(notice.notice());
+        assertEquals("2 message(s) skipped, your connection is too slow", notice.text());
+        assertEquals("m2", text(q.take()));
+        assertEquals("m3", text(q.take()));
+        assertEquals("m4", text(q.take()));
+        assertNull(q.poll());
+    }
+
+    @Test
+    void disconnectKeepsEverythingForTheMailbox() {
+        SendQueue q = filled(SendQueue.Policy.DISCONNECT, 4, false);
+        assertEquals(0, q.stats().dropped);
+        List<Object> left = q.close();
+        assertEquals(Arrays.asList("m0", "m1", "m2", "m3"), left.stream().map(SendQueueTest::text).toList());
+        assertTrue(q.close().isEmpty());
+        assertTrue(q.offer(msg(9))); // closed: ignored
+    }
+
+    @Test
+    void blockDisconnectsAtOnceOnThreadsThatMayNotWait() {
+        long t0 = System.nanoTime();
+        filled(SendQueue.Policy.BLOCK, 4, false);
+        assertTrue(System.nanoTime() - t0 < 1_000_000_000L);
+    }
+
+    @Test
+    void blockWaitsForTheConsumer() throws Exception {
+        SendQueue q = filled(SendQueue.Policy.BLOCK, 3, true);
+        AtomicBoolean result = new AtomicBoolean();
+        Thread producer = new Thread(() -> {
+            SendQueue.allowBlocking(true);
+            try {
+                result.set(q.offer(msg(3)));
+            } finally {
+                SendQueue.allowBlocking(false);
+            }
+        });
+        producer.start();
+        waitUntilWaiting(producer);
+        assertEquals(3, q.stats().depth);
+        assertEquals("m0", text(q.take()));
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertTrue(result.get());
+        assertEquals(3, q.stats().depth);
+        assertEquals(0, q.stats().dropped);
+    }
+
+    @Test
+    void closeWakesABlockedProducer() throws Exception {
+        SendQueue q = filled(SendQueue.Policy.BLOCK, 3, true);
+        AtomicBoolean result = new AtomicBoolean();
+        Thread producer = new Thread(() -> {
+            SendQueue.allowBlocking(true);
+            result.set(q.offer(msg(3)));
+        });
+        producer.start();
+        waitUntilWaiting(producer);
+        assertEquals(3, q.close().size());
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertTrue(result.get());
+        assertNull(q.take());
+    }
+
+    @Test
+    void byteBoundEvictsAndStillTakesAnOversizedItem() throws InterruptedException {
+        long one = msg(0).size();
+        SendQueue q = new SendQueue(2 * one, 100, SendQueue.Policy.DROP_OLDEST);
+        for (int i = 0; i < 3; i++) q.offer(msg(i));
+        assertEquals(2, q.stats().depth);
+        assertEquals(2 * one, q.stats().bytes);
+
+        Frame big = Frame.from("alice", new String(new char[1000]));
+        assertTrue(q.offer(big));
+        assertEquals(1, q.stats().depth); // everything else evicted, big alone goes in
+        assertSame(big, q.take());
+        assertEquals(0, q.stats().bytes);
+    }
+
+    @Test
+    void heldQueuePutsTheBacklogFirst() throws InterruptedException {
+        SendQueue q = new SendQueue(Long.MAX_VALUE, 3, SendQueue.Policy.COALESCE);
+        q.hold();
+        q.offer(msg(2));
+        q.offer(msg(3));
+        assertNull(q.poll());
+        assertTrue(q.release(Arrays.asList(msg(0), msg(1))));
+        for (int i = 0; i < 4; i++) assertEquals("m" + i, text(q.take()));
+
+        q.close();
+        assertFalse(q.release(List.of(msg(4))));
+    }
+
+    @Test
+    void parsePolicyFallsBack() {
+        assertEquals(SendQueue.Policy.BLOCK, SendQueue.parsePolicy(" block ", SendQueue.Policy.COALESCE));
+        assertEquals(SendQueue.Policy.COALESCE, SendQueue.parsePolicy("nope", SendQueue.Policy.COALESCE));
+        assertEquals(SendQueue.Policy.DISCONNECT, SendQueue.parsePolicy(null, SendQueue.Policy.DISCONNECT));
+    }
+
+    private static void waitUntilWaiting(Thread t) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (t.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < end) Thread.sleep(5);
+        assertEquals(Thread.State.TIMED_WAITING, t.getState());
+    }
+}
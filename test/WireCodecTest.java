@@ -0,0 +1,204 @@
+package DETAI1;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Frame encodings (v1 lines, v2 binary frames, deflated v2) read back through WireReader.
+ */
+class WireCodecTest {
+
+    private static WireReader reader(byte[]... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] p : parts) out.write(p);
+        return new WireReader(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static byte[] random(int n, long seed) {
+        byte[] b = new byte[n];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    // ---- v1 ----
+
+    @Test
+    void v1LinesRoundTrip() throws IOException {
+        WireReader r = reader(Frame.from("alice", "hi | there é").bytes(Frame.PROTO_TEXT),
+                Frame.text("LIST|a,b").bytes(Frame.PROTO_TEXT),
+                "CRLF|x\r\n".getBytes(StandardCharsets.UTF_8),
+                "last".getBytes(StandardCharsets.UTF_8));
+        assertEquals("FROM|alice|hi | there é", r.readLine());
+        assertEquals("LIST|a,b", r.readLine());
+        assertEquals("CRLF|x", r.readLine());
+        assertEquals("last", r.readLine()); // no terminator before the end of stream
+        assertNull(r.readLine());
+    }
+
+    @Test
+    void v1FileIsBase64() throws IOException {
+        byte[] data = random(1000, 1);
+        WireReader r = reader(Frame.file("bob", "a.bin", data).bytes(Frame.PROTO_TEXT));
+        String[] p = r.readLine().split("\\|", 4);
+        assertArrayEquals(new String[]{"FILE", "bob", "a.bin"}, Arrays.copyOf(p, 3));
+        assertArrayEquals(data, Base64.getDecoder().decode(p[3]));
+    }
+
+    @Test
+    void v1FileUsesSharedBase64() throws IOException {
+        byte[] data = random(300, 2);
+        byte[] b64 = Base64.getEncoder().encode(data);
+        byte[] wire = Frame.file("bob", "a.bin", data, b64, null).bytes(Frame.PROTO_TEXT);
+        assertArrayEquals(Frame.file("bob", "a.bin", data).bytes(Frame.PROTO_TEXT), wire);
+    }
+
+    @Test
+    void stampedTextCarriesTheSendTime() throws IOException {
+        long time = System.currentTimeMillis() - 3_600_000;
+        Frame f = Frame.history(time, "alice", "earlier");
+        WireReader r = reader(f.bytes(Frame.PROTO_TEXT));
+        assertTrue(r.readLine().matches("FROM\\|alice\\|\\[\\d\\d/\\d\\d \\d\\d:\\d\\d] earlier"));
+        assertEquals("earlier", f.text());
+        assertEquals(time, f.time());
+        assertTrue(f.notice());
+        assertFalse(Frame.from("alice", "now").notice());
+    }
+
+    // ---- v2 ----
+
+    @Test
+    void v2FramesRoundTrip() throws IOException {
+        byte[] data = random(5000, 3);
+        WireReader r = reader(Frame.from("alice", "hello é").bytes(Frame.PROTO_BINARY),
+                Frame.file("bob", "f.txt", data).bytes(Frame.PROTO_BINARY),
+                Frame.text("USERS|alice,bob").bytes(Frame.PROTO_BINARY));
+
+        assertEquals(Frame.FROM, r.readFrame());
+        assertEquals("alice", r.str16());
+        assertEquals("hello é", r.restString());
+
+        assertEquals(Frame.FILE, r.readFrame());
+        assertEquals("bob", r.str16());
+        assertEquals("f.txt", r.str16());
+        assertEquals(data.length, r.restLength());
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        r.restTo(body);
+        assertArrayEquals(data, body.toByteArray());
+
+        assertEquals(Frame.LINE, r.readFrame());
+        assertEquals("USERS|alice,bob", r.restString());
+        assertEquals(-1, r.readFrame());
+    }
+
+    @Test
+    void fileStreamBodyFollowsTheHeader() throws IOException {
+        byte[] body = random(70_000, 4);
+        WireReader r = reader(Frame.fileStream("carol", "big.iso", body.length).bytes(Frame.PROTO_BINARY), body,
+                Frame.from("carol", "after").bytes(Frame.PROTO_BINARY));
+        assertEquals(Frame.FILESTREAM, r.readFrame());
+        assertEquals("carol", r.str16());
+        assertEquals("big.iso", r.str16());
+        assertEquals(body.length, r.int64());
+        byte[] got = new byte[body.length];
+        int n = 0;
+        while (n < got.length) n += r.stream().read(got, n, got.length - n);
+        assertArrayEquals(body, got);
+        assertEquals(Frame.FROM, r.readFrame());
+        assertEquals("carol", r.str16());
+        assertEquals("after", r.restString());
+    }
+
+    @Test
+    void handshakeLineThenFrames() throws IOException {
+        WireReader r = reader(Frame.textOnly("PROTO|2").bytes(Frame.PROTO_BINARY),
+                Frame.from("alice", "hi").bytes(Frame.PROTO_BINARY));
+        assertEquals("PROTO|2", r.readLine());
+        assertEquals(Frame.FROM, r.readFrame());
+        assertEquals("alice", r.str16());
+        assertEquals("hi", r.restString());
+    }
+
+    @Test
+    void longSenderIsCutToWhatStr16Holds() throws IOException {
+        char[] name = new char[70_000];
+        Arrays.fill(name, 'x');
+        WireReader r = reader(Frame.from(new String(name), "t").bytes(Frame.PROTO_BINARY));
+        assertEquals(Frame.FROM, r.readFrame());
+        assertEquals(0xFFFF, r.str16().length());
+        assertEquals("t", r.restString());
+    }
+
+    @Test
+    void badFramesAreRejected() throws IOException {
+        byte[] tooLong = new byte[Frame.HEADER_SIZE];
+        tooLong[0] = Frame.FROM;
+        Frame.putInt(tooLong, 2, WireReader.MAX_FRAME_LENGTH + 1);
+        assertThrows(IOException.class, () -> reader(tooLong).readFrame());
+
+        byte[] truncated = Frame.from("alice", "hi").bytes(Frame.PROTO_BINARY);
+        assertThrows(IOException.class, () -> reader(Arrays.copyOf(truncated, truncated.length - 1)).readFrame());
+
+        // str16 length pointing past the payload
+        byte[] field = {Frame.FROM, 0, 0, 0, 0, 3, 0, 9, 'a'};
+        WireReader r = reader(field);
+        assertEquals(Frame.FROM, r.readFrame());
+        assertThrows(IOException.class, r::str16);
+    }
+
+    // ---- deflate ----
+
+    @Test
+    void deflatedFramesInflateAcrossTheStream() throws IOException {
+        FrameDeflater deflater = new FrameDeflater();
+        byte[] text = new byte[4000];
+        Arrays.fill(text, (byte) 'a');
+        byte[] zip = random(2000, 5);
+        Frame[] frames = {
+                Frame.from("alice", "a message long enough to be worth compressing, said twice over"),
+                Frame.from("alice", "a message long enough to be worth compressing, said twice over"),
+                Frame.from("bob", "short"),
+                Frame.file("bob", "notes.txt", text),
+                Frame.file("bob", "photo.zip", zip),
+        };
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        int plain = 0;
+        for (Frame f : frames) {
+            byte[] shared = f.bytes(Frame.PROTO_BINARY);
+            byte[] sent = deflater.encode(f, shared);
+            assertEquals(f.compressible() && shared.length - Frame.HEADER_SIZE >= 48, sent != shared);
+            assertArrayEquals(shared, f.bytes(Frame.PROTO_BINARY)); // the shared encoding is left alone
+            plain += shared.length;
+            wire.write(sent);
+        }
+        deflater.end();
+        assertTrue(wire.size() < plain);
+
+        WireReader r = reader(wire.toByteArray());
+        for (int i = 0; i < 2; i++) {
+            assertEquals(Frame.FROM, r.readFrame());
+            assertEquals("alice", r.str16());
+            assertEquals("a message long enough to be worth compressing, said twice over", r.restString());
+        }
+        assertEquals(Frame.FROM, r.readFrame());
+        assertEquals("bob", r.str16());
+        assertEquals("short", r.restString());
+        for (byte[] data : new byte[][]{text, zip}) {
+            assertEquals(Frame.FILE, r.readFrame());
+            assertEquals("bob", r.str16());
+            r.str16();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            r.restTo(body);
+            assertArrayEquals(data, body.toByteArray());
+        }
+        assertEquals(-1, r.readFrame());
+    }
+}